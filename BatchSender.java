@@ -0,0 +1,273 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batch mode for PacketSender: sends every line of a file (or stdin) as its own
+ * packet over one or a few persistent connections.
+ *
+ * Packets are pipelined: they are written without waiting for the previous
+ * reply, and up to BATCH_SIZE length-prefixed frames are encoded back to back
+ * into one contiguous direct buffer borrowed from the BufferPool, which is
+ * flushed with plain (not gathering) writes, usually a single one. A reader
+ * thread per connection matches the receiver's replies to the packets in the
+ * order they were sent (the receiver answers each connection in order). At
+ * most --window packets per connection are waiting for a reply at any time.
+ *
+ * Each connection is a flow of its own: connection i sends from the local
+ * address plus i and numbers its datagrams with its own increasing
+ * identifications, so a receiver tracking flows sees every flow in order.
+ */
+public class BatchSender {
+
+    static final int BATCH_SIZE = 64; // frames per write
+    static final int BATCH_BYTES = 128 * 1024; // holds at least one frame of any size
+
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+
+    /**
+     * One persistent connection to the receiver with its own batch of unsent
+     * frames and queue of packets waiting for a reply
+     */
+    class Connection {
+        final SocketChannel channel;
+        final DataInputStream in;
+        final BlockingQueue<Long> inFlight = new LinkedBlockingQueue<>(); // sequence numbers of packets waiting for a reply, in send order
+        final Semaphore window; // one permit per packet that may be sent before an earlier one is answered
+        volatile IOException failure; // why the reply reader stopped early, or null
+        final ByteBuffer batch = BufferPool.DEFAULT.acquire(BATCH_BYTES); // frames not written yet (write mode)
+        int batchCount; // frames in batch
+        final int sourceIP;
+        int identification = PacketCodec.nextIdentification(); // of this connection's next datagram
+        final Thread replyReader;
+
+        Connection(String host, int port, int window, int sourceIP) throws IOException {
+            this.sourceIP = sourceIP;
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+            this.window = new Semaphore(window);
+            replyReader = new Thread(this::readReplies, "batch-sender-replies");
+            replyReader.setDaemon(true); // don't outlive a run that failed on another connection
+            replyReader.start();
+        }
+
+        /**
+         * Adds an encoded packet (e.g. a fragment) to the current batch
+         */
+        void send(long sequence, byte[] packet) throws IOException, InterruptedException {
+            reserve(4 + packet.length);
+            batch.putInt(packet.length).put(packet);
+            sent(sequence);
+        }
+
+        /**
+         * Encodes a packet straight into the current batch, so nothing is allocated
+         * for it
+         */
+        void send(long sequence, byte[] payload, int destinationIP) throws IOException, InterruptedException {
+            reserve(4 + PacketCodec.headerLength() + payload.length);
+            int start = batch.position();
+            batch.position(start + 4);
+            batch.putInt(start, PacketCodec.encode(batch, payload, 0, payload.length, nextIdentification(), sourceIP,
+                    destinationIP));
+            sent(sequence);
+        }
+
+        int nextIdentification() {
+            return identification++ & 0xFFFF;
+        }
+
+        private void reserve(int frameLength) throws IOException {
+            if (batch.remaining() < frameLength) {
+                flush();
+            }
+        }
+
+        /**
+         * Flushes the batch once it is full. Blocks while the window of unanswered
+         * packets is full.
+         *
+         * @throws IOException if the connection to the receiver was lost
+         */
+        private void sent(long sequence) throws IOException, InterruptedException {
+            if (++batchCount == BATCH_SIZE) {
+                flush();
+            }
+
+            // make sure everything queued is on the wire before waiting for replies to free the window
+            if (!window.tryAcquire()) {
+                flush();
+                window.acquire();
+            }
+            checkFailure();
+            inFlight.add(sequence);
+        }
+
+        /**
+         * Throws the error that stopped the reply reader, if any
+         */
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Lost the connection to the receiver: " + failure.getMessage(), failure);
+            }
+        }
+
+        /**
+         * Writes every frame in the current batch, all of them in the one buffer
+         */
+        void flush() throws IOException {
+            if (batchCount == 0) {
+                return;
+            }
+
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            batch.clear();
+            batchCount = 0;
+        }
+
+        /**
+         * Flushes the last batch, waits for every outstanding reply and closes the
+         * connection
+         *
+         * @throws IOException if the connection to the receiver was lost
+         */
+        void finish() throws IOException, InterruptedException {
+            try {
+                checkFailure();
+                flush();
+                inFlight.add(-1L); // tells the reply reader that nothing else was sent
+                replyReader.join();
+                checkFailure();
+            } finally {
+                replyReader.interrupt(); // in case it is still waiting for a packet that will never be sent
+                channel.close();
+                BufferPool.DEFAULT.release(batch);
+            }
+        }
+
+        private void readReplies() {
+            try {
+                while (true) {
+                    long sequence = inFlight.take();
+                    if (sequence < 0) {
+                        break;
+                    }
+
+                    String reply = in.readUTF();
+                    if (reply.equals(PacketReceiver.ACK_MESSAGE)) {
+                        acknowledged.incrementAndGet();
+                    } else {
+                        corrupted.incrementAndGet();
+                        System.out.println("Packet #" + sequence + ": " + reply);
+                    }
+                    window.release();
+                }
+            } catch (IOException e) {
+                failure = e;
+                window.release(); // nothing else will be answered; don't leave the sending thread blocked on the window
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends every line read from the input as a packet and prints a summary once
+     * every reply has arrived
+     *
+     * @param input         lines to send
+     * @param sourceIP      source IPv4 address of the first connection; connection i sends from sourceIP + i
+     * @param destinationIP destination IPv4 address as an int
+     * @param host          receiver host
+     * @param port          receiver port
+     * @param connections   number of persistent connections to spread packets over
+     * @param window        maximum unanswered packets per connection
+     * @param mtu           largest packet to send; longer lines are fragmented (0 never fragments)
+     * @throws Exception
+     */
+    void run(BufferedReader input, int sourceIP, int destinationIP, String host, int port, int connections,
+            int window, int mtu) throws Exception {
+        Connection[] pool = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            pool[i] = new Connection(host, port, window, sourceIP + i);
+        }
+
+        long start = System.nanoTime();
+        long lines = 0;
+        long sent = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+            Connection connection = pool[(int) (lines % connections)]; // round-robin over the connections
+            if (mtu > 0 && PacketCodec.headerLength() + payload.length > mtu) {
+                // each fragment is a packet of its own; they all go over the same connection
+                for (byte[] fragment : PacketCodec.encodeFragments(payload, connection.sourceIP, destinationIP,
+                        connection.nextIdentification(), mtu)) {
+                    connection.send(sent++, fragment);
+                }
+            } else {
+                connection.send(sent++, payload, destinationIP);
+            }
+            lines++;
+        }
+
+        for (Connection connection : pool) {
+            connection.finish();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Sent " + lines + " messages as " + sent + " packets over " + connections + " connection(s) in "
+                + String.format("%.3f", seconds) + " s (" + String.format("%.0f", sent / seconds) + " packets/s).");
+        System.out.println("Acknowledged: " + acknowledged.get() + ", corrupted: " + corrupted.get());
+    }
+
+    /**
+     * Entry point for "java PacketSender --batch <file|-> ..."
+     *
+     * Options:
+     * --batch FILE        file to read messages from, one per line; "-" reads stdin
+     * --dest IP           destination IPv4 address written into the packets (default 127.0.0.1)
+     * --host HOST         receiver to connect to (default 127.0.0.1)
+     * --port N            receiver port (default 8888)
+     * --connections N     persistent connections to use (default 1)
+     * --window N          unanswered packets allowed per connection (default 1024)
+     * --mtu N             fragment messages whose packet would be longer than N bytes
+     * --pool-debug        report pooled buffers that were never released
+     *
+     * @param args
+     * @throws Exception
+     */
+    static void main(String[] args) throws Exception {
+        String file = CommandLine.getOption(args, "--batch", "-");
+        String destinationIP = CommandLine.getOption(args, "--dest", "127.0.0.1");
+        String host = CommandLine.getOption(args, "--host", "127.0.0.1");
+        int port = CommandLine.getIntOption(args, "--port", 8888);
+        int connections = CommandLine.getIntOption(args, "--connections", 1);
+        int window = CommandLine.getIntOption(args, "--window", 1024);
+        int mtu = CommandLine.getIntOption(args, "--mtu", 0);
+
+        if (CommandLine.hasFlag(args, "--pool-debug")) {
+            BufferPool.DEFAULT.enableLeakDetection();
+        }
+
+        String sourceIP = PacketSender.getTextAfterForwardSlash(InetAddress.getLocalHost().toString());
+        InputStream source = file.equals("-") ? System.in : new FileInputStream(file);
+
+        try (BufferedReader input = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8))) {
+            new BatchSender().run(input, PacketCodec.convertIPv4StringToInt(sourceIP),
+                    PacketCodec.convertIPv4StringToInt(destinationIP), host, port, connections, window, mtu);
+        }
+        BufferPool.DEFAULT.reportLeaks();
+    }
+}
@@ -0,0 +1,293 @@
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct ByteBuffers for the receive and send paths, so that buffers
+ * are borrowed and given back instead of allocated per connection or per
+ * packet.
+ *
+ * Buffers come in a few size classes; a request is served from the smallest
+ * class that fits it, and anything larger than the largest class is allocated
+ * on its own and left to the garbage collector. Each thread keeps a small
+ * cache of free buffers per class, so borrowing and returning a buffer
+ * normally touches no lock. Only when a thread's cache runs empty or full does
+ * it move half a cache's worth of buffers from or to the shared free lists.
+ *
+ * Debug mode (--pool-debug) remembers where every borrowed buffer was
+ * acquired, so buffers that are never released can be reported with their
+ * stack traces, and a buffer released twice fails right away.
+ */
+public class BufferPool {
+
+    static final int[] SIZE_CLASSES = { 512, 4 * 1024, 32 * 1024, 128 * 1024 }; // the last one holds any frame
+    static final int CACHE_SIZE = 16; // free buffers per size class kept by each thread
+    static final long SHARED_BYTES_PER_CLASS = 16 * 1024 * 1024; // free buffers beyond this are dropped
+
+    static final BufferPool DEFAULT = new BufferPool();
+
+    /**
+     * Free buffers of one size class shared by every thread
+     */
+    private static class FreeList {
+        final ByteBuffer[] buffers;
+        int count;
+
+        FreeList(int size) {
+            buffers = new ByteBuffer[(int) Math.max(CACHE_SIZE, SHARED_BYTES_PER_CLASS / size)];
+        }
+    }
+
+    /**
+     * Free buffers kept by one thread, per size class
+     */
+    private static class Cache {
+        final ByteBuffer[][] buffers = new ByteBuffer[SIZE_CLASSES.length][CACHE_SIZE];
+        final int[] counts = new int[SIZE_CLASSES.length];
+    }
+
+    private final FreeList[] shared = new FreeList[SIZE_CLASSES.length];
+    private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+    // per size class; buffers in use are acquired minus released, idle buffers are allocated minus in use and dropped
+    private final LongAdder[] allocated = new LongAdder[SIZE_CLASSES.length];
+    private final LongAdder[] acquired = new LongAdder[SIZE_CLASSES.length];
+    private final LongAdder[] released = new LongAdder[SIZE_CLASSES.length];
+    private final LongAdder[] dropped = new LongAdder[SIZE_CLASSES.length];
+    final LongAdder oversized = new LongAdder(); // requests too large for any size class
+
+    private volatile Map<ByteBuffer, Throwable> outstanding; // debug mode: where each borrowed buffer was acquired
+
+    BufferPool() {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            shared[i] = new FreeList(SIZE_CLASSES[i]);
+            allocated[i] = new LongAdder();
+            acquired[i] = new LongAdder();
+            released[i] = new LongAdder();
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Turns on leak detection. Must be called before the first buffer is
+     * acquired.
+     */
+    void enableLeakDetection() {
+        outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * @param capacity requested capacity in bytes
+     * @return index of the smallest size class that holds it, or -1 if none does
+     */
+    static int sizeClass(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Borrows a cleared direct buffer. Its capacity is that of the size class, so
+     * it may be larger than requested; release() it when done.
+     *
+     * @param capacity minimum capacity in bytes
+     * @return buffer with position 0 and limit equal to its capacity
+     */
+    ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass == -1) {
+            oversized.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        Cache cache = caches.get();
+        if (cache.counts[sizeClass] == 0) {
+            refill(cache, sizeClass);
+        }
+        ByteBuffer buffer;
+        if (cache.counts[sizeClass] > 0) {
+            buffer = cache.buffers[sizeClass][--cache.counts[sizeClass]];
+            cache.buffers[sizeClass][cache.counts[sizeClass]] = null;
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+            allocated[sizeClass].increment();
+        }
+        acquired[sizeClass].increment();
+
+        Map<ByteBuffer, Throwable> outstanding = this.outstanding;
+        if (outstanding != null) {
+            outstanding.put(buffer, new Throwable("acquired here"));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch it afterwards.
+     * Buffers that do not belong to a size class are simply dropped.
+     *
+     * @param buffer buffer from acquire(), or null (ignored)
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass == -1 || SIZE_CLASSES[sizeClass] != buffer.capacity() || !buffer.isDirect()) {
+            return;
+        }
+
+        Map<ByteBuffer, Throwable> outstanding = this.outstanding;
+        if (outstanding != null && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("A buffer was released twice, or was not acquired from this pool");
+        }
+        released[sizeClass].increment();
+
+        Cache cache = caches.get();
+        if (cache.counts[sizeClass] == CACHE_SIZE) {
+            spill(cache, sizeClass, CACHE_SIZE / 2);
+        }
+        cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+    }
+
+    /**
+     * Borrows a larger buffer, copies the contents of the given one into it and
+     * releases the given one
+     *
+     * @param buffer   buffer in write mode (its contents are position 0 to position)
+     * @param capacity minimum capacity of the new buffer
+     * @return the new buffer in write mode, positioned after the copied bytes
+     */
+    ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        release(buffer);
+        return larger;
+    }
+
+    /**
+     * Returns every buffer cached by the calling thread to the shared free lists.
+     * Threads that end (e.g. a virtual thread per connection) call this first so
+     * their cached buffers are not lost.
+     */
+    void releaseThreadCache() {
+        Cache cache = caches.get();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            spill(cache, i, cache.counts[i]);
+        }
+        caches.remove();
+    }
+
+    private void refill(Cache cache, int sizeClass) {
+        FreeList free = shared[sizeClass];
+        synchronized (free) {
+            int count = Math.min(free.count, CACHE_SIZE / 2);
+            for (int i = 0; i < count; i++) {
+                cache.buffers[sizeClass][cache.counts[sizeClass]++] = free.buffers[--free.count];
+                free.buffers[free.count] = null;
+            }
+        }
+    }
+
+    private void spill(Cache cache, int sizeClass, int count) {
+        FreeList free = shared[sizeClass];
+        synchronized (free) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = cache.buffers[sizeClass][--cache.counts[sizeClass]];
+                cache.buffers[sizeClass][cache.counts[sizeClass]] = null;
+                if (free.count < free.buffers.length) {
+                    free.buffers[free.count++] = buffer;
+                } else {
+                    dropped[sizeClass].increment(); // left to the garbage collector
+                }
+            }
+        }
+    }
+
+    // ****************** READING ****************** //
+
+    /**
+     * @param sizeClass index into SIZE_CLASSES
+     * @return buffers of that class ever allocated
+     */
+    long allocated(int sizeClass) {
+        return allocated[sizeClass].sum();
+    }
+
+    /**
+     * @param sizeClass index into SIZE_CLASSES
+     * @return buffers of that class ever acquired (served from the pool or newly allocated)
+     */
+    long acquired(int sizeClass) {
+        return acquired[sizeClass].sum();
+    }
+
+    /**
+     * @param sizeClass index into SIZE_CLASSES
+     * @return buffers of that class currently borrowed
+     */
+    long inUse(int sizeClass) {
+        return acquired[sizeClass].sum() - released[sizeClass].sum();
+    }
+
+    /**
+     * @param sizeClass index into SIZE_CLASSES
+     * @return free buffers of that class held by the pool, in thread caches or shared
+     */
+    long idle(int sizeClass) {
+        return allocated[sizeClass].sum() - inUse(sizeClass) - dropped[sizeClass].sum();
+    }
+
+    /**
+     * @return bytes of direct memory held by the pool, borrowed or free
+     */
+    long totalBytes() {
+        long bytes = 0;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            bytes += (allocated[i].sum() - dropped[i].sum()) * SIZE_CLASSES[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * In debug mode, prints every buffer that is still borrowed, grouped by where
+     * it was acquired. Meant for shutdown, once nothing should be borrowed.
+     *
+     * @return number of buffers still borrowed, or 0 outside debug mode
+     */
+    int reportLeaks() {
+        Map<ByteBuffer, Throwable> outstanding = this.outstanding;
+        if (outstanding == null) {
+            return 0;
+        }
+
+        Map<String, Integer> sites = new TreeMap<>();
+        synchronized (outstanding) {
+            for (Throwable site : outstanding.values()) {
+                StringBuilder trace = new StringBuilder();
+                StackTraceElement[] frames = site.getStackTrace();
+                for (int i = 1; i < Math.min(frames.length, 6); i++) { // frame 0 is acquire() itself
+                    trace.append("\n\tat ").append(frames[i]);
+                }
+                sites.merge(trace.toString(), 1, Integer::sum);
+            }
+        }
+
+        int leaks = 0;
+        for (Map.Entry<String, Integer> site : sites.entrySet()) {
+            System.out.println(site.getValue() + " pooled buffer(s) never released, acquired" + site.getKey());
+            leaks += site.getValue();
+        }
+        if (leaks == 0) {
+            System.out.println("Buffer pool: every buffer was released.");
+        }
+        return leaks;
+    }
+}
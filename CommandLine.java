@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small helpers for reading "--name value" options and "--flag" switches from
+ * the command-line arguments of PacketSender and PacketReceiver.
+ */
+public class CommandLine {
+
+    /**
+     * Checks whether a switch (e.g. --hex) is present
+     *
+     * @param args command-line arguments
+     * @param name switch name including the leading dashes
+     * @return true if the switch is present; otherwise, false
+     */
+    static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the value following an option (e.g. "--port 8888")
+     *
+     * @param args         command-line arguments
+     * @param name         option name including the leading dashes
+     * @param defaultValue value to return if the option is absent
+     * @return the option's value, or defaultValue
+     */
+    static String getOption(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the values of an option that may be given more than once (e.g.
+     * "--route A --route B")
+     *
+     * @param args command-line arguments
+     * @param name option name including the leading dashes
+     * @return every value of the option, in order; empty if absent
+     */
+    static List<String> getOptions(String[] args, String name) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                values.add(args[++i]);
+            }
+        }
+        return values;
+    }
+
+    static int getIntOption(String[] args, String name, int defaultValue) {
+        String value = getOption(args, name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    static long getLongOption(String[] args, String name, long defaultValue) {
+        String value = getOption(args, name, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Returns the arguments that are neither switches nor option values
+     *
+     * @param args              command-line arguments
+     * @param optionsWithValues names of the options that take a value
+     * @return the remaining positional arguments, in order
+     */
+    static String[] positionalArgs(String[] args, String... optionsWithValues) {
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (Arrays.asList(optionsWithValues).contains(args[i])) {
+                i++; // skip the option's value too
+            } else if (!args[i].startsWith("--")) {
+                positional.add(args[i]);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+}
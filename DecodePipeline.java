@@ -0,0 +1,181 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decode stage of the staged NIO receiver (--pipeline).
+ *
+ * The event loops only do I/O: they publish every complete frame into their
+ * own PacketRing and send the replies once they are ready. A fixed set of
+ * decode workers, one per core by default, verify and decode the frames and
+ * pick the replies. Each worker takes its share of every ring and works
+ * through everything that has been published in one batch before it reports
+ * its progress, so a busy receiver pays for one volatile write and one wakeup
+ * of the event loop per batch rather than per packet.
+ *
+ * How an idle worker waits for the next frame is up to the WaitStrategy:
+ * spinning gives the lowest latency and burns a whole core, parking costs
+ * almost nothing while idle but adds wake-up latency.
+ */
+public class DecodePipeline {
+
+    /**
+     * How a worker waits when no frames are waiting for it
+     */
+    enum WaitStrategy {
+        BUSY_SPIN, // never give up the core
+        YIELD, // spin briefly, then let other threads run
+        PARK; // spin briefly, yield briefly, then sleep in short naps
+
+        static final int SPIN_TRIES = 100;
+        static final int YIELD_TRIES = 200;
+        static final long PARK_NANOS = 50_000;
+
+        /**
+         * Waits once
+         *
+         * @param idleCount number of times the worker has waited since it last found work
+         */
+        void idle(int idleCount) {
+            if (this == BUSY_SPIN || idleCount < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (this == YIELD || idleCount < YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+
+        static WaitStrategy parse(String name) {
+            switch (name) {
+                case "spin":
+                    return BUSY_SPIN;
+                case "yield":
+                    return YIELD;
+                case "park":
+                    return PARK;
+                default:
+                    throw new IllegalArgumentException("Wait strategies are spin, yield and park: " + name);
+            }
+        }
+    }
+
+    private final PacketRing[] rings;
+    private final Worker[] workers;
+    private final WaitStrategy waitStrategy;
+    private final PacketLog log;
+    private final ReceiverMetrics metrics;
+    private final FragmentReassembler reassembler;
+    private final PcapWriter capture;
+    private volatile boolean running = true;
+
+    /**
+     * @param rings        one ring per event loop
+     * @param workerCount  number of decode workers; must match the rings' consumer count
+     * @param waitStrategy how idle workers wait
+     * @param log          per-packet log, or null to log nothing
+     * @param metrics      counters updated by the workers
+     * @param reassembler  puts fragmented datagrams back together
+     * @param capture      records every intact packet, or null
+     */
+    DecodePipeline(PacketRing[] rings, int workerCount, WaitStrategy waitStrategy, PacketLog log,
+            ReceiverMetrics metrics, FragmentReassembler reassembler, PcapWriter capture) {
+        this.rings = rings;
+        this.waitStrategy = waitStrategy;
+        this.log = log;
+        this.metrics = metrics;
+        this.reassembler = reassembler;
+        this.capture = capture;
+
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+            worker.join();
+        }
+    }
+
+    /**
+     * Decodes sequences index, index + W, index + 2W, ... of every ring
+     */
+    class Worker extends Thread {
+        private final int index;
+        private final long[] next; // per ring: next sequence for this worker
+        private final PacketView packet = new PacketView();
+        private final PacketView reassembled = new PacketView();
+
+        Worker(int index) {
+            super("decode-worker-" + index);
+            setDaemon(true);
+            this.index = index;
+            this.next = new long[rings.length];
+            Arrays.fill(next, index);
+        }
+
+        @Override
+        public void run() {
+            int idleCount = 0;
+            while (running) {
+                boolean foundWork = false;
+                for (int r = 0; r < rings.length; r++) {
+                    foundWork |= drain(r);
+                }
+
+                if (foundWork) {
+                    idleCount = 0;
+                } else {
+                    waitStrategy.idle(idleCount++);
+                }
+            }
+        }
+
+        /**
+         * Decodes everything published for this worker in one ring
+         *
+         * @return true if there was anything to decode
+         */
+        private boolean drain(int r) {
+            PacketRing ring = rings[r];
+            long available = ring.published.get();
+            long sequence = next[r];
+            if (sequence > available) {
+                return false;
+            }
+
+            long last = sequence;
+            for (; sequence <= available; sequence += workers.length) {
+                decode(ring.slot(sequence));
+                last = sequence;
+            }
+            next[r] = sequence;
+            ring.finished[index].set(last); // one volatile write for the whole batch
+            ring.selector.wakeup(); // the event loop sends the replies
+            return true;
+        }
+
+        private void decode(PacketRing.Slot slot) {
+            long decodeStart = System.nanoTime();
+            packet.wrap(slot.data, 0, slot.length);
+            metrics.recordDecode(System.nanoTime() - decodeStart);
+
+            boolean isAuthentic = log == null
+                    ? PacketReceiver.receiveQuietly(packet, reassembled, reassembler, capture)
+                    : PacketReceiver.receivePacket(packet, reassembled, reassembler, capture, log);
+            metrics.recordPacket(packet, isAuthentic);
+            slot.reply = !isAuthentic ? PacketReceiver.CORRUPT_REPLY
+                    : packet.protocol() == PacketCodec.PROTOCOL_STREAM ? FileSink.REFUSED_REPLY // no --save-dir here
+                    : PacketReceiver.ACK_REPLY;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * File mode for PacketSender: streams a file (or stdin) of any size to a
+ * receiver started with --save-dir, which writes it straight to disk (see
+ * FileSink).
+ *
+ * The input is read one chunk at a time straight into a direct buffer
+ * borrowed from the BufferPool, behind room left for the frame length, the
+ * IPv4 header and a stream header; the headers are then written in front of
+ * the chunk, so the file's bytes are never copied on the sending side and
+ * never held in memory all at once on either side. Packets are pipelined like
+ * BatchSender's, with at most --window chunks waiting for a reply, which
+ * keeps a fast reader from running ahead of a slow receiver.
+ *
+ * Stream packets use IPv4 protocol PROTOCOL_STREAM and start with a 9-byte
+ * stream header: a type byte followed by an 8-byte value.
+ * OPEN   value = size of the file, or -1 if unknown; data = file name (UTF-8)
+ * DATA   value = offset of the chunk in the file; data = the chunk
+ * CLOSE  value = size of the file
+ *
+ * A chunk the receiver reports as corrupted is read again and resent (files
+ * only; stdin cannot be read twice).
+ */
+public class FileSender {
+
+    static final int STREAM_HEADER_LENGTH = 9; // type (1 byte) and value (8 bytes)
+    static final int STREAM_OPEN = 1;
+    static final int STREAM_DATA = 2;
+    static final int STREAM_CLOSE = 3;
+
+    static final int DEFAULT_CHUNK_SIZE = 60 * 1024;
+    static final int MAX_CONTROL_ATTEMPTS = 3; // for OPEN and CLOSE packets reported as corrupted
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final ByteBuffer batch = BufferPool.DEFAULT.acquire(BatchSender.BATCH_BYTES); // frames not written yet
+    private final int sourceIP;
+    private final int destinationIP;
+    private int identification = PacketCodec.nextIdentification();
+
+    private final BlockingQueue<Long> inFlight = new LinkedBlockingQueue<>(); // offsets of chunks waiting for a reply, in send order
+    private final Semaphore window; // one permit per chunk that may be sent before an earlier one is answered
+    private final AtomicLong unanswered = new AtomicLong(); // chunks sent and not answered yet
+    private final Queue<Long> resend = new ConcurrentLinkedQueue<>(); // offsets of chunks reported as corrupted
+    private volatile String failure; // why the transfer stopped early, or null
+    private long packets;
+    private long resent;
+
+    /**
+     * Connects to the receiver
+     *
+     * @param host          receiver host
+     * @param port          receiver port
+     * @param window        maximum chunks waiting for a reply
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @throws IOException if the receiver cannot be reached
+     */
+    FileSender(String host, int port, int window, int sourceIP, int destinationIP) throws IOException {
+        this.sourceIP = sourceIP;
+        this.destinationIP = destinationIP;
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Sends the whole input and waits until the receiver has saved it
+     *
+     * @param input     where to read the data from
+     * @param file      the same input if it can be read again at any offset
+     *                  (needed to resend corrupted chunks), or null
+     * @param size      number of bytes to send, or -1 if unknown
+     * @param name      file name for the receiver
+     * @param chunkSize bytes per packet
+     * @return true if the receiver saved the file; otherwise, false
+     * @throws Exception
+     */
+    boolean send(ReadableByteChannel input, FileChannel file, long size, String name, int chunkSize)
+            throws Exception {
+        int maxChunkSize = PacketCodec.MAX_PACKET_LENGTH - PacketCodec.headerLength() - STREAM_HEADER_LENGTH;
+        if (chunkSize < 1 || chunkSize > maxChunkSize) {
+            throw new IllegalArgumentException("The chunk size must be between 1 and " + maxChunkSize + " bytes: "
+                    + chunkSize);
+        }
+
+        long start = System.nanoTime();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (!sendControl(STREAM_OPEN, size, nameBytes)) {
+            return false;
+        }
+
+        Thread replyReader = new Thread(this::readReplies, "file-sender-replies");
+        replyReader.start();
+        long offset = 0;
+        int length;
+        try {
+            while (failure == null && (length = sendChunk(input, offset, chunkSize)) > 0) {
+                offset += length;
+                if (!resendCorrupted(file, chunkSize)) {
+                    break;
+                }
+            }
+
+            // wait for the last replies, resending whatever is reported as corrupted meanwhile
+            flush();
+            while (failure == null && (unanswered.get() > 0 || !resend.isEmpty())) {
+                if (!resendCorrupted(file, chunkSize)) {
+                    break;
+                }
+                flush();
+                LockSupport.parkNanos(100_000);
+            }
+        } finally {
+            inFlight.add(-1L); // tells the reply reader that nothing else was sent
+            replyReader.join();
+        }
+        if (failure != null) {
+            System.out.println("The transfer failed: " + failure);
+            return false;
+        }
+        if (!sendControl(STREAM_CLOSE, offset, new byte[0])) {
+            return false;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Sent " + name + " (" + offset + " bytes) as " + packets + " packets in "
+                + String.format("%.3f", seconds) + " s (" + String.format("%.1f", offset / seconds / (1024 * 1024))
+                + " MB/s), " + resent + " chunks resent.");
+        return true;
+    }
+
+    /**
+     * Reads the next chunk into the batch and sends it
+     *
+     * @return the number of bytes sent, or 0 at the end of the input
+     */
+    private int sendChunk(ReadableByteChannel input, long offset, int chunkSize)
+            throws IOException, InterruptedException {
+        int dataStart = startFrame(STREAM_DATA, offset, chunkSize);
+        batch.limit(dataStart + chunkSize);
+        while (batch.hasRemaining() && input.read(batch) > 0) {
+            // a pipe or socket may return less than a whole chunk
+        }
+        batch.limit(batch.capacity());
+
+        int length = batch.position() - dataStart;
+        if (length == 0) {
+            batch.position(dataStart - STREAM_HEADER_LENGTH - PacketCodec.headerLength() - 4); // drop the frame
+            return 0;
+        }
+        finishFrame(dataStart);
+        sent(offset);
+        return length;
+    }
+
+    /**
+     * Reads the chunks reported as corrupted again and resends them
+     *
+     * @return false if they cannot be read again (stdin)
+     */
+    private boolean resendCorrupted(FileChannel file, int chunkSize) throws IOException, InterruptedException {
+        Long offset;
+        while (failure == null && (offset = resend.poll()) != null) {
+            if (file == null) {
+                failure = "a chunk was corrupted and cannot be read again from stdin";
+                return false;
+            }
+
+            int dataStart = startFrame(STREAM_DATA, offset, chunkSize);
+            long size = file.size();
+            batch.limit(dataStart + (int) Math.min(chunkSize, size - offset));
+            while (batch.hasRemaining() && file.read(batch, offset + batch.position() - dataStart) > 0) {
+                // read until the whole chunk is back in the batch
+            }
+            batch.limit(batch.capacity());
+            finishFrame(dataStart);
+            sent(offset);
+            resent++;
+        }
+        return true;
+    }
+
+    /**
+     * Sends an OPEN or CLOSE packet and waits for its reply. Must not be called
+     * while the reply reader is running.
+     *
+     * @return true if the receiver acknowledged it
+     */
+    private boolean sendControl(int type, long value, byte[] data) throws IOException {
+        for (int attempt = 0; attempt < MAX_CONTROL_ATTEMPTS; attempt++) {
+            int dataStart = startFrame(type, value, data.length);
+            batch.put(data);
+            finishFrame(dataStart);
+            packets++;
+            flush();
+
+            String reply = in.readUTF();
+            if (reply.equals(PacketReceiver.ACK_MESSAGE)) {
+                return true;
+            }
+            if (!reply.equals(PacketReceiver.CORRUPT_MESSAGE)) {
+                System.out.println("The receiver refused the file: " + reply);
+                return false;
+            }
+        }
+        System.out.println("The receiver kept reporting the transfer's packets as corrupted; giving up.");
+        return false;
+    }
+
+    /**
+     * Leaves room for a frame's length and IPv4 header at the batch's position,
+     * writes the stream header after them and positions the batch where the data
+     * goes
+     *
+     * @return index of the first data byte
+     */
+    private int startFrame(int type, long value, int dataLength) throws IOException {
+        int frameLength = 4 + PacketCodec.headerLength() + STREAM_HEADER_LENGTH + dataLength;
+        if (batch.remaining() < frameLength) {
+            flush();
+        }
+
+        int streamHeader = batch.position() + 4 + PacketCodec.headerLength();
+        batch.put(streamHeader, (byte) type).putLong(streamHeader + 1, value);
+        batch.position(streamHeader + STREAM_HEADER_LENGTH);
+        return batch.position();
+    }
+
+    /**
+     * Writes the IPv4 header and frame length in front of the stream header and
+     * data, which end at the batch's position
+     */
+    private void finishFrame(int dataStart) {
+        int streamHeader = dataStart - STREAM_HEADER_LENGTH;
+        int packetStart = streamHeader - PacketCodec.headerLength();
+        int packetLength = PacketCodec.encodeHeader(batch, packetStart, batch.position() - streamHeader,
+                identification++ & 0xFFFF, PacketCodec.PROTOCOL_STREAM, sourceIP, destinationIP);
+        batch.putInt(packetStart - 4, packetLength);
+    }
+
+    /**
+     * Counts a chunk as waiting for its reply. Blocks while the window of
+     * unanswered chunks is full.
+     */
+    private void sent(long offset) throws IOException, InterruptedException {
+        packets++;
+        unanswered.incrementAndGet();
+
+        // make sure everything queued is on the wire before waiting for replies to free the window
+        if (!window.tryAcquire()) {
+            flush();
+            window.acquire();
+        }
+        inFlight.add(offset);
+    }
+
+    /**
+     * Writes every frame in the batch
+     */
+    private void flush() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    private void readReplies() {
+        try {
+            while (true) {
+                long offset = inFlight.take();
+                if (offset < 0) {
+                    break;
+                }
+
+                String reply = in.readUTF();
+                if (reply.equals(PacketReceiver.CORRUPT_MESSAGE)) {
+                    resend.add(offset);
+                } else if (!reply.equals(PacketReceiver.ACK_MESSAGE)) {
+                    failure = "the receiver replied \"" + reply + "\"";
+                }
+                unanswered.decrementAndGet();
+                window.release();
+            }
+        } catch (IOException e) {
+            failure = "lost the connection: " + e.getMessage();
+            window.release(); // nothing else will be answered; don't leave the sending thread blocked on the window
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the connection and gives the batch back to the pool
+     */
+    void close() throws IOException {
+        channel.close();
+        BufferPool.DEFAULT.release(batch);
+    }
+
+    /**
+     * Entry point for "java PacketSender --send-file <file|-> ..."
+     *
+     * Options:
+     * --send-file FILE    file to send; "-" reads stdin
+     * --name NAME         file name the receiver saves it as (default the file's own name, or "stdin")
+     * --chunk N           bytes of the file per packet (default 61440)
+     * --window N          unanswered chunks allowed at once (default 64)
+     * --dest IP           destination IPv4 address written into the packets (default 127.0.0.1)
+     * --host HOST         receiver to connect to (default 127.0.0.1)
+     * --port N            receiver port (default 8888)
+     *
+     * @param args
+     * @throws Exception
+     */
+    static void main(String[] args) throws Exception {
+        String file = CommandLine.getOption(args, "--send-file", "-");
+        String destinationIP = CommandLine.getOption(args, "--dest", "127.0.0.1");
+        String host = CommandLine.getOption(args, "--host", "127.0.0.1");
+        int port = CommandLine.getIntOption(args, "--port", 8888);
+        int chunkSize = CommandLine.getIntOption(args, "--chunk", DEFAULT_CHUNK_SIZE);
+        int window = CommandLine.getIntOption(args, "--window", 64);
+        String sourceIP = PacketSender.getTextAfterForwardSlash(InetAddress.getLocalHost().toString());
+
+        FileChannel channel = file.equals("-") ? null : FileChannel.open(Path.of(file));
+        String name = CommandLine.getOption(args, "--name",
+                channel == null ? "stdin" : Path.of(file).getFileName().toString());
+        FileSender sender = new FileSender(host, port, window, PacketCodec.convertIPv4StringToInt(sourceIP),
+                PacketCodec.convertIPv4StringToInt(destinationIP));
+        boolean saved;
+        try (ReadableByteChannel input = channel != null ? channel : Channels.newChannel(System.in)) {
+            saved = sender.send(input, channel, channel != null ? channel.size() : -1, name, chunkSize);
+        } finally {
+            sender.close();
+        }
+        if (!saved) {
+            System.exit(1);
+        }
+    }
+}
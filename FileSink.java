@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Receiving end of a file transfer (see FileSender): writes the chunks that
+ * arrive on one connection straight to disk, so a file of any size is received
+ * without ever being held in memory.
+ *
+ * The file is written as NAME.part in the save directory, each chunk at the
+ * offset it carries, and moved to NAME once the sender closes the stream and
+ * every byte has arrived. A transfer cut short (the connection drops, or the
+ * byte count does not add up) leaves the .part file behind.
+ *
+ * Transfers are refused unless the receiver was started with --save-dir.
+ */
+public class FileSink {
+
+    static final String REFUSED_MESSAGE = "I could not save your file. Check that I was started with --save-dir and that your transfer is complete.";
+    static final byte[] REFUSED_REPLY = PacketReceiver.encodeReply(REFUSED_MESSAGE);
+
+    private final Path directory; // null when refusing every transfer
+    private FileChannel file; // null between transfers
+    private Path partialPath;
+    private Path finalPath;
+    private long expectedSize; // -1 when the sender did not know it up front (e.g. stdin)
+    private long bytesWritten;
+    private long startNanos;
+
+    /**
+     * @param directory where received files are saved, or null to refuse
+     *                  transfers
+     */
+    FileSink(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Handles one intact stream packet (protocol PacketCodec.PROTOCOL_STREAM)
+     *
+     * @param packet view over the packet
+     * @return the reply to send: PacketReceiver.ACK_REPLY, or REFUSED_REPLY if
+     *         the packet could not be used
+     */
+    byte[] receive(PacketView packet) {
+        if (directory == null || packet.isFragment() || packet.payloadLength() < FileSender.STREAM_HEADER_LENGTH) {
+            return REFUSED_REPLY;
+        }
+
+        ByteBuffer payload = packet.payload(); // big-endian, like the rest of the packet
+        int type = payload.get(0);
+        long value = payload.getLong(1);
+        payload.position(FileSender.STREAM_HEADER_LENGTH);
+        try {
+            switch (type) {
+                case FileSender.STREAM_OPEN:
+                    return open(StandardCharsets.UTF_8.decode(payload).toString(), value);
+                case FileSender.STREAM_DATA:
+                    return write(payload, value);
+                case FileSender.STREAM_CLOSE:
+                    return finish(value);
+                default:
+                    return REFUSED_REPLY;
+            }
+        } catch (IOException e) {
+            abandon("failed: " + e.getMessage());
+            return REFUSED_REPLY;
+        }
+    }
+
+    private byte[] open(String name, long size) throws IOException {
+        close(); // a new transfer replaces one that never finished
+
+        Path fileName;
+        try {
+            fileName = Path.of(name).getFileName(); // never outside the save directory
+        } catch (InvalidPathException e) {
+            fileName = null;
+        }
+        String text = fileName == null ? "" : fileName.toString();
+        if (text.isEmpty() || text.equals(".") || text.equals("..")
+                || !directory.equals(directory.resolve(fileName).getParent())) {
+            System.out.println("Refused a file with an unusable name: \"" + name + "\"");
+            return REFUSED_REPLY;
+        }
+
+        finalPath = directory.resolve(fileName);
+        partialPath = directory.resolve(fileName + ".part");
+        file = FileChannel.open(partialPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        expectedSize = size;
+        bytesWritten = 0;
+        startNanos = System.nanoTime();
+        return PacketReceiver.ACK_REPLY;
+    }
+
+    private byte[] write(ByteBuffer chunk, long position) throws IOException {
+        if (file == null || position < 0) {
+            return REFUSED_REPLY;
+        }
+        if (expectedSize >= 0 && position > expectedSize - chunk.remaining()) {
+            return REFUSED_REPLY; // past the end of the file the sender announced
+        }
+
+        bytesWritten += chunk.remaining();
+        while (chunk.hasRemaining()) {
+            position += file.write(chunk, position); // positional, so resent chunks land where they belong
+        }
+        return PacketReceiver.ACK_REPLY;
+    }
+
+    private byte[] finish(long size) throws IOException {
+        if (file == null) {
+            return REFUSED_REPLY;
+        }
+        if (bytesWritten != size || (expectedSize >= 0 && expectedSize != size)) {
+            abandon("ended with " + bytesWritten + " of " + size + " bytes");
+            return REFUSED_REPLY;
+        }
+
+        file.truncate(size);
+        file.close();
+        file = null;
+        Files.move(partialPath, finalPath, StandardCopyOption.REPLACE_EXISTING);
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println("Received " + finalPath + ": " + size + " bytes in " + String.format("%.3f", seconds)
+                + " s (" + String.format("%.1f", size / seconds / (1024 * 1024)) + " MB/s)");
+        return PacketReceiver.ACK_REPLY;
+    }
+
+    /**
+     * Closes a transfer that has not finished, keeping what arrived in the .part
+     * file. Called when the connection closes; does nothing between transfers.
+     */
+    void close() {
+        if (file != null) {
+            abandon("stopped after " + bytesWritten + " bytes");
+        }
+    }
+
+    private void abandon(String reason) {
+        System.out.println("Transfer of " + finalPath + " " + reason + "; kept what arrived in " + partialPath);
+        try {
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+        file = null;
+    }
+}
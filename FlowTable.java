@@ -0,0 +1,306 @@
+import java.util.Arrays;
+
+/**
+ * Per-flow statistics for a long-running PacketReceiver. A flow is every packet
+ * from one source address to one destination address.
+ *
+ * Senders number the datagrams of a flow with increasing identifications, so
+ * the receiver can tell lost, duplicated and reordered packets apart. Each
+ * flow remembers the highest identification seen and a 64-bit bitmap of which
+ * of the 64 identifications up to it have arrived. A packet behind the highest
+ * one either fills its bit (reordered) or finds it already set (duplicate),
+ * and an identification whose bit is still clear when the window moves past
+ * it counts as lost. Identifications are 16 bits and wrap, so they are
+ * compared with serial number arithmetic (RFC 1982).
+ *
+ * Nothing is boxed: flows live in parallel primitive arrays indexed by entry
+ * number, keyed by the source and destination packed into a long, and found
+ * through an open-addressing index with linear probing. The table has a fixed
+ * capacity. The entries also form a least-recently-used list, so flows idle
+ * for longer than the timeout are dropped first, and when the table is full
+ * the least recently seen flow makes room. The totals include dropped flows.
+ *
+ * The table is shared by every connection of a receiver (each shard of a
+ * sharded receiver has its own) and all its methods are synchronized, so it
+ * puts a lock on the per-packet path; it is only created when asked for with
+ * --flow-table.
+ */
+public class FlowTable {
+
+    static final int DEFAULT_IDLE_SECONDS = 60;
+    static final int WINDOW = 64; // identifications tracked behind the highest one (bits in a long)
+    static final int RESYNC_GAP = 4096; // a jump further back than this is a restarted sender, not a late packet
+
+    // entries, indexed by entry number; an entry never moves while its flow is tracked
+    private final long[] keys;
+    private final int[] highest; // highest identification seen
+    private final long[] received; // bit i: identification highest - i has arrived
+    private final long[] packets;
+    private final long[] bytes;
+    private final long[] lost;
+    private final long[] duplicates;
+    private final long[] reordered;
+    private final long[] lastSeen; // nanoTime of the flow's latest packet
+    private final int[] newer; // LRU links towards the newest entry, -1 at the end
+    private final int[] older; // LRU links towards the oldest entry, -1 at the end; free entries are chained here
+    private int newest = -1;
+    private int oldest = -1;
+    private int free; // first free entry
+    private int size;
+
+    private final int[] index; // entry number + 1, or 0 for an empty slot
+    private final int mask;
+    private final long idleTimeoutNanos;
+
+    // totals over every flow ever tracked
+    long totalLost;
+    long totalDuplicates;
+    long totalReordered;
+    long totalLate; // arrived after the window had moved past them (and so were first counted as lost)
+    long totalResyncs;
+    long flowsEvicted; // to make room in a full table
+    long flowsExpired; // idle for longer than the timeout
+
+    /**
+     * @param capacity         most flows tracked at once
+     * @param idleTimeoutNanos how long a flow may go without packets before it is dropped
+     */
+    FlowTable(int capacity, long idleTimeoutNanos) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The flow table needs room for at least one flow: " + capacity);
+        }
+        keys = new long[capacity];
+        highest = new int[capacity];
+        received = new long[capacity];
+        packets = new long[capacity];
+        bytes = new long[capacity];
+        lost = new long[capacity];
+        duplicates = new long[capacity];
+        reordered = new long[capacity];
+        lastSeen = new long[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            older[i] = i + 1 < capacity ? i + 1 : -1;
+        }
+
+        index = new int[Integer.highestOneBit(capacity * 2 - 1) * 2]; // at most half full
+        mask = index.length - 1;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    static long key(int sourceAddress, int destinationAddress) {
+        return ((long) sourceAddress << 32) | (destinationAddress & 0xFFFFFFFFL);
+    }
+
+    private int slotOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads neighbouring addresses
+        return (int) (hash >>> 32) & mask;
+    }
+
+    /**
+     * Accounts for one intact packet
+     *
+     * @param packet   view over the packet, valid
+     * @param nowNanos System.nanoTime()
+     */
+    synchronized void record(PacketView packet, long nowNanos) {
+        expireIdle(nowNanos);
+
+        long key = key(packet.sourceAddress(), packet.destinationAddress());
+        int entry = find(key);
+        boolean sequenced = packet.fragmentOffset() == 0; // later fragments repeat the first one's identification
+        if (entry == -1) {
+            entry = insert(key);
+            highest[entry] = packet.identification();
+            received[entry] = -1L; // nothing before the first packet counts as lost
+            packets[entry] = 1;
+            bytes[entry] = packet.length();
+            lastSeen[entry] = nowNanos;
+            return;
+        }
+
+        touch(entry);
+        lastSeen[entry] = nowNanos;
+        packets[entry]++;
+        bytes[entry] += packet.length();
+        if (sequenced) {
+            sequence(entry, packet.identification());
+        }
+    }
+
+    private void sequence(int entry, int identification) {
+        int delta = (short) (identification - highest[entry]); // how far ahead, modulo 2^16
+        if (delta < -RESYNC_GAP) {
+            highest[entry] = identification;
+            received[entry] = -1L;
+            totalResyncs++;
+        } else if (delta > 0) {
+            // the window moves ahead; identifications leaving it without having arrived are lost
+            long missed;
+            if (delta < WINDOW) {
+                missed = delta - Long.bitCount(received[entry] >>> (WINDOW - delta));
+                received[entry] = (received[entry] << delta) | 1;
+            } else {
+                missed = (WINDOW - Long.bitCount(received[entry])) + (delta - WINDOW);
+                received[entry] = 1;
+            }
+            highest[entry] = identification;
+            lost[entry] += missed;
+            totalLost += missed;
+        } else if (-delta < WINDOW) {
+            long bit = 1L << -delta;
+            if ((received[entry] & bit) != 0) {
+                duplicates[entry]++;
+                totalDuplicates++;
+            } else {
+                received[entry] |= bit;
+                reordered[entry]++;
+                totalReordered++;
+            }
+        } else {
+            // too far behind to tell: most likely a packet already counted as lost
+            totalLate++;
+            if (lost[entry] > 0) {
+                lost[entry]--;
+                totalLost--;
+            }
+        }
+    }
+
+    // ****************** HASH INDEX ****************** //
+
+    private int find(long key) {
+        for (int slot = slotOf(key);; slot = (slot + 1) & mask) {
+            int entry = index[slot] - 1;
+            if (entry == -1 || keys[entry] == key) {
+                return entry;
+            }
+        }
+    }
+
+    private int insert(long key) {
+        if (size == keys.length) {
+            flowsEvicted++;
+            remove(oldest);
+        }
+
+        int entry = free;
+        free = older[entry];
+        keys[entry] = key;
+        lost[entry] = 0;
+        duplicates[entry] = 0;
+        reordered[entry] = 0;
+        size++;
+
+        int slot = slotOf(key);
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = entry + 1;
+
+        newer[entry] = -1;
+        older[entry] = newest;
+        if (newest != -1) {
+            newer[newest] = entry;
+        }
+        newest = entry;
+        if (oldest == -1) {
+            oldest = entry;
+        }
+        return entry;
+    }
+
+    /**
+     * Drops a flow: unlinks it from the LRU list, frees its entry and removes it
+     * from the index, shifting back any later entries of its probe run
+     */
+    private void remove(int entry) {
+        unlink(entry);
+        older[entry] = free;
+        free = entry;
+        size--;
+
+        int slot = slotOf(keys[entry]);
+        while (index[slot] != entry + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        for (slot = (slot + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int home = slotOf(keys[index[slot] - 1]);
+            // move the entry into the hole unless its home lies cyclically in (hole, slot]
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                index[hole] = index[slot];
+                hole = slot;
+            }
+        }
+        index[hole] = 0;
+    }
+
+    // ****************** LRU LIST ****************** //
+
+    private void unlink(int entry) {
+        if (newer[entry] != -1) {
+            older[newer[entry]] = older[entry];
+        } else {
+            newest = older[entry];
+        }
+        if (older[entry] != -1) {
+            newer[older[entry]] = newer[entry];
+        } else {
+            oldest = newer[entry];
+        }
+    }
+
+    private void touch(int entry) {
+        if (entry == newest) {
+            return;
+        }
+        unlink(entry);
+        newer[entry] = -1;
+        older[entry] = newest;
+        newer[newest] = entry;
+        newest = entry;
+        if (oldest == -1) {
+            oldest = entry;
+        }
+    }
+
+    private void expireIdle(long nowNanos) {
+        while (oldest != -1 && nowNanos - lastSeen[oldest] > idleTimeoutNanos) {
+            flowsExpired++;
+            remove(oldest);
+        }
+    }
+
+    // ****************** READING ****************** //
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Prints the flows that sent the most packets
+     *
+     * @param limit most flows to print
+     */
+    synchronized void printTopFlows(int limit) {
+        Integer[] entries = new Integer[size];
+        int count = 0;
+        for (int entry = newest; entry != -1; entry = older[entry]) {
+            entries[count++] = entry;
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(packets[b], packets[a]));
+
+        System.out.println("Flows: " + size + " tracked (" + flowsEvicted + " evicted, " + flowsExpired
+                + " expired); " + totalLost + " lost, " + totalDuplicates + " duplicated, " + totalReordered
+                + " reordered, " + totalLate + " late");
+        for (int i = 0; i < Math.min(limit, count); i++) {
+            int entry = entries[i];
+            System.out.println("  " + PacketCodec.convertIntToIPv4String((int) (keys[entry] >>> 32)) + " -> "
+                    + PacketCodec.convertIntToIPv4String((int) keys[entry]) + ": " + packets[entry] + " packets, "
+                    + bytes[entry] + " bytes, " + lost[entry] + " lost, " + duplicates[entry] + " duplicated, "
+                    + reordered[entry] + " reordered");
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Puts fragmented IPv4 datagrams back together on the receiving side.
+ *
+ * Fragments are grouped by (source, destination, identification, protocol).
+ * Each partial datagram keeps its payload bytes and a bit per 8-byte block
+ * that has arrived, which makes duplicate and overlapping fragments cheap to
+ * handle: bytes that already arrived are kept (the first copy wins) and only
+ * the new blocks of an overlapping fragment are copied in.
+ *
+ * Memory is bounded two ways. A partial datagram is dropped once it is older
+ * than the timeout, and when the buffered bytes of all partial datagrams would
+ * exceed the memory cap the oldest ones are dropped first. Each partial
+ * datagram is charged DATAGRAM_OVERHEAD bytes on top of its payload, so a
+ * flood of tiny fragments with distinct identifications is bounded by the cap
+ * too. Partial datagrams are kept in creation order, so both checks only ever
+ * look at the oldest entries.
+ *
+ * Instances are thread-safe; fragments of one datagram may arrive on different
+ * connections.
+ */
+public class FragmentReassembler {
+
+    static final long DEFAULT_TIMEOUT_NANOS = 30_000_000_000L; // 30 seconds, as recommended for IPv4 hosts
+    static final long DEFAULT_MEMORY_CAP = 64L * 1024 * 1024;
+    // the key, map entry, PartialDatagram, BitSet and a header of up to 60 bytes
+    static final int DATAGRAM_OVERHEAD = 256;
+
+    /**
+     * Identifies the datagram a fragment belongs to
+     */
+    static final class Key {
+        final int sourceAddress;
+        final int destinationAddress;
+        final int identification;
+        final int protocol;
+
+        Key(int sourceAddress, int destinationAddress, int identification, int protocol) {
+            this.sourceAddress = sourceAddress;
+            this.destinationAddress = destinationAddress;
+            this.identification = identification;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return sourceAddress == key.sourceAddress && destinationAddress == key.destinationAddress
+                    && identification == key.identification && protocol == key.protocol;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((sourceAddress * 31 + destinationAddress) * 31 + identification) * 31 + protocol;
+        }
+    }
+
+    /**
+     * A datagram whose fragments have not all arrived yet
+     */
+    static final class PartialDatagram {
+        final long createdNanos;
+        byte[] header; // header of the first fragment (offset 0), once it has arrived
+        byte[] payload = new byte[0]; // grows as fragments further into the datagram arrive
+        final BitSet blocks = new BitSet(); // 8-byte blocks of the payload received so far
+        int payloadLength = -1; // known once the last fragment (More Fragments clear) has arrived
+
+        PartialDatagram(long createdNanos) {
+            this.createdNanos = createdNanos;
+        }
+
+        boolean isComplete() {
+            return header != null && payloadLength >= 0 && blocks.nextClearBit(0) >= (payloadLength + 7) / 8;
+        }
+    }
+
+    private final LinkedHashMap<Key, PartialDatagram> partials = new LinkedHashMap<>(); // oldest first
+    private final long timeoutNanos;
+    private final long memoryCap;
+    private long bufferedBytes;
+
+    // statistics
+    long datagramsReassembled;
+    long datagramsTimedOut;
+    long datagramsEvictedForMemory;
+    long datagramsDiscarded; // inconsistent fragments (e.g. two different last fragments)
+    long duplicateFragments;
+    long overlappingFragments;
+
+    FragmentReassembler(long timeoutNanos, long memoryCap) {
+        this.timeoutNanos = timeoutNanos;
+        this.memoryCap = memoryCap;
+    }
+
+    FragmentReassembler() {
+        this(DEFAULT_TIMEOUT_NANOS, DEFAULT_MEMORY_CAP);
+    }
+
+    /**
+     * Adds a verified fragment to its datagram
+     *
+     * @param fragment  view over a valid fragment (isFragment() is true)
+     * @param nowNanos  current System.nanoTime()
+     * @return the whole datagram as an unfragmented packet once its last missing
+     *         fragment arrives; otherwise, null
+     */
+    synchronized byte[] accept(PacketView fragment, long nowNanos) {
+        evictExpired(nowNanos);
+
+        int start = fragment.fragmentOffset() * 8;
+        int length = fragment.payloadLength();
+        int end = start + length;
+        boolean isLast = !fragment.moreFragments();
+
+        // every fragment but the last must cover whole 8-byte blocks, and the datagram must fit in 64 KB
+        if ((!isLast && (length == 0 || length % 8 != 0)) || end > PacketCodec.MAX_PAYLOAD_LENGTH) {
+            datagramsDiscarded++;
+            return null;
+        }
+
+        Key key = new Key(fragment.sourceAddress(), fragment.destinationAddress(), fragment.identification(),
+                fragment.protocol());
+        PartialDatagram datagram = partials.get(key);
+        if (datagram == null) {
+            if (!makeRoom(DATAGRAM_OVERHEAD, null)) {
+                datagramsEvictedForMemory++; // the cap cannot hold even an empty datagram
+                return null;
+            }
+            datagram = new PartialDatagram(nowNanos);
+            partials.put(key, datagram);
+            bufferedBytes += DATAGRAM_OVERHEAD;
+        }
+
+        // the last fragment fixes the datagram's length; anything that contradicts it is bogus
+        if (isLast) {
+            if (datagram.payloadLength >= 0 && datagram.payloadLength != end
+                    || datagram.blocks.length() > (end + 7) / 8) {
+                discard(key, datagram);
+                return null;
+            }
+            datagram.payloadLength = end;
+        } else if (datagram.payloadLength >= 0 && end > datagram.payloadLength) {
+            discard(key, datagram);
+            return null;
+        }
+
+        int firstBlock = start / 8;
+        int lastBlock = (end + 7) / 8; // exclusive
+        if (length > 0 && datagram.blocks.nextClearBit(firstBlock) >= lastBlock) {
+            duplicateFragments++; // every block already arrived
+        } else {
+            int received = datagram.blocks.nextSetBit(firstBlock);
+            if (received != -1 && received < lastBlock) {
+                overlappingFragments++; // some of this fragment already arrived in another fragment
+            }
+            if (!grow(datagram, end)) {
+                return null;
+            }
+            copyNewBlocks(fragment, datagram, firstBlock, lastBlock, end);
+        }
+
+        if (start == 0 && datagram.header == null) {
+            datagram.header = new byte[fragment.headerLength()];
+            copyHeader(fragment, datagram.header);
+        }
+
+        if (!datagram.isComplete()) {
+            return null;
+        }
+        if (datagram.header.length + datagram.payloadLength > PacketCodec.MAX_PACKET_LENGTH) {
+            discard(key, datagram); // header options pushed the datagram over 64 KB
+            return null;
+        }
+
+        partials.remove(key);
+        bufferedBytes -= footprint(datagram);
+        datagramsReassembled++;
+        return buildPacket(datagram);
+    }
+
+    /**
+     * Copies only the blocks of a fragment that have not arrived yet, so earlier
+     * data is never overwritten by an overlapping fragment
+     */
+    private static void copyNewBlocks(PacketView fragment, PartialDatagram datagram, int firstBlock, int lastBlock,
+            int end) {
+        byte[] source = fragment.array();
+        byte[] copy = null;
+        if (source == null) { // fragment is in a direct buffer
+            copy = new byte[fragment.payloadLength()];
+            fragment.copyPayload(copy, 0);
+        }
+
+        int block = datagram.blocks.nextClearBit(firstBlock);
+        while (block < lastBlock) {
+            int runEnd = Math.min(datagram.blocks.nextSetBit(block) == -1 ? lastBlock
+                    : datagram.blocks.nextSetBit(block), lastBlock);
+            int from = block * 8;
+            int to = Math.min(runEnd * 8, end);
+            int fragmentIndex = from - firstBlock * 8;
+            if (copy != null) {
+                System.arraycopy(copy, fragmentIndex, datagram.payload, from, to - from);
+            } else {
+                System.arraycopy(source, fragment.payloadOffset() + fragmentIndex, datagram.payload, from, to - from);
+            }
+            datagram.blocks.set(block, runEnd);
+            block = datagram.blocks.nextClearBit(runEnd);
+        }
+    }
+
+    private static void copyHeader(PacketView fragment, byte[] header) {
+        byte[] source = fragment.array();
+        if (source != null) {
+            System.arraycopy(source, fragment.payloadOffset() - header.length, header, 0, header.length);
+        } else {
+            fragment.copyHeader(header, 0);
+        }
+    }
+
+    /**
+     * Makes room for payload bytes up to end, evicting the oldest datagrams if the
+     * memory cap would be exceeded
+     *
+     * @return false if the datagram itself had to be evicted
+     */
+    private boolean grow(PartialDatagram datagram, int end) {
+        if (datagram.payload.length >= end) {
+            return true;
+        }
+
+        // grow to the final length when it is known, otherwise to the end of this fragment
+        int capacity = datagram.payloadLength >= 0 ? datagram.payloadLength : end;
+        int extra = capacity - datagram.payload.length;
+        if (!makeRoom(extra, datagram)) {
+            return false;
+        }
+
+        datagram.payload = Arrays.copyOf(datagram.payload, capacity);
+        bufferedBytes += extra;
+        return true;
+    }
+
+    /**
+     * Evicts the oldest datagrams until extra more bytes fit under the memory cap
+     *
+     * @param datagram the datagram the bytes are for, or null for a new one
+     * @return false if the bytes still do not fit, or datagram itself was evicted
+     */
+    private boolean makeRoom(long extra, PartialDatagram datagram) {
+        Iterator<PartialDatagram> oldest = partials.values().iterator();
+        while (bufferedBytes + extra > memoryCap && oldest.hasNext()) {
+            PartialDatagram victim = oldest.next();
+            oldest.remove();
+            bufferedBytes -= footprint(victim);
+            datagramsEvictedForMemory++;
+            if (victim == datagram) {
+                return false;
+            }
+        }
+        return bufferedBytes + extra <= memoryCap;
+    }
+
+    /**
+     * @return the bytes charged to a partial datagram against the memory cap
+     */
+    private static long footprint(PartialDatagram datagram) {
+        return DATAGRAM_OVERHEAD + datagram.payload.length;
+    }
+
+    private void evictExpired(long nowNanos) {
+        Iterator<PartialDatagram> oldest = partials.values().iterator();
+        while (oldest.hasNext()) {
+            PartialDatagram datagram = oldest.next();
+            if (nowNanos - datagram.createdNanos < timeoutNanos) {
+                break; // everything after this one is newer
+            }
+            oldest.remove();
+            bufferedBytes -= footprint(datagram);
+            datagramsTimedOut++;
+        }
+    }
+
+    private void discard(Key key, PartialDatagram datagram) {
+        partials.remove(key);
+        bufferedBytes -= footprint(datagram);
+        datagramsDiscarded++;
+    }
+
+    /**
+     * Builds the unfragmented packet: the first fragment's header with the total
+     * length, flags, fragment offset and checksum rewritten, followed by the
+     * payload
+     */
+    private static byte[] buildPacket(PartialDatagram datagram) {
+        int headerLength = datagram.header.length;
+        byte[] packet = new byte[headerLength + datagram.payloadLength];
+        System.arraycopy(datagram.header, 0, packet, 0, headerLength);
+        System.arraycopy(datagram.payload, 0, packet, headerLength, datagram.payloadLength);
+
+        PacketCodec.writeShort(packet, 2, packet.length); // total length
+        PacketCodec.writeShort(packet, 6, 0); // no flags, offset 0
+        PacketCodec.writeShort(packet, 10, 0);
+        PacketCodec.writeShort(packet, 10, PacketCodec.headerChecksum(packet, 0, headerLength));
+        return packet;
+    }
+
+    /**
+     * @return number of datagrams still waiting for fragments
+     */
+    synchronized int pendingDatagrams() {
+        return partials.size();
+    }
+
+    synchronized long bufferedBytes() {
+        return bufferedBytes;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Fixed-size, high-resolution histogram of latencies in nanoseconds.
+ *
+ * Values are grouped into power-of-two ranges, each split into SUB_BUCKETS
+ * linear buckets, so every recorded value is kept to within 1/SUB_BUCKETS
+ * (under 1%) of its true value from 1 ns up to several hours. Recording is a
+ * couple of shifts and an array increment and never allocates. A histogram is
+ * not thread-safe: give each thread its own and add() them together at the
+ * end.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128 buckets per power of two
+    static final int RANGES = 64 - SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(RANGES + 1) * SUB_BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Records one latency
+     *
+     * @param nanos latency in nanoseconds (negative values count as 0)
+     */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one
+     *
+     * @param other histogram to merge in
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; // small values are recorded exactly
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // bucket width is 2^shift
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS; // the SUB_BUCKET_BITS bits below the top bit
+        return (shift + 1) * SUB_BUCKETS + subBucket; // range 1 is [128, 256), range 2 is [256, 512), ...
+    }
+
+    private static long highestValueAt(int index) {
+        int range = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (range == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (range - 1)) - 1;
+    }
+
+    /**
+     * @param percentile between 0 and 100 (e.g. 99.9)
+     * @return the smallest recorded value that this percentage of values is less
+     *         than or equal to (within the histogram's precision)
+     */
+    long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDP relay that sits between a sender and a receiver and behaves like a slow,
+ * lossy link, so the sliding-window protocol can be tried on one machine as if
+ * the two ends were far apart.
+ *
+ * Every datagram is held back for the one-way delay before it is passed on,
+ * in both directions. Datagrams can also be dropped at random, or have a bit
+ * of their IPv4 header flipped on the way to the receiver so that they fail
+ * verification, or a bit of their payload, which only a payload checksum
+ * catches. With a rate limit each direction becomes a link of that many
+ * megabits per second with a queue in front of it; datagrams that find the
+ * queue full are dropped, as at a congested router.
+ *
+ * The relay serves one sender at a time: replies go back to whoever sent the
+ * latest datagram. It runs on one thread that waits on a Selector.
+ */
+public class LinkEmulator {
+
+    static final int DEFAULT_QUEUE = 10_000; // datagrams waiting for a rate-limited link
+    static final long SPIN_NANOS = 1_000_000; // closer than this to the next departure, the relay naps instead of selecting
+
+    /**
+     * A datagram on the link
+     */
+    private static class InFlight {
+        final byte[] data;
+        final long due; // nanoTime at which it comes out of the far end
+
+        InFlight(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    /**
+     * One direction of the link
+     */
+    private class Direction {
+        final String name;
+        final ArrayDeque<InFlight> queue = new ArrayDeque<>(); // in order of arrival, which is also order of delivery
+        long linkFreeAt; // when the rate-limited link finishes sending what is queued
+        long forwarded;
+        long lost;
+        long corrupted;
+        long queueDrops;
+
+        Direction(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Puts a datagram on the link, unless it is lost or finds the link's queue
+         * full
+         */
+        void offer(ByteBuffer datagram, long now, boolean mayCorrupt) {
+            if (random.nextDouble() < lossRate) {
+                lost++;
+                return;
+            }
+            byte[] data = new byte[datagram.remaining()];
+            datagram.get(data);
+            if (mayCorrupt && data.length >= PacketCodec.HEADER_LENGTH && random.nextDouble() < corruptRate) {
+                data[random.nextInt(PacketCodec.HEADER_LENGTH)] ^= (byte) (1 << random.nextInt(8));
+                corrupted++;
+            }
+            int headerLength = data.length > 0 ? (data[0] & 0x0F) * 4 : 0;
+            if (mayCorrupt && data.length > headerLength && random.nextDouble() < corruptPayloadRate) {
+                data[headerLength + random.nextInt(data.length - headerLength)] ^= (byte) (1 << random.nextInt(8));
+                corrupted++;
+            }
+
+            long departure = now;
+            if (bitsPerSecond > 0) {
+                // the backlog is whatever the link has not finished sending yet, not what is already on the wire
+                long transmissionNanos = data.length * 8L * 1_000_000_000L / bitsPerSecond;
+                if (linkFreeAt - now > queueLimit * transmissionNanos) {
+                    queueDrops++;
+                    return;
+                }
+                linkFreeAt = Math.max(linkFreeAt, now) + transmissionNanos;
+                departure = linkFreeAt;
+            }
+            queue.add(new InFlight(data, departure + delayNanos));
+        }
+
+        /**
+         * @return nanoTime at which the oldest datagram is due, or Long.MAX_VALUE if none is
+         */
+        long nextDue() {
+            return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().due;
+        }
+
+        /**
+         * Sends every datagram that is due
+         */
+        void deliver(long now, DatagramChannel channel, SocketAddress to) throws IOException {
+            while (!queue.isEmpty() && queue.peek().due <= now) {
+                byte[] data = queue.poll().data;
+                if (to == null) {
+                    continue;
+                }
+                try {
+                    channel.send(ByteBuffer.wrap(data), to);
+                    forwarded++;
+                } catch (PortUnreachableException e) {
+                    lost++; // nothing listening at the far end yet
+                }
+            }
+        }
+
+        void printStatistics() {
+            System.out.println(name + ": " + forwarded + " forwarded, " + lost + " lost, " + corrupted
+                    + " corrupted, " + queueDrops + " dropped by a full queue");
+        }
+    }
+
+    private final DatagramChannel front; // faces the sender
+    private final DatagramChannel back; // faces the receiver
+    private final SocketAddress receiver;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(UdpSender.MAX_DATAGRAM_LENGTH);
+    private final Random random;
+    private final long delayNanos;
+    private final double lossRate;
+    private final double corruptRate;
+    private final double corruptPayloadRate;
+    private final long bitsPerSecond;
+    private final int queueLimit;
+    private final Direction forward = new Direction("Sender -> receiver");
+    private final Direction backward = new Direction("Receiver -> sender");
+    private SocketAddress sender; // whoever sent the latest datagram
+    private volatile boolean running = true;
+
+    /**
+     * @param listenPort         UDP port the sender sends to
+     * @param receiver           where the receiver listens
+     * @param delayNanos         one-way delay added in each direction
+     * @param lossRate           probability that a datagram is dropped, in each direction
+     * @param corruptRate        probability that a datagram to the receiver gets a flipped header bit
+     * @param corruptPayloadRate probability that a datagram to the receiver gets a flipped payload bit
+     * @param bitsPerSecond      link rate in each direction, or 0 for no limit
+     * @param queueLimit         most datagrams waiting for a rate-limited link
+     * @param seed               seed of the random loss and corruption
+     * @throws IOException if the port cannot be bound
+     */
+    LinkEmulator(int listenPort, SocketAddress receiver, long delayNanos, double lossRate, double corruptRate,
+            double corruptPayloadRate, long bitsPerSecond, int queueLimit, long seed) throws IOException {
+        this.front = DatagramChannel.open();
+        front.setOption(StandardSocketOptions.SO_RCVBUF, UdpPacketReceiver.RECEIVE_BUFFER_SIZE);
+        front.bind(new InetSocketAddress(listenPort));
+        front.configureBlocking(false);
+        this.back = DatagramChannel.open();
+        back.setOption(StandardSocketOptions.SO_RCVBUF, UdpPacketReceiver.RECEIVE_BUFFER_SIZE);
+        back.connect(receiver);
+        back.configureBlocking(false);
+        this.selector = Selector.open();
+        front.register(selector, SelectionKey.OP_READ);
+        back.register(selector, SelectionKey.OP_READ);
+
+        this.receiver = receiver;
+        this.delayNanos = delayNanos;
+        this.lossRate = lossRate;
+        this.corruptRate = corruptRate;
+        this.corruptPayloadRate = corruptPayloadRate;
+        this.bitsPerSecond = bitsPerSecond;
+        this.queueLimit = queueLimit;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Relays datagrams on the calling thread until shutdown() is called
+     */
+    void run() throws IOException {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                long due = Math.min(forward.nextDue(), backward.nextDue());
+                long wait = due - now;
+                if (due == Long.MAX_VALUE) {
+                    selector.select(1000);
+                } else if (wait <= 0) {
+                    selector.selectNow();
+                } else if (wait < SPIN_NANOS) {
+                    LockSupport.parkNanos(wait);
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.min(wait / 1_000_000, 1000));
+                }
+                selector.selectedKeys().clear();
+
+                now = System.nanoTime();
+                SocketAddress from;
+                while ((from = receive(front)) != null) {
+                    sender = from;
+                    forward.offer(buffer, now, true);
+                }
+                while (receive(back) != null) {
+                    backward.offer(buffer, now, false);
+                }
+
+                forward.deliver(now, back, receiver);
+                backward.deliver(now, front, sender);
+            }
+        } finally {
+            selector.close();
+            front.close();
+            back.close();
+        }
+    }
+
+    /**
+     * @return the datagram's source, with the datagram in buffer, or null if none was waiting
+     */
+    private SocketAddress receive(DatagramChannel channel) throws IOException {
+        buffer.clear();
+        SocketAddress from;
+        try {
+            from = channel.receive(buffer);
+        } catch (PortUnreachableException e) {
+            return null; // the receiver is not up yet; the sender will retransmit
+        }
+        buffer.flip();
+        return from;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void printStatistics() {
+        forward.printStatistics();
+        backward.printStatistics();
+    }
+
+    /**
+     * Relays UDP datagrams between a sender and a receiver with added delay, loss
+     * and corruption, and optionally a rate limit
+     *
+     * Options:
+     * --listen N          UDP port the sender sends to (default 9999)
+     * --to HOST:PORT      the receiver (default 127.0.0.1:8888)
+     * --delay-ms N        one-way delay in each direction, in milliseconds (default 0)
+     * --loss P            percentage of datagrams dropped in each direction (default 0)
+     * --corrupt P         percentage of datagrams to the receiver with a flipped header bit (default 0)
+     * --corrupt-payload P percentage of datagrams to the receiver with a flipped payload bit (default 0)
+     * --rate-mbps N       link rate in each direction in megabits per second (default unlimited)
+     * --queue N           with --rate-mbps, datagrams waiting for the link before new ones are dropped (default 10000)
+     * --seed N            seed of the random loss and corruption (default 1)
+     *
+     * Example (a 100 ms round trip with 1% loss each way):
+     * java PacketReceiver --udp --reliable --quiet
+     * java LinkEmulator --delay-ms 50 --loss 1
+     * java PacketSender --udp --reliable --port 9999 --count 100000 --size 1024 --window 4096
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String to = CommandLine.getOption(args, "--to", "127.0.0.1:" + PacketReceiver.DEFAULT_PORT);
+        int colon = to.lastIndexOf(':');
+        if (colon == -1) {
+            throw new Exception("--to must be HOST:PORT: " + to);
+        }
+        SocketAddress receiver = new InetSocketAddress(to.substring(0, colon),
+                Integer.parseInt(to.substring(colon + 1)));
+        int listenPort = CommandLine.getIntOption(args, "--listen", 9999);
+        double delayMillis = Double.parseDouble(CommandLine.getOption(args, "--delay-ms", "0"));
+        double lossPercent = Double.parseDouble(CommandLine.getOption(args, "--loss", "0"));
+        double corruptPercent = Double.parseDouble(CommandLine.getOption(args, "--corrupt", "0"));
+        double corruptPayloadPercent = Double.parseDouble(CommandLine.getOption(args, "--corrupt-payload", "0"));
+        double rateMbps = Double.parseDouble(CommandLine.getOption(args, "--rate-mbps", "0"));
+
+        LinkEmulator emulator = new LinkEmulator(listenPort, receiver, (long) (delayMillis * 1_000_000),
+                lossPercent / 100, corruptPercent / 100, corruptPayloadPercent / 100, (long) (rateMbps * 1_000_000),
+                CommandLine.getIntOption(args, "--queue", DEFAULT_QUEUE), CommandLine.getLongOption(args, "--seed", 1));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            emulator.shutdown();
+            emulator.printStatistics();
+        }));
+
+        System.out.println("Link emulator on port " + listenPort + "/udp -> " + to + ": " + delayMillis
+                + " ms each way, " + lossPercent + "% loss, " + corruptPercent + "% corrupted"
+                + (corruptPayloadPercent > 0 ? ", " + corruptPayloadPercent + "% payloads corrupted" : "")
+                + (rateMbps > 0 ? ", " + rateMbps + " Mbit/s" : "") + "\n");
+        emulator.run();
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load-test mode for PacketSender.
+ *
+ * Opens a number of connections to a PacketReceiver and sends packets for a
+ * fixed duration, either as fast as the receiver keeps up (closed loop: each
+ * connection keeps up to --window packets in flight) or at a fixed total rate
+ * (open loop). Payload sizes are drawn from a configurable distribution.
+ *
+ * The round-trip latency of every packet (from the moment it is sent until the
+ * receiver's reply arrives) is recorded in a LatencyHistogram. In open-loop
+ * mode latency is measured from the time a packet was scheduled to be sent, so
+ * a stalled receiver cannot hide its stalls by slowing the sender down. At the
+ * end the percentiles, packets/s and MB/s are printed.
+ *
+ * Each connection is a flow of its own: connection i sends from the local
+ * address plus i and numbers its packets with its own increasing
+ * identifications, so a receiver tracking flows sees every flow in order.
+ */
+public class LoadGenerator {
+
+    static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+    static final int SIZE_SAMPLES = 4096; // payload sizes pre-drawn per connection
+    static final long DRAIN_TIMEOUT_MILLIS = 5_000; // how long to wait for the last replies after the deadline
+
+    /**
+     * Parses a payload size distribution:
+     * "64" for a fixed size, "64-1400" for sizes uniformly distributed in a range,
+     * or "64:70,512:20,1400:10" for sizes with relative weights.
+     *
+     * @param spec   distribution as described above
+     * @param random source of randomness
+     * @return SIZE_SAMPLES payload sizes drawn from the distribution
+     */
+    static int[] sampleSizes(String spec, Random random) {
+        int[] samples = new int[SIZE_SAMPLES];
+
+        if (spec.contains(":")) {
+            String[] entries = spec.split(",");
+            int[] sizes = new int[entries.length];
+            int[] weights = new int[entries.length];
+            int totalWeight = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                sizes[i] = Integer.parseInt(parts[0].trim());
+                weights[i] = Integer.parseInt(parts[1].trim());
+                totalWeight += weights[i];
+            }
+
+            for (int i = 0; i < samples.length; i++) {
+                int pick = random.nextInt(totalWeight);
+                int entry = 0;
+                while (pick >= weights[entry]) {
+                    pick -= weights[entry++];
+                }
+                samples[i] = sizes[entry];
+            }
+        } else if (spec.contains("-")) {
+            String[] bounds = spec.split("-");
+            int low = Integer.parseInt(bounds[0].trim());
+            int high = Integer.parseInt(bounds[1].trim());
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = low + random.nextInt(high - low + 1);
+            }
+        } else {
+            Arrays.fill(samples, Integer.parseInt(spec.trim()));
+        }
+
+        int maxPayloadLength = PacketCodec.MAX_PACKET_LENGTH - PacketCodec.headerLength();
+        for (int size : samples) {
+            if (size < 0 || size > maxPayloadLength) {
+                throw new IllegalArgumentException("Payload sizes must be between 0 and " + maxPayloadLength
+                        + " bytes: " + spec);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * One connection: the calling thread sends packets while a second thread reads
+     * the replies. Send times are kept in a ring indexed by packet number; since
+     * the receiver replies to a connection in order, the n-th reply belongs to the
+     * n-th packet.
+     */
+    static class Worker implements Runnable {
+        final SocketChannel channel;
+        final DataInputStream in;
+        final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        final byte[] payload = new byte[PacketCodec.MAX_PAYLOAD_LENGTH];
+        final int[] sizes;
+        final int sourceIP;
+        final int destinationIP;
+        final int window;
+        final long intervalNanos; // 0 for closed loop
+        final long deadline;
+
+        final long[] sendTimes; // ring of send times, one per packet in flight
+        final int mask;
+        volatile long sent; // packets published to the ring (written by the sending thread only)
+        volatile long received; // replies read (written by the reply thread only)
+        volatile boolean replyReaderDone; // no more replies will arrive: the connection was closed or lost
+        long unpublished; // packets encoded into out but not yet flushed
+        int identification = PacketCodec.nextIdentification(); // of this connection's next packet
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long bytesSent;
+        long corrupted;
+        final Thread replyReader;
+
+        Worker(String host, int port, int[] sizes, int sourceIP, int destinationIP, int window, long intervalNanos,
+                long deadline) throws IOException {
+            this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            this.in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024));
+            this.sizes = sizes;
+            this.sourceIP = sourceIP;
+            this.destinationIP = destinationIP;
+            this.window = window;
+            this.intervalNanos = intervalNanos;
+            this.deadline = deadline;
+
+            int capacity = Integer.highestOneBit(Math.max(window, 1) * 2 - 1); // next power of two >= window
+            this.sendTimes = new long[capacity];
+            this.mask = capacity - 1;
+
+            new Random(42).nextBytes(payload);
+            this.replyReader = new Thread(this::readReplies, "load-generator-replies");
+        }
+
+        @Override
+        public void run() {
+            replyReader.start();
+            try {
+                if (intervalNanos == 0) {
+                    sendClosedLoop();
+                } else {
+                    sendOpenLoop();
+                }
+                flush(0);
+                channel.shutdownOutput(); // lets the receiver finish once every reply is written
+                replyReader.join(DRAIN_TIMEOUT_MILLIS);
+                if (replyReader.isAlive()) {
+                    System.out.println("The receiver did not answer " + (sent - received) + " packet(s) within "
+                            + DRAIN_TIMEOUT_MILLIS + " ms of the end of the test.");
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Connection failed: " + e.getMessage());
+            } finally {
+                try {
+                    channel.close(); // also stops the reply thread if it is still waiting
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                try {
+                    replyReader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Keeps the window full until the deadline or until the connection is lost,
+         * flushing whenever no more packets may be sent or the output buffer is full
+         */
+        private void sendClosedLoop() throws IOException {
+            int next = 0;
+            while (System.nanoTime() < deadline && !replyReaderDone) {
+                if (sent + unpublished - received < window
+                        && out.remaining() >= 4 + PacketCodec.headerLength() + sizes[next]) {
+                    encode(sizes[next]);
+                    next = (next + 1) % sizes.length;
+                } else if (unpublished > 0) {
+                    flush(0);
+                } else {
+                    Thread.onSpinWait(); // window full: wait for replies
+                }
+            }
+        }
+
+        /**
+         * Sends one packet per interval until the deadline. A packet that is late
+         * because the sender fell behind is sent immediately but keeps its scheduled
+         * time as its send time. Stops early if the connection is lost.
+         */
+        private void sendOpenLoop() throws IOException {
+            int next = 0;
+            long scheduled = System.nanoTime();
+            while (scheduled < deadline) {
+                long now = System.nanoTime();
+                if (now < scheduled) {
+                    long wait = scheduled - now;
+                    if (wait > 50_000) {
+                        LockSupport.parkNanos(wait - 20_000);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    continue;
+                }
+
+                while (sent - received >= sendTimes.length) {
+                    if (replyReaderDone || System.nanoTime() >= deadline) {
+                        return; // a stalled or lost receiver must not hang the test
+                    }
+                    Thread.onSpinWait(); // ring full: the receiver is far behind
+                }
+                encode(sizes[next]);
+                next = (next + 1) % sizes.length;
+                flush(scheduled);
+                scheduled += intervalNanos;
+            }
+        }
+
+        private void encode(int payloadLength) {
+            int start = out.position();
+            out.putInt(0); // frame length, filled in below
+            int packetLength = PacketCodec.encode(out, payload, 0, payloadLength, identification++, sourceIP,
+                    destinationIP);
+            out.putInt(start, packetLength);
+            bytesSent += packetLength;
+            unpublished++;
+        }
+
+        /**
+         * Publishes the send time of every encoded packet and writes them out
+         *
+         * @param sendTime send time to record, or 0 to use the current time
+         */
+        private void flush(long sendTime) throws IOException {
+            if (unpublished == 0) {
+                return;
+            }
+
+            long time = sendTime != 0 ? sendTime : System.nanoTime();
+            long published = sent;
+            for (long i = 0; i < unpublished; i++) {
+                sendTimes[(int) ((published + i) & mask)] = time;
+            }
+            sent = published + unpublished; // volatile write makes the send times visible to the reply thread
+            unpublished = 0;
+
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+
+        private void readReplies() {
+            byte[] reply = new byte[256];
+            byte[] ack = PacketReceiver.ACK_REPLY; // length prefix followed by the text
+            try {
+                while (true) {
+                    int length = in.readUnsignedShort();
+                    if (length > reply.length) {
+                        reply = new byte[length];
+                    }
+                    in.readFully(reply, 0, length);
+                    long now = System.nanoTime();
+
+                    long index = received;
+                    histogram.record(now - sendTimes[(int) (index & mask)]);
+                    if (!Arrays.equals(reply, 0, length, ack, 2, ack.length)) {
+                        corrupted++;
+                    }
+                    received = index + 1;
+                }
+            } catch (EOFException e) {
+                // the receiver closed the connection after the last reply
+            } catch (IOException e) {
+                if (channel.isOpen()) { // otherwise the sending thread gave up waiting and closed it
+                    System.out.println("Lost the connection to the receiver: " + e.getMessage());
+                }
+            } finally {
+                replyReaderDone = true;
+            }
+        }
+    }
+
+    /**
+     * Entry point for "java PacketSender --load ..."
+     *
+     * Options:
+     * --connections N   concurrent connections (default 4)
+     * --duration S      how long to send for, in seconds (default 10)
+     * --rate R          total packets per second across all connections; 0 sends as
+     *                   fast as the receiver keeps up (default 0)
+     * --window N        packets in flight per connection in closed-loop mode (default 64)
+     * --size SPEC       payload sizes: "64", "64-1400" or "64:70,512:20,1400:10" (default 64)
+     * --dest IP         destination IPv4 address written into the packets (default 127.0.0.1)
+     * --host HOST       receiver to connect to (default 127.0.0.1)
+     * --port N          receiver port (default 8888)
+     *
+     * @param args
+     * @throws Exception
+     */
+    static void main(String[] args) throws Exception {
+        int connections = CommandLine.getIntOption(args, "--connections", 4);
+        int duration = CommandLine.getIntOption(args, "--duration", 10);
+        long rate = CommandLine.getLongOption(args, "--rate", 0);
+        int window = CommandLine.getIntOption(args, "--window", 64);
+        String sizeSpec = CommandLine.getOption(args, "--size", "64");
+        String destinationIP = CommandLine.getOption(args, "--dest", "127.0.0.1");
+        String host = CommandLine.getOption(args, "--host", "127.0.0.1");
+        int port = CommandLine.getIntOption(args, "--port", 8888);
+
+        int sourceIP = PacketCodec.convertIPv4StringToInt(
+                PacketSender.getTextAfterForwardSlash(InetAddress.getLocalHost().toString()));
+        long intervalNanos = rate == 0 ? 0 : Math.max(1, 1_000_000_000L * connections / rate);
+        long start = System.nanoTime();
+        long deadline = start + duration * 1_000_000_000L;
+
+        System.out.println("Load test: " + connections + " connection(s), "
+                + (rate == 0 ? "closed loop (window " + window + ")" : rate + " packets/s") + ", payload size "
+                + sizeSpec + ", " + duration + " s\n");
+
+        Random random = new Random(1);
+        Worker[] workers = new Worker[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(host, port, sampleSizes(sizeSpec, random), sourceIP + i,
+                    PacketCodec.convertIPv4StringToInt(destinationIP), window, intervalNanos, deadline);
+            threads[i] = new Thread(workers[i], "load-generator-" + i);
+            threads[i].start();
+        }
+
+        LatencyHistogram total = new LatencyHistogram();
+        long bytesSent = 0;
+        long corrupted = 0;
+        for (int i = 0; i < connections; i++) {
+            threads[i].join();
+            total.add(workers[i].histogram);
+            bytesSent += workers[i].bytesSent;
+            corrupted += workers[i].corrupted;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        printReport(total, bytesSent, corrupted, seconds);
+    }
+
+    static void printReport(LatencyHistogram histogram, long bytesSent, long corrupted, double seconds) {
+        System.out.printf("Packets:    %d (%d corrupted) in %.2f s%n", histogram.count(), corrupted, seconds);
+        System.out.printf("Throughput: %.0f packets/s, %.2f MB/s%n", histogram.count() / seconds,
+                bytesSent / seconds / 1e6);
+        System.out.printf("Round trip: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us (mean %.1f us)%n",
+                histogram.valueAtPercentile(50) / 1e3, histogram.valueAtPercentile(99) / 1e3,
+                histogram.valueAtPercentile(99.9) / 1e3, histogram.max() / 1e3, histogram.mean() / 1e3);
+    }
+}
@@ -0,0 +1,566 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking PacketReceiver engine built on a Selector.
+ *
+ * One acceptor thread accepts senders and hands them out round-robin to a fixed
+ * number of event loops (one per core by default). Each event loop reads into
+ * a single reusable direct ByteBuffer and decodes every complete frame straight
+ * out of it with a PacketView. Only the tail of a frame that was split across
+ * reads is copied into a small buffer borrowed from the BufferPool, and
+ * replies are queued per connection (also in a pooled buffer) and written
+ * whenever the socket is writable, so no loop ever blocks on a slow sender.
+ *
+ * With usePipeline(), the event loops only move bytes: frames are handed to
+ * DecodePipeline workers through a PacketRing per loop, and the loops send the
+ * replies once the workers are done. A connection that finds its loop's ring
+ * full stops being read, keeping its unpublished frames, and is resumed once
+ * the workers' replies have freed a slot.
+ */
+public class NioPacketReceiver {
+
+    static final int READ_BUFFER_SIZE = 256 * 1024; // must hold at least one full frame (4 + 65535 bytes)
+    static final int MAX_PENDING_REPLY_BYTES = 1024 * 1024; // stop reading from a sender that is not reading its replies
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ReceiverMetrics metrics;
+    private final PacketLog log;
+    private final FragmentReassembler reassembler;
+    private final PcapWriter capture;
+    private DecodePipeline pipeline; // null unless decoding on workers
+    private volatile boolean running = true;
+
+    /**
+     * Binds the port and creates the event loops (they are started by run())
+     *
+     * @param port        TCP port to listen on
+     * @param loopCount   number of event loops
+     * @param log         per-packet log, or null to log nothing
+     * @param metrics     counters shared by the event loops
+     * @param reassembler puts fragmented datagrams back together, shared by the event loops
+     * @param capture     records every intact packet, or null
+     * @param routes      routes for forwarding packets to other receivers, or null to deliver every packet here
+     * @throws IOException if the port cannot be bound
+     */
+    NioPacketReceiver(int port, int loopCount, PacketLog log, ReceiverMetrics metrics,
+            FragmentReassembler reassembler, PcapWriter capture, RoutingTable routes) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.metrics = metrics;
+        this.log = log;
+        this.reassembler = reassembler;
+        this.capture = capture;
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i, log, metrics, reassembler, capture, routes);
+        }
+    }
+
+    /**
+     * Accepts files sent with "PacketSender --send-file" and saves them in the
+     * given directory. Must be called before run().
+     *
+     * @param directory existing directory to save received files in
+     */
+    void saveFilesTo(Path directory) {
+        for (EventLoop loop : loops) {
+            loop.saveDirectory = directory;
+        }
+    }
+
+    /**
+     * Moves verifying and decoding off the event loops onto decode workers. Must
+     * be called before run().
+     *
+     * @param workers      number of decode workers
+     * @param ringSize     frames buffered between each event loop and the workers
+     * @param waitStrategy how idle workers wait for frames
+     */
+    void usePipeline(int workers, int ringSize, DecodePipeline.WaitStrategy waitStrategy) {
+        PacketRing[] rings = new PacketRing[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            rings[i] = new PacketRing(ringSize, workers, loops[i].selector);
+            loops[i].ring = rings[i];
+        }
+        pipeline = new DecodePipeline(rings, workers, waitStrategy, log, metrics, reassembler, capture);
+    }
+
+    /**
+     * Starts the event loops and accepts senders on the calling thread until
+     * shutdown() is called
+     */
+    void run() {
+        if (pipeline != null) {
+            pipeline.start();
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length; // round-robin over the event loops
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Failed to accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting senders and closes every event loop along with its
+     * connections
+     *
+     * @throws InterruptedException
+     */
+    void shutdown() throws InterruptedException {
+        running = false;
+        try {
+            serverChannel.close(); // unblocks accept()
+        } catch (IOException e) {
+            // already closed
+        }
+
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+        for (EventLoop loop : loops) {
+            loop.join();
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        printForwardingSummary();
+    }
+
+    /**
+     * Prints how long packets spent in this hop and what the next hops replied
+     */
+    private void printForwardingSummary() {
+        if (loops.length == 0 || loops[0].forwarder == null) {
+            return;
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        int nextHops = loops[0].routes.nextHopCount();
+        long[] delivered = new long[nextHops];
+        long[] refused = new long[nextHops];
+        for (EventLoop loop : loops) {
+            latency.add(loop.forwarder.latency);
+            loop.forwarder.addReplyCounts(delivered, refused);
+        }
+
+        System.out.printf("Forwarded %d packets (%d without a route, %d with an expired TTL)%n",
+                metrics.packetsForwarded.sum(), metrics.packetsNoRoute.sum(), metrics.packetsTtlExpired.sum());
+        System.out.printf("Forwarding latency: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                latency.valueAtPercentile(50) / 1e3, latency.valueAtPercentile(99) / 1e3,
+                latency.valueAtPercentile(99.9) / 1e3, latency.max() / 1e3);
+        for (int i = 1; i < nextHops; i++) {
+            System.out.println("Next hop " + loops[0].routes.nextHop(i) + ": " + delivered[i] + " delivered, "
+                    + refused[i] + " refused");
+        }
+    }
+
+    /**
+     * State kept for each connected sender
+     */
+    static class Connection {
+        final SocketChannel channel;
+        ByteBuffer partialFrame; // pooled; bytes of an incomplete frame carried over to the next read (write mode)
+        ByteBuffer replies = BufferPool.DEFAULT.acquire(1024); // pooled; replies waiting to be written (write mode)
+        boolean closing; // the sender has finished sending; close once its replies are written
+        boolean blocked; // reading paused until a next hop catches up (forwarding only)
+        int inFlight; // frames handed to the decode workers and not answered yet (pipeline only)
+        boolean waitingForRing; // reading paused until the decode workers free a ring slot (pipeline only)
+        FileSink files; // created by the connection's first file transfer
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void queueReply(byte[] reply) {
+            if (replies.remaining() < reply.length) {
+                replies = BufferPool.DEFAULT.grow(replies,
+                        Math.max(replies.capacity() * 2, replies.position() + reply.length));
+            }
+            replies.put(reply);
+        }
+
+        /**
+         * Gives the connection's buffers back to the pool once it is closed
+         */
+        void releaseBuffers() {
+            BufferPool.DEFAULT.release(partialFrame);
+            BufferPool.DEFAULT.release(replies);
+            partialFrame = null;
+            replies = null;
+        }
+    }
+
+    /**
+     * One Selector and the connections assigned to it. Everything a loop touches on
+     * the per-packet path (read buffer, packet view, connections) belongs to that
+     * loop alone.
+     */
+    static class EventLoop extends Thread {
+        final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final PacketView packet = new PacketView();
+        private final PacketView reassembled = new PacketView();
+        private final PacketLog log;
+        private final ReceiverMetrics metrics;
+        private final FragmentReassembler reassembler;
+        private final PcapWriter capture;
+        final RoutingTable routes;
+        final PacketForwarder forwarder; // null unless forwarding
+        PacketRing ring; // null unless decoding on the pipeline
+        private final ArrayDeque<SelectionKey> waitingForRing = new ArrayDeque<>(); // connections that found the ring full
+        Path saveDirectory; // where received files are saved; null refuses them
+        private volatile boolean running = true;
+
+        EventLoop(int index, PacketLog log, ReceiverMetrics metrics,
+                FragmentReassembler reassembler, PcapWriter capture, RoutingTable routes) throws IOException {
+            super("packet-receiver-loop-" + index);
+            this.selector = Selector.open();
+            this.log = log;
+            this.metrics = metrics;
+            this.reassembler = reassembler;
+            this.capture = capture;
+            this.routes = routes;
+            this.forwarder = routes == null ? null : new PacketForwarder(routes, selector, metrics);
+        }
+
+        /**
+         * Makes this loop accept connections from a listener of its own instead of
+         * being handed them by an acceptor thread (see ShardedReceiver). Must be
+         * called before the loop is started.
+         *
+         * @param listener bound server channel
+         * @throws IOException if the channel cannot be registered
+         */
+        void listen(ServerSocketChannel listener) throws IOException {
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT, listener);
+        }
+
+        /**
+         * Hands a newly accepted connection to this loop. Called from the acceptor
+         * thread; the channel is registered by the loop itself.
+         */
+        void register(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerNewChannels();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.attachment() instanceof PacketForwarder.Link) {
+                            forwarder.handle((PacketForwarder.Link) key.attachment());
+                            continue;
+                        }
+                        if (key.attachment() instanceof ServerSocketChannel) {
+                            accept((ServerSocketChannel) key.attachment());
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+
+                        try {
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flushReplies(key, connection);
+                            }
+                        } catch (IOException e) {
+                            closeConnection(key, connection);
+                        }
+                    }
+                    if (ring != null) {
+                        sendReadyReplies();
+                        resumeWaitingConnections();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(getName() + " stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        closeConnection(key, (Connection) key.attachment());
+                    }
+                }
+                if (forwarder != null) {
+                    forwarder.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+
+        /**
+         * Registers every connection waiting on this loop's own listener
+         */
+        private void accept(ServerSocketChannel listener) {
+            try {
+                SocketChannel channel;
+                while ((channel = listener.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    metrics.connectionOpened();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println(getName() + " failed to accept a connection: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() throws IOException {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                metrics.connectionOpened();
+            }
+        }
+
+        /**
+         * Reads whatever the sender has sent, decodes every complete frame and queues
+         * one reply per frame
+         */
+        private void read(SelectionKey key, Connection connection) throws IOException {
+            restorePartialFrame(connection);
+
+            int bytesRead = connection.channel.read(readBuffer);
+            if (bytesRead == -1) {
+                connection.closing = true;
+                flushReplies(key, connection);
+                return;
+            }
+            metrics.bytesIn.add(bytesRead);
+            readBuffer.flip();
+            decodeFrames(key, connection, System.nanoTime());
+        }
+
+        /**
+         * Clears the read buffer and puts back the start of a frame that was split
+         * across the previous read, or the frames left unpublished while the ring was
+         * full
+         */
+        private void restorePartialFrame(Connection connection) {
+            readBuffer.clear();
+            if (connection.partialFrame != null) {
+                connection.partialFrame.flip();
+                readBuffer.put(connection.partialFrame);
+                BufferPool.DEFAULT.release(connection.partialFrame);
+                connection.partialFrame = null;
+            }
+        }
+
+        /**
+         * Decodes (or publishes) every complete frame in the read buffer, keeps the
+         * rest for later and writes the replies
+         */
+        private void decodeFrames(SelectionKey key, Connection connection, long receivedNanos) throws IOException {
+            // decode every complete frame: a 4-byte length followed by that many packet bytes
+            while (readBuffer.remaining() >= 4) {
+                int start = readBuffer.position();
+                int length = readBuffer.getInt(start);
+                if (length < 0 || length > PacketCodec.MAX_PACKET_LENGTH) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    break; // the rest of this frame has not arrived yet
+                }
+
+                if (ring != null) {
+                    if (ring.isFull()) {
+                        // stop here rather than spin; the loop resumes once the workers' replies free a slot
+                        connection.waitingForRing = true;
+                        waitingForRing.add(key);
+                        break;
+                    }
+                    // the decode workers take it from here; the reply is sent once they are done
+                    ring.publish(readBuffer, start + 4, length, key);
+                    connection.inFlight++;
+                    readBuffer.position(start + 4 + length);
+                    continue;
+                }
+
+                int limit = readBuffer.limit();
+                readBuffer.position(start + 4).limit(start + 4 + length);
+                long decodeStart = System.nanoTime();
+                packet.wrap(readBuffer);
+                metrics.recordDecode(System.nanoTime() - decodeStart);
+
+                // a forwarding hop sends on every intact packet that is not addressed to itself
+                byte[] reply = null;
+                if (forwarder != null && packet.isValid()) {
+                    reply = forwarder.forward(packet, readBuffer, start, receivedNanos, key);
+                }
+                if (reply == null && packet.isValid() && packet.protocol() == PacketCodec.PROTOCOL_STREAM) {
+                    if (connection.files == null) {
+                        connection.files = new FileSink(saveDirectory);
+                    }
+                    reply = connection.files.receive(packet); // written to disk, not logged
+                    metrics.recordPacket(packet, true);
+                }
+                if (reply == null) {
+                    boolean isAuthentic = log == null
+                            ? PacketReceiver.receiveQuietly(packet, reassembled, reassembler, capture)
+                            : PacketReceiver.receivePacket(packet, reassembled, reassembler, capture, log);
+                    metrics.recordPacket(packet, isAuthentic);
+                    reply = isAuthentic ? PacketReceiver.ACK_REPLY : PacketReceiver.CORRUPT_REPLY;
+                }
+                readBuffer.limit(limit).position(start + 4 + length);
+
+                connection.queueReply(reply);
+            }
+
+            // keep the incomplete tail (or the unpublished frames), if any, until the next read
+            if (readBuffer.hasRemaining()) {
+                connection.partialFrame = BufferPool.DEFAULT.acquire(readBuffer.remaining());
+                connection.partialFrame.put(readBuffer);
+            }
+
+            flushReplies(key, connection);
+        }
+
+        /**
+         * Writes as many queued replies as the socket accepts without blocking. Write
+         * interest is only kept while replies are left over, and reading is paused
+         * while too many replies are waiting.
+         */
+        private void flushReplies(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer replies = connection.replies;
+            if (replies.position() > 0) {
+                replies.flip();
+                metrics.bytesOut.add(connection.channel.write(replies));
+                replies.compact();
+            }
+
+            if (connection.closing && replies.position() == 0 && connection.inFlight == 0) {
+                closeConnection(key, connection);
+                return;
+            }
+
+            int interestOps = SelectionKey.OP_READ;
+            if (replies.position() > 0) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+            if (connection.closing || connection.blocked || connection.waitingForRing
+                    || replies.position() > MAX_PENDING_REPLY_BYTES) {
+                interestOps &= ~SelectionKey.OP_READ;
+            }
+            if (key.interestOps() != interestOps) {
+                key.interestOps(interestOps);
+            }
+        }
+
+        /**
+         * Queues the replies the decode workers have finished, in the order the
+         * frames were published, and writes them out one connection at a time
+         */
+        private void sendReadyReplies() {
+            SelectionKey previous = null;
+            PacketRing.Slot slot;
+            while ((slot = ring.nextReply()) != null) {
+                SelectionKey key = slot.sender;
+                Connection connection = (Connection) key.attachment();
+                connection.inFlight--;
+                if (key.isValid()) {
+                    connection.queueReply(slot.reply);
+                }
+                if (previous != null && previous != key) {
+                    flushReplies(previous);
+                }
+                previous = key;
+            }
+            if (previous != null) {
+                flushReplies(previous);
+            }
+        }
+
+        /**
+         * Publishes the frames of the connections that found the ring full, oldest
+         * first, for as long as there is room
+         */
+        private void resumeWaitingConnections() {
+            SelectionKey key;
+            while (!ring.isFull() && (key = waitingForRing.poll()) != null) {
+                Connection connection = (Connection) key.attachment();
+                connection.waitingForRing = false;
+                if (!key.isValid()) {
+                    continue; // closed while it was waiting
+                }
+                try {
+                    restorePartialFrame(connection);
+                    readBuffer.flip();
+                    decodeFrames(key, connection, System.nanoTime());
+                } catch (IOException e) {
+                    closeConnection(key, connection);
+                }
+            }
+        }
+
+        private void flushReplies(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid()) {
+                    flushReplies(key, connection);
+                }
+            } catch (IOException e) {
+                closeConnection(key, connection);
+            }
+        }
+
+        private void closeConnection(SelectionKey key, Connection connection) {
+            key.cancel();
+            if (connection.channel.isOpen()) {
+                metrics.connectionClosed();
+                connection.releaseBuffers();
+                if (connection.files != null) {
+                    connection.files.close(); // keeps whatever part of an unfinished file arrived
+                }
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,737 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared IPv4 packet codec used by both PacketSender and PacketReceiver.
+ *
+ * Packets are encoded straight into byte arrays or ByteBuffers; decoding is
+ * done through a PacketView, which validates the header once and then reads
+ * fields on demand without allocating.
+ *
+ * Packets can optionally carry a payload checksum, which covers a pseudo-header
+ * (addresses, protocol and payload length, as in TCP and UDP) and the whole
+ * payload, so corrupted payloads are caught as well as corrupted headers. It
+ * travels in an IPv4 option, which makes the header 24 bytes (IHL 6); the
+ * header checksum protects it like any other header field.
+ *
+ * The hexadecimal string helpers at the bottom of this class are the legacy
+ * encoding and are only kept for debugging.
+ */
+public class PacketCodec {
+
+    static final int HEADER_LENGTH = 20; // minimum IPv4 header length in bytes (IHL == 5)
+    static final int MAX_PACKET_LENGTH = 65535; // largest value the 16-bit total length field can hold
+    static final int MAX_PAYLOAD_LENGTH = MAX_PACKET_LENGTH - HEADER_LENGTH;
+
+    static final int PROTOCOL_TCP = 6;
+    static final int PROTOCOL_STREAM = 253; // experimental (RFC 3692); file transfers, see FileSender
+    static final int DEFAULT_TTL = 0x40;
+    static final int FLAG_DONT_FRAGMENT = 0x4000;
+    static final int FLAG_MORE_FRAGMENTS = 0x2000;
+    static final int FRAGMENT_OFFSET_MASK = 0x1FFF; // fragment offset, in 8-byte units
+
+    static final int OPTION_END = 0;
+    static final int OPTION_NO_OPERATION = 1;
+    static final int OPTION_PAYLOAD_CHECKSUM = 0x1E; // experimental option 30 (RFC 4727); not copied into fragments
+    static final int PAYLOAD_CHECKSUM_OPTION_LENGTH = 4; // type, length and the 2-byte checksum
+    static final int NO_PAYLOAD_CHECKSUM = -1;
+
+    // read 8 bytes of a byte array or buffer as one long in the machine's byte order (see sumWords())
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle BUFFER_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private static boolean payloadChecksums; // set once at startup by enablePayloadChecksums()
+    private static WordSum vectorWordSum; // set once at startup by useVectorChecksum(); null means scalar
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // identification of the next datagram; starts at a random value like a real IP stack. Each sender
+    // sends one flow (its own address to one destination), so this numbers that flow's datagrams in order.
+    private static final AtomicInteger nextIdentification = new AtomicInteger(new Random().nextInt());
+
+    // ****************** BINARY ENCODING ****************** //
+
+    /**
+     * Encapsulates the data into a new binary IP datagram (IP packet)
+     *
+     * @param payload       raw payload bytes
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @return packet (header followed by the payload)
+     */
+    static byte[] encode(byte[] payload, int sourceIP, int destinationIP) {
+        checkPayloadLength(payload.length);
+
+        int headerLength = headerLength();
+        byte[] packet = new byte[headerLength + payload.length];
+        writeHeader(packet, 0, payload.length, nextIdentification(), FLAG_DONT_FRAGMENT, sourceIP, destinationIP,
+                payloadChecksumFor(payload, 0, payload.length, sourceIP, destinationIP));
+        System.arraycopy(payload, 0, packet, headerLength, payload.length);
+
+        return packet;
+    }
+
+    /**
+     * Encapsulates the data into a binary IP datagram written at the current
+     * position of the buffer. Nothing is allocated, so the same buffer can be
+     * reused for every packet.
+     *
+     * @param buffer        destination buffer; its position is advanced past the
+     *                      packet
+     * @param payload       array holding the payload
+     * @param payloadOffset index of the first payload byte
+     * @param payloadLength number of payload bytes
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @return the number of bytes written
+     */
+    static int encode(ByteBuffer buffer, byte[] payload, int payloadOffset, int payloadLength,
+            int sourceIP, int destinationIP) {
+        return encode(buffer, payload, payloadOffset, payloadLength, nextIdentification(), sourceIP, destinationIP);
+    }
+
+    /**
+     * encode(ByteBuffer, ...) with an identification chosen by the caller, for
+     * senders that number several flows of their own
+     *
+     * @param buffer         destination buffer; its position is advanced past the
+     *                       packet
+     * @param payload        array holding the payload
+     * @param payloadOffset  index of the first payload byte
+     * @param payloadLength  number of payload bytes
+     * @param identification 16-bit datagram identification
+     * @param sourceIP       source IPv4 address as an int
+     * @param destinationIP  destination IPv4 address as an int
+     * @return the number of bytes written
+     */
+    static int encode(ByteBuffer buffer, byte[] payload, int payloadOffset, int payloadLength, int identification,
+            int sourceIP, int destinationIP) {
+        checkPayloadLength(payloadLength);
+
+        int start = buffer.position();
+        int headerLength = headerLength();
+        int totalLength = headerLength + payloadLength;
+        buffer.putShort((short) (0x4000 | headerLength << 6)); // 4 == IPv4 and IHL == header length / 4; 00 == service type
+        buffer.putShort((short) totalLength); // packet length (header length + payload length)
+        buffer.putShort((short) identification); // identification
+        buffer.putShort((short) FLAG_DONT_FRAGMENT); // 40 = flag; 00 == fragment offset
+        buffer.put((byte) DEFAULT_TTL); // TTL
+        buffer.put((byte) PROTOCOL_TCP); // TCP protocol
+        buffer.putShort((short) 0); // header checksum (init. to 0000)
+        buffer.putInt(sourceIP);
+        buffer.putInt(destinationIP);
+        if (payloadChecksums) {
+            buffer.put((byte) OPTION_PAYLOAD_CHECKSUM).put((byte) PAYLOAD_CHECKSUM_OPTION_LENGTH).putShort(
+                    (short) payloadChecksum(payload, payloadOffset, payloadLength, PROTOCOL_TCP, sourceIP,
+                            destinationIP));
+        }
+        buffer.putShort(start + 10, (short) headerChecksum(buffer, start, headerLength));
+        buffer.put(payload, payloadOffset, payloadLength);
+
+        return totalLength;
+    }
+
+    /**
+     * Writes an IPv4 header in front of a payload that is already in the buffer,
+     * for senders that read their payload (e.g. a file) straight into the send
+     * buffer instead of copying it out of an array
+     *
+     * @param buffer         buffer holding the payload; only absolute puts are
+     *                       used, so its position is left untouched
+     * @param offset         index of the first header byte; the payload starts
+     *                       headerLength() bytes later
+     * @param payloadLength  number of payload bytes
+     * @param identification 16-bit datagram identification
+     * @param protocol       protocol field (e.g. PROTOCOL_TCP)
+     * @param sourceIP       source IPv4 address as an int
+     * @param destinationIP  destination IPv4 address as an int
+     * @return the number of bytes in the packet
+     */
+    static int encodeHeader(ByteBuffer buffer, int offset, int payloadLength, int identification, int protocol,
+            int sourceIP, int destinationIP) {
+        checkPayloadLength(payloadLength);
+
+        int headerLength = headerLength();
+        int totalLength = headerLength + payloadLength;
+        buffer.putShort(offset, (short) (0x4000 | headerLength << 6)); // 4 == IPv4 and IHL == header length / 4
+        buffer.putShort(offset + 2, (short) totalLength);
+        buffer.putShort(offset + 4, (short) identification);
+        buffer.putShort(offset + 6, (short) FLAG_DONT_FRAGMENT);
+        buffer.put(offset + 8, (byte) DEFAULT_TTL);
+        buffer.put(offset + 9, (byte) protocol);
+        buffer.putShort(offset + 10, (short) 0); // header checksum (init. to 0000)
+        buffer.putInt(offset + 12, sourceIP);
+        buffer.putInt(offset + 16, destinationIP);
+        if (payloadChecksums) {
+            buffer.put(offset + 20, (byte) OPTION_PAYLOAD_CHECKSUM).put(offset + 21,
+                    (byte) PAYLOAD_CHECKSUM_OPTION_LENGTH);
+            buffer.putShort(offset + 22, (short) payloadChecksum(buffer, offset + headerLength, payloadLength,
+                    protocol, sourceIP, destinationIP));
+        }
+        buffer.putShort(offset + 10, (short) headerChecksum(buffer, offset, headerLength));
+
+        return totalLength;
+    }
+
+    /**
+     * Writes an IPv4 header with the given identification, flags and fragment
+     * offset, and its checksum, into a byte array. The header is 20 bytes, or 24
+     * with the payload checksum option.
+     *
+     * @param packet          destination array
+     * @param offset          index of the first header byte
+     * @param payloadLength   number of payload bytes that will follow the header
+     * @param identification  16-bit datagram identification
+     * @param flagsAndOffset  3 flag bits followed by the 13-bit fragment offset
+     * @param sourceIP        source IPv4 address as an int
+     * @param destinationIP   destination IPv4 address as an int
+     * @param payloadChecksum checksum to carry in the payload checksum option, or
+     *                        NO_PAYLOAD_CHECKSUM for a header without options
+     */
+    static void writeHeader(byte[] packet, int offset, int payloadLength, int identification, int flagsAndOffset,
+            int sourceIP, int destinationIP, int payloadChecksum) {
+        int headerLength = payloadChecksum == NO_PAYLOAD_CHECKSUM ? HEADER_LENGTH
+                : HEADER_LENGTH + PAYLOAD_CHECKSUM_OPTION_LENGTH;
+        int totalLength = headerLength + payloadLength;
+        writeShort(packet, offset, 0x4000 | headerLength << 6); // 4 == IPv4 and IHL == header length / 4; 00 == service type
+        writeShort(packet, offset + 2, totalLength); // packet length (header length + payload length)
+        writeShort(packet, offset + 4, identification); // identification
+        writeShort(packet, offset + 6, flagsAndOffset); // flags and fragment offset
+        packet[offset + 8] = (byte) DEFAULT_TTL; // TTL
+        packet[offset + 9] = (byte) PROTOCOL_TCP; // TCP protocol
+        writeShort(packet, offset + 10, 0); // header checksum (init. to 0000)
+        writeInt(packet, offset + 12, sourceIP);
+        writeInt(packet, offset + 16, destinationIP);
+        if (payloadChecksum != NO_PAYLOAD_CHECKSUM) {
+            packet[offset + 20] = (byte) OPTION_PAYLOAD_CHECKSUM;
+            packet[offset + 21] = (byte) PAYLOAD_CHECKSUM_OPTION_LENGTH;
+            writeShort(packet, offset + 22, payloadChecksum);
+        }
+        writeShort(packet, offset + 10, headerChecksum(packet, offset, headerLength));
+    }
+
+    /**
+     * Splits a payload into IPv4 fragments that each fit in the given MTU. Every
+     * fragment but the last carries a multiple of 8 payload bytes and has the
+     * More Fragments flag set; the fragment offset of each is its position in the
+     * payload in 8-byte units. All fragments share the same identification so the
+     * receiver can put them back together. A payload that already fits is sent as
+     * a single, unfragmented packet. With payload checksums on, the first fragment
+     * carries the checksum of the whole payload, which the receiver checks once
+     * the datagram is reassembled.
+     *
+     * @param payload        raw payload bytes (at most MAX_PAYLOAD_LENGTH)
+     * @param sourceIP       source IPv4 address as an int
+     * @param destinationIP  destination IPv4 address as an int
+     * @param identification 16-bit datagram identification
+     * @param mtu            largest packet (header + payload) allowed on the link
+     * @return the fragments, in order
+     */
+    static byte[][] encodeFragments(byte[] payload, int sourceIP, int destinationIP, int identification, int mtu) {
+        checkPayloadLength(payload.length);
+        int fragmentLength = (mtu - headerLength()) / 8 * 8; // payload bytes per fragment, a multiple of 8
+        if (fragmentLength < 8) {
+            throw new IllegalArgumentException("MTU is too small to fragment into: " + mtu);
+        }
+        int payloadChecksum = payloadChecksumFor(payload, 0, payload.length, sourceIP, destinationIP);
+
+        int count = Math.max(1, (payload.length + fragmentLength - 1) / fragmentLength);
+        byte[][] fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int start = i * fragmentLength;
+            int length = Math.min(fragmentLength, payload.length - start);
+            int flagsAndOffset = (start / 8) | (i < count - 1 ? FLAG_MORE_FRAGMENTS : 0);
+
+            // the option is not copied into later fragments, as its type says
+            int checksum = i == 0 ? payloadChecksum : NO_PAYLOAD_CHECKSUM;
+            int headerLength = i == 0 ? headerLength() : HEADER_LENGTH;
+            fragments[i] = new byte[headerLength + length];
+            writeHeader(fragments[i], 0, length, identification, flagsAndOffset, sourceIP, destinationIP, checksum);
+            System.arraycopy(payload, start, fragments[i], headerLength, length);
+        }
+
+        return fragments;
+    }
+
+    /**
+     * @return the next 16-bit identification of this sender's flow, for a new datagram
+     */
+    static int nextIdentification() {
+        return nextIdentification.getAndIncrement() & 0xFFFF;
+    }
+
+    /**
+     * Makes every packet encoded from now on carry a payload checksum. Must be
+     * called before the first packet is encoded.
+     */
+    static void enablePayloadChecksums() {
+        payloadChecksums = true;
+    }
+
+    /**
+     * @return length of the headers this codec writes: 20 bytes, or 24 with the
+     *         payload checksum option
+     */
+    static int headerLength() {
+        return payloadChecksums ? HEADER_LENGTH + PAYLOAD_CHECKSUM_OPTION_LENGTH : HEADER_LENGTH;
+    }
+
+    private static int payloadChecksumFor(byte[] payload, int offset, int length, int sourceIP, int destinationIP) {
+        return payloadChecksums ? payloadChecksum(payload, offset, length, PROTOCOL_TCP, sourceIP, destinationIP)
+                : NO_PAYLOAD_CHECKSUM;
+    }
+
+    private static void checkPayloadLength(int payloadLength) {
+        int maxPayloadLength = MAX_PACKET_LENGTH - headerLength();
+        if (payloadLength > maxPayloadLength) {
+            throw new IllegalArgumentException(
+                    "Payload is too large: an IPv4 packet can carry at most " + maxPayloadLength + " bytes.");
+        }
+    }
+
+    // ****************** CHECKSUM ****************** //
+
+    /**
+     * Calculates the header checksum by adding up the 2-byte header fields,
+     * folding the carry back in and taking the 1's complement
+     *
+     * @param packet       array holding the packet
+     * @param offset       index of the first header byte
+     * @param headerLength header length in bytes (IHL * 4)
+     * @return the header checksum (e.g. 0x9d35); 0 if the header checksum field
+     *         is already correct
+     */
+    static int headerChecksum(byte[] packet, int offset, int headerLength) {
+        int sum = 0;
+
+        for (int i = offset; i < offset + headerLength; i += 2) {
+            sum += ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+        }
+
+        return foldChecksum(sum);
+    }
+
+    /**
+     * ByteBuffer form of headerChecksum(byte[], int, int). Uses absolute gets, so
+     * the buffer's position is left untouched.
+     *
+     * @param buffer       buffer holding the packet
+     * @param offset       index of the first header byte
+     * @param headerLength header length in bytes (IHL * 4)
+     * @return the header checksum; 0 if the header checksum field is already
+     *         correct
+     */
+    static int headerChecksum(ByteBuffer buffer, int offset, int headerLength) {
+        int sum = 0;
+
+        for (int i = offset; i < offset + headerLength; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+
+        return foldChecksum(sum);
+    }
+
+    /**
+     * Adds the carryout back into a 2-byte sum and takes the 1's complement
+     *
+     * @param sum exact sum of 2-byte fields (may include carryout)
+     * @return 2-byte 1's complement checksum
+     */
+    static int foldChecksum(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+
+        return ~sum & 0xFFFF;
+    }
+
+    /**
+     * foldChecksum(int) for the 64-bit sums of sumWords()
+     *
+     * @param sum exact sum of 2-byte fields, or of 4-byte words made of them
+     * @return 2-byte 1's complement checksum
+     */
+    static int foldChecksum(long sum) {
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        return foldChecksum((int) ((sum & 0xFFFF) + ((sum >>> 16) & 0xFFFF)));
+    }
+
+    /**
+     * Calculates the payload checksum: the 1's complement of the 1's complement
+     * sum of a pseudo-header (source and destination addresses, protocol and
+     * payload length) and the payload, as TCP and UDP do
+     *
+     * @param payload       array holding the payload
+     * @param offset        index of the first payload byte
+     * @param length        number of payload bytes
+     * @param protocol      protocol field of the packet
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @return the payload checksum
+     */
+    static int payloadChecksum(byte[] payload, int offset, int length, int protocol, int sourceIP,
+            int destinationIP) {
+        return foldChecksum(pseudoHeaderSum(sourceIP, destinationIP, protocol, length)
+                + sumWords(payload, offset, length));
+    }
+
+    /**
+     * ByteBuffer form of payloadChecksum(byte[], ...). Uses absolute gets, so the
+     * buffer's position is left untouched.
+     */
+    static int payloadChecksum(ByteBuffer buffer, int offset, int length, int protocol, int sourceIP,
+            int destinationIP) {
+        return foldChecksum(pseudoHeaderSum(sourceIP, destinationIP, protocol, length)
+                + sumWords(buffer, offset, length));
+    }
+
+    private static long pseudoHeaderSum(int sourceIP, int destinationIP, int protocol, int payloadLength) {
+        return (sourceIP >>> 16) + (sourceIP & 0xFFFF) + (destinationIP >>> 16) + (destinationIP & 0xFFFF)
+                + protocol + payloadLength;
+    }
+
+    /**
+     * Adds up a run of bytes as big-endian 2-byte words, for a 1's complement
+     * checksum (a trailing odd byte is padded with a zero byte). The bytes are
+     * read 8 at a time in the machine's own byte order, which saves swapping
+     * every long: the 1's complement sum of byte-swapped words is the
+     * byte-swapped sum (RFC 1071, section 2), so the sum is swapped once at the
+     * end. Each long is added as its two 4-byte halves, which leaves the same 1's
+     * complement sum as adding its four 2-byte words, and a 64-bit total cannot
+     * overflow for any array Java can hold. Fold the result with
+     * foldChecksum(long).
+     *
+     * After useVectorChecksum(), the work is done with the Vector API instead.
+     *
+     * @param bytes  source array
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return the sum, not yet folded
+     */
+    static long sumWords(byte[] bytes, int offset, int length) {
+        if (vectorWordSum != null) {
+            return vectorWordSum.sum(bytes, offset, length);
+        }
+        return scalarSumWords(bytes, offset, length);
+    }
+
+    /**
+     * sumWords() without the Vector API
+     */
+    static long scalarSumWords(byte[] bytes, int offset, int length) {
+        long sum = 0;
+        long sum2 = 0; // a second accumulator, so consecutive additions do not wait on each other
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 16; i += 16) {
+            long word = (long) LONGS.get(bytes, i);
+            long word2 = (long) LONGS.get(bytes, i + 8);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            sum2 += (word2 >>> 32) + (word2 & 0xFFFFFFFFL);
+        }
+        if (end - i >= 8) {
+            long word = (long) LONGS.get(bytes, i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            i += 8;
+        }
+        sum = fromNativeOrder(sum + sum2);
+
+        for (; end - i >= 2; i += 2) {
+            sum += ((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF);
+        }
+        if (i < end) {
+            sum += (bytes[i] & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * ByteBuffer form of sumWords(byte[], int, int), for direct buffers. Uses
+     * absolute gets, so the buffer's position is left untouched, and reads the
+     * bytes the same way whatever the buffer's byte order.
+     *
+     * @param buffer source buffer
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return the sum, not yet folded
+     */
+    static long sumWords(ByteBuffer buffer, int offset, int length) {
+        if (vectorWordSum != null) {
+            return vectorWordSum.sum(buffer, offset, length);
+        }
+        return scalarSumWords(buffer, offset, length);
+    }
+
+    /**
+     * sumWords(ByteBuffer, ...) without the Vector API
+     */
+    static long scalarSumWords(ByteBuffer buffer, int offset, int length) {
+        long sum = 0;
+        long sum2 = 0;
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 16; i += 16) {
+            long word = (long) BUFFER_LONGS.get(buffer, i);
+            long word2 = (long) BUFFER_LONGS.get(buffer, i + 8);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            sum2 += (word2 >>> 32) + (word2 & 0xFFFFFFFFL);
+        }
+        if (end - i >= 8) {
+            long word = (long) BUFFER_LONGS.get(buffer, i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            i += 8;
+        }
+        sum = fromNativeOrder(sum + sum2);
+
+        for (; end - i >= 2; i += 2) {
+            sum += ((buffer.get(i) & 0xFF) << 8) | (buffer.get(i + 1) & 0xFF);
+        }
+        if (i < end) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Turns a sum of words read in the machine's byte order into the sum of the
+     * same words read big-endian
+     *
+     * @param sum unfolded sum, as sumWords() builds it
+     * @return a sum with the same 1's complement value, big-endian
+     */
+    static long fromNativeOrder(long sum) {
+        if (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) {
+            return sum;
+        }
+        return Short.reverseBytes((short) ~foldChecksum(sum)) & 0xFFFF;
+    }
+
+    /**
+     * Another implementation of sumWords(), e.g. VectorChecksum
+     */
+    interface WordSum {
+
+        long sum(byte[] bytes, int offset, int length);
+
+        long sum(ByteBuffer buffer, int offset, int length);
+    }
+
+    /**
+     * Switches sumWords() (and so every payload checksum) over to the Vector API
+     * implementation in vector/VectorChecksum.java, which is compiled and run
+     * separately because jdk.incubator.vector is not resolved by default:
+     *
+     * javac --add-modules jdk.incubator.vector -d . vector/VectorChecksum.java
+     * java --add-modules jdk.incubator.vector PacketReceiver --vector-checksum
+     *
+     * Must be called before any other thread computes a checksum.
+     *
+     * @throws IllegalStateException if VectorChecksum is not compiled, or the
+     *                               module is not available
+     */
+    static void useVectorChecksum() {
+        try {
+            vectorWordSum = (WordSum) Class.forName("VectorChecksum").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("--vector-checksum needs vector/VectorChecksum.java compiled and the JVM "
+                    + "started with --add-modules jdk.incubator.vector", e);
+        }
+    }
+
+    /**
+     * Updates a header checksum after one 2-byte header field changed, without
+     * adding up the whole header again (RFC 1624, eqn. 3: HC' = ~(~HC + ~m + m'))
+     *
+     * @param checksum current header checksum
+     * @param oldField previous value of the changed 2-byte field
+     * @param newField new value of the changed 2-byte field
+     * @return the checksum for the updated header
+     */
+    static int updateChecksum(int checksum, int oldField, int newField) {
+        return foldChecksum((~checksum & 0xFFFF) + (~oldField & 0xFFFF) + newField);
+    }
+
+    // ****************** BYTE HELPERS ****************** //
+
+    /**
+     * Writes a 2-byte big-endian value into a byte array
+     *
+     * @param bytes  destination array
+     * @param offset index of the first byte to write
+     * @param value  value to write (only the low 16 bits are used)
+     */
+    static void writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Writes a 4-byte big-endian integer into a byte array
+     *
+     * @param bytes  destination array
+     * @param offset index of the first byte to write
+     * @param value  integer to write
+     */
+    static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a 4-byte big-endian integer from a byte array
+     *
+     * @param bytes  source array
+     * @param offset index of the first byte to read
+     * @return the integer
+     */
+    static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Converts a regular string IPv4 address to its 32-bit integer form
+     *
+     * @param ipAddress (e.g. 192.168.0.3)
+     * @return IPv4 address as an int (e.g. 0xC0A80003)
+     */
+    static int convertIPv4StringToInt(String ipAddress) {
+        String[] ipOctets = ipAddress.split("\\.");
+        int address = 0;
+
+        // shift each octet into place, most significant octet first
+        for (int i = 0; i < 4; i++) {
+            address = (address << 8) | (Integer.parseInt(ipOctets[i]) & 0xFF);
+        }
+
+        return address;
+    }
+
+    /**
+     * Converts a 32-bit integer IPv4 address to a regular string IPv4 address
+     *
+     * @param address (e.g. 0x0A064156)
+     * @return IPv4 address string (e.g.: 10.6.65.86)
+     */
+    static String convertIntToIPv4String(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    // ****************** HEXADECIMAL (DEBUG / LEGACY) ****************** //
+
+    /**
+     * Renders raw packet bytes as a hexadecimal string. Only used for debugging;
+     * packets are sent over the wire in binary.
+     *
+     * @param bytes  (e.g. [0x45, 0x00, 0x00, 0x28])
+     * @param offset index of the first byte to render
+     * @param length number of bytes to render
+     * @return hexadecimal string (e.g. 45000028)
+     */
+    static String convertBytesToHexadecimal(byte[] bytes, int offset, int length) {
+        char[] hex = new char[length * 2];
+
+        for (int i = 0; i < length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[offset + i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[offset + i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    static String convertBytesToHexadecimal(byte[] bytes) {
+        return convertBytesToHexadecimal(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Converts a singular packet string into a string array of 2-byte packet fields
+     *
+     * @param packet (e.g. 450000281c46)
+     * @return string array of fields (e.g. ["4500", "0028", "1c46"])
+     */
+    static String[] convertStringToFields(String packet) {
+
+        // create an array to store the substrings
+        String[] fields = new String[packet.length() / 4];
+
+        // iterate over the input string and extract substrings of length 4
+        for (int i = 0; i < packet.length(); i += 4) {
+            fields[i / 4] = packet.substring(i, i + 4);
+        }
+
+        return fields;
+
+    }
+
+    /**
+     * @param packet hexadecimal string packet (e.g. 4500...)
+     * @return number of hexadecimal digits in its header (IHL * 8), or 40 if the
+     *         IHL digit is not a valid header length
+     */
+    static int legacyHeaderDigits(String packet) {
+        int ihl = packet.length() > 1 ? Character.digit(packet.charAt(1), 16) : -1;
+        return ihl < 5 ? 40 : ihl * 8;
+    }
+
+    /**
+     * Calculates the header checksum field of a hexadecimal string packet
+     *
+     * @param packet (e.g.
+     *               "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030")
+     * @return the header checksum (e.g. 9d35)
+     */
+    static String calculateHeaderChecksum(String packet) {
+
+        // STEP 1: Split the long string into an array of substrings, each of length 4
+        // For example, the string
+        // "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030"
+        // should become an array of strings representing ONLY THE HEADER
+        // ["4500","0028","1c46","4000","4006","0000","C0A8","0003","C0A8","0001","434f","4c4f","4d42","4941","2032","202d","204d","4553","5349","2030"]
+        // ignore all data that comes after the header: IHL (the second digit) 4-byte words, 8 digits each,
+        // so the first 40 digits unless the header has options
+        packet = packet.substring(0, Math.min(legacyHeaderDigits(packet), packet.length()) / 4 * 4);
+
+        // create an array to store the substrings
+        String[] hexNums = convertStringToFields(packet); // iterate and extract substrings of length 4 from packet
+
+        // STEP 2: Calculate the header checksum
+
+        int sumSimple = 0; // exact sum of 2-byte header fields (will include the carryout if needed)
+
+        // calculate sum of 2-byte fields of the packet
+        // convert each hexNum string to an equivalent decimal integer; add them all up
+        for (String hexNum : hexNums) {
+            sumSimple += Integer.parseInt(hexNum, 16);
+        }
+        String sumHexStr = Integer.toHexString(sumSimple); // simple sum as a hexadecimal string
+
+        // determine whether the checksum has a carryout or not
+        int carryout = 0;
+        int checksum = 0;
+        if (sumHexStr.length() == 5) { // has carryout; calculate new checksum value
+            // split the carry out and the 2-byte checksum portion; add them together
+            carryout = Integer.parseInt(sumHexStr.substring(0, 1), 16);
+            checksum = Integer.parseInt(sumHexStr.substring(1), 16);
+            checksum += carryout;
+        } else { // no carryout
+            checksum = sumSimple;
+        }
+
+        // calculate 1's complement
+        checksum = 65535 - checksum; // 65535 is the decimal equivalent of FFFF in hexadecimal
+
+        sumHexStr = Integer.toHexString(checksum);
+
+        return sumHexStr;
+    }
+}
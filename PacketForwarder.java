@@ -0,0 +1,303 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forwarding half of a NioPacketReceiver event loop, for running the receiver
+ * as a hop between a sender and further receivers.
+ *
+ * Each packet's destination is looked up in the RoutingTable. Packets for a
+ * next hop get their TTL decremented and their header checksum patched with an
+ * incremental update (RFC 1624), in place in the event loop's read buffer, and
+ * the frame is then written to the next hop straight out of that buffer. Only
+ * what the next hop cannot take right away is copied into a per-link queue.
+ *
+ * The hop answers the sender itself (store-and-forward), so the sender's
+ * replies mean "forwarded", not "delivered". The next hop's replies are
+ * counted and dropped. Each event loop has its own forwarder and its own
+ * connection to every next hop, so nothing here is shared between threads.
+ */
+public class PacketForwarder {
+
+    static final int MAX_PENDING_BYTES = 4 * 1024 * 1024; // stop reading from senders while a link is this far behind
+    static final int TTL_OFFSET = 8; // TTL and protocol share the 2-byte field at this header offset
+    static final int CHECKSUM_OFFSET = 10;
+
+    /**
+     * Connection to one next hop
+     */
+    static class Link {
+        final InetSocketAddress address;
+        SocketChannel channel; // null until connected, and again after the next hop goes away
+        SelectionKey key;
+        ByteBuffer pending = ByteBuffer.allocateDirect(64 * 1024); // frames waiting to be written (write mode)
+        final ByteBuffer replies = ByteBuffer.allocate(16 * 1024); // partial replies from the next hop (write mode)
+        final List<SelectionKey> blocked = new ArrayList<>(); // senders paused until pending drains
+        boolean failed; // the last connection attempt failed (logged once)
+        long delivered; // replies from the next hop saying a packet arrived intact
+        long refused; // any other reply (corrupted, no route, TTL exceeded further on)
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final RoutingTable routes;
+    private final Selector selector;
+    private final ReceiverMetrics metrics;
+    private final Link[] links;
+    final LatencyHistogram latency = new LatencyHistogram(); // from read until handed to the next hop
+
+    PacketForwarder(RoutingTable routes, Selector selector, ReceiverMetrics metrics) {
+        this.routes = routes;
+        this.selector = selector;
+        this.metrics = metrics;
+        this.links = new Link[routes.nextHopCount()];
+        for (int i = 1; i < links.length; i++) {
+            links[i] = new Link(routes.nextHop(i));
+        }
+    }
+
+    /**
+     * Routes a verified packet. The packet's frame (4-byte length, then the
+     * packet) must be in the buffer at frameStart; its header is updated in
+     * place before the frame is sent on.
+     *
+     * @param packet        view over the packet, valid
+     * @param buffer        buffer holding the frame
+     * @param frameStart    index of the frame's length prefix
+     * @param receivedNanos System.nanoTime() when the frame was read
+     * @param sender        selection key of the sender's connection, paused if the next hop falls behind
+     * @return the reply for the sender, or null if the packet is for this hop
+     * @throws IOException if the sender's connection fails
+     */
+    byte[] forward(PacketView packet, ByteBuffer buffer, int frameStart, long receivedNanos, SelectionKey sender)
+            throws IOException {
+        int route = routes.lookup(packet.destinationAddress());
+        if (route == RoutingTable.LOCAL) {
+            return null;
+        }
+        if (route == RoutingTable.NO_ROUTE) {
+            metrics.packetsNoRoute.increment();
+            return PacketReceiver.NO_ROUTE_REPLY;
+        }
+        if (packet.ttl() <= 1) {
+            metrics.packetsTtlExpired.increment();
+            return PacketReceiver.TTL_EXCEEDED_REPLY;
+        }
+
+        Link link = links[route];
+        if (link.channel == null && !connect(link)) {
+            metrics.packetsNoRoute.increment();
+            return PacketReceiver.NO_ROUTE_REPLY;
+        }
+
+        // decrement the TTL and patch the checksum for the one field that changed
+        int header = frameStart + 4;
+        int oldField = buffer.getShort(header + TTL_OFFSET) & 0xFFFF;
+        int newField = oldField - 0x100;
+        int checksum = PacketCodec.updateChecksum(packet.headerChecksum(), oldField, newField);
+        buffer.putShort(header + TTL_OFFSET, (short) newField);
+        buffer.putShort(header + CHECKSUM_OFFSET, (short) checksum);
+
+        send(link, buffer, frameStart, 4 + packet.length());
+        if (link.channel == null) { // the next hop went away while sending
+            metrics.packetsNoRoute.increment();
+            return PacketReceiver.NO_ROUTE_REPLY;
+        }
+        metrics.packetsForwarded.increment();
+        long nanos = System.nanoTime() - receivedNanos;
+        metrics.recordForward(nanos);
+        latency.record(nanos);
+
+        if (link.pending.position() > MAX_PENDING_BYTES) {
+            pause(link, sender);
+        }
+        return PacketReceiver.ACK_REPLY;
+    }
+
+    /**
+     * Writes a frame to the next hop straight out of the buffer it was read into.
+     * Whatever the socket does not take right away (and everything while earlier
+     * frames are still queued) is copied to the link's queue.
+     */
+    private void send(Link link, ByteBuffer buffer, int start, int length) throws IOException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(start + length).position(start);
+        try {
+            if (link.pending.position() == 0) {
+                metrics.bytesOut.add(link.channel.write(buffer));
+            }
+            if (buffer.hasRemaining()) {
+                queue(link, buffer);
+            }
+        } catch (IOException e) {
+            closeLink(link, e);
+        } finally {
+            buffer.limit(limit).position(position);
+        }
+    }
+
+    private void queue(Link link, ByteBuffer frame) {
+        if (link.pending.remaining() < frame.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(
+                    Math.max(link.pending.capacity() * 2, link.pending.position() + frame.remaining()));
+            link.pending.flip();
+            larger.put(link.pending);
+            link.pending = larger;
+        }
+        link.pending.put(frame);
+        link.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Stops reading from a sender until the link has caught up
+     */
+    private void pause(Link link, SelectionKey sender) {
+        NioPacketReceiver.Connection connection = (NioPacketReceiver.Connection) sender.attachment();
+        if (!connection.blocked) {
+            connection.blocked = true;
+            link.blocked.add(sender);
+        }
+    }
+
+    private void resumeSenders(Link link) {
+        for (SelectionKey sender : link.blocked) {
+            NioPacketReceiver.Connection connection = (NioPacketReceiver.Connection) sender.attachment();
+            connection.blocked = false;
+            if (sender.isValid() && !connection.closing) {
+                sender.interestOps(sender.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+        link.blocked.clear();
+    }
+
+    /**
+     * Connects to a next hop. The connect itself blocks the event loop, which is
+     * fine for the nearby hops this is meant for; after that the link is
+     * non-blocking like every other connection of the loop.
+     *
+     * @return false if the next hop cannot be reached
+     */
+    private boolean connect(Link link) {
+        try {
+            SocketChannel channel = SocketChannel.open(link.address);
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            link.key = channel.register(selector, SelectionKey.OP_READ, link);
+            link.channel = channel;
+            link.failed = false;
+            return true;
+        } catch (IOException e) {
+            if (!link.failed) {
+                System.out.println("Cannot reach next hop " + link.address + ": " + e.getMessage());
+                link.failed = true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Handles a link the selector reported as ready: reads and counts the next
+     * hop's replies, and writes queued frames
+     *
+     * @param link link whose key was selected
+     */
+    void handle(Link link) {
+        try {
+            if (link.key.isReadable()) {
+                readReplies(link);
+            }
+            if (link.channel != null && link.key.isValid() && link.key.isWritable()) {
+                link.pending.flip();
+                metrics.bytesOut.add(link.channel.write(link.pending));
+                link.pending.compact();
+                if (link.pending.position() == 0) {
+                    link.key.interestOps(SelectionKey.OP_READ);
+                }
+                if (link.pending.position() <= MAX_PENDING_BYTES / 2) {
+                    resumeSenders(link);
+                }
+            }
+        } catch (IOException e) {
+            closeLink(link, e);
+        }
+    }
+
+    private void readReplies(Link link) throws IOException {
+        int bytesRead = link.channel.read(link.replies);
+        if (bytesRead == -1) {
+            throw new EOFException("the next hop closed the connection");
+        }
+
+        // replies are writeUTF frames: a 2-byte length followed by the text
+        ByteBuffer replies = link.replies;
+        replies.flip();
+        byte[] ack = PacketReceiver.ACK_REPLY;
+        while (replies.remaining() >= 2) {
+            int start = replies.position();
+            int length = replies.getShort(start) & 0xFFFF;
+            if (replies.remaining() < 2 + length) {
+                break;
+            }
+            replies.position(start + 2 + length);
+            if (Arrays.equals(replies.array(), start, start + 2 + length, ack, 0, ack.length)) {
+                link.delivered++;
+            } else {
+                link.refused++;
+            }
+        }
+        replies.compact();
+    }
+
+    private void closeLink(Link link, IOException cause) {
+        System.out.println("Lost next hop " + link.address + ": " + cause.getMessage());
+        if (link.key != null) {
+            link.key.cancel();
+        }
+        try {
+            if (link.channel != null) {
+                link.channel.close();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+        link.channel = null;
+        link.pending.clear(); // frames that were not written are lost, as on a real link
+        link.replies.clear();
+        resumeSenders(link);
+    }
+
+    /**
+     * Closes every link
+     */
+    void close() {
+        for (int i = 1; i < links.length; i++) {
+            try {
+                if (links[i].channel != null) {
+                    links[i].channel.close();
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Adds this forwarder's replies from each next hop to the totals
+     *
+     * @param delivered per next hop index, replies saying the packet arrived intact
+     * @param refused   per next hop index, any other reply
+     */
+    void addReplyCounts(long[] delivered, long[] refused) {
+        for (int i = 1; i < links.length; i++) {
+            delivered[i] += links[i].delivered;
+            refused[i] += links[i].refused;
+        }
+    }
+}
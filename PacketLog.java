@@ -0,0 +1,292 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous per-packet log for the long-running receivers.
+ *
+ * The threads that receive packets never format or write anything: they copy
+ * the start of each packet worth logging into the next slot of a
+ * pre-allocated ring and move on. A single background thread formats the
+ * events in batches, one structured line each (time, outcome, addresses,
+ * identification, sizes, message and optionally the raw hex), and writes each
+ * batch to stdout or a file with one write. Any number of threads may log at
+ * once: a producer claims its slot with a compare-and-swap and publishes it by
+ * writing the slot's sequence number.
+ *
+ * If the writer falls behind and the ring fills up, new events are dropped
+ * and counted rather than making the receiving threads wait.
+ *
+ * How much is logged is set by the Level, and intact packets can be sampled
+ * (1 in N, at random); corrupted packets are always logged unless logging is
+ * off.
+ */
+public class PacketLog {
+
+    static final int DEFAULT_RING_SIZE = 8192;
+    static final int MAX_LOGGED_BYTES = 512; // of each packet; longer messages and hex dumps are cut short
+    static final int MAX_BATCH = 1024; // events formatted per write
+    static final long IDLE_PARK_NANOS = 1_000_000;
+
+    /**
+     * What gets logged
+     */
+    enum Level {
+        OFF, // nothing
+        CORRUPT, // corrupted packets only
+        PACKETS, // a line per packet
+        HEX; // a line per packet, with the raw packet in hexadecimal
+
+        static Level parse(String name) {
+            switch (name) {
+                case "off":
+                    return OFF;
+                case "corrupt":
+                    return CORRUPT;
+                case "packets":
+                    return PACKETS;
+                case "hex":
+                    return HEX;
+                default:
+                    throw new IllegalArgumentException("Log levels are off, corrupt, packets and hex: " + name);
+            }
+        }
+    }
+
+    /**
+     * One packet waiting to be logged
+     */
+    private static class Event {
+        volatile long sequence = -1; // set last, once the rest of the slot is filled in
+        long timeMillis;
+        boolean valid;
+        int length; // of the whole packet
+        int headerLength;
+        int copied; // bytes of the packet in data
+        final byte[] data = new byte[MAX_LOGGED_BYTES];
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1); // last sequence claimed by a producer
+    private final PacketRing.Sequence written = new PacketRing.Sequence(); // last sequence the writer is done with
+    private final Level level;
+    private final int sampleEvery;
+    private final PrintStream out;
+    private final boolean ownsOut;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    final LongAdder dropped = new LongAdder(); // events lost to a full ring
+    private volatile long linesWritten;
+
+    /**
+     * Starts the writer thread
+     *
+     * @param level       what to log
+     * @param sampleEvery log 1 in this many intact packets
+     * @param ringSize    events buffered between the receivers and the writer, a power of two
+     * @param out         where to write the lines
+     * @param ownsOut     whether to close out when the log is closed
+     */
+    PacketLog(Level level, int sampleEvery, int ringSize, PrintStream out, boolean ownsOut) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("The log ring size must be a power of two: " + ringSize);
+        }
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("The sample rate must be at least 1: " + sampleEvery);
+        }
+        this.ring = new Event[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = ringSize - 1;
+        this.level = level;
+        this.sampleEvery = sampleEvery;
+        this.out = out;
+        this.ownsOut = ownsOut;
+
+        this.writer = new Thread(this::writeLoop, "packet-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates the log described by the command line, or returns null if nothing
+     * would ever be logged (--quiet or --log-level off)
+     *
+     * @param args command-line arguments
+     * @return the log, or null
+     * @throws IOException if the log file cannot be opened
+     */
+    static PacketLog fromArgs(String[] args) throws IOException {
+        return fromArgs(args, "");
+    }
+
+    /**
+     * Creates the log described by the command line, or returns null if nothing
+     * would ever be logged (--quiet or --log-level off)
+     *
+     * @param args       command-line arguments
+     * @param fileSuffix appended to the --log file name (e.g. ".2"), so that each
+     *                   shard of a sharded receiver writes a file of its own
+     * @return the log, or null
+     * @throws IOException if the log file cannot be opened
+     */
+    static PacketLog fromArgs(String[] args, String fileSuffix) throws IOException {
+        Level level = Level.parse(CommandLine.getOption(args, "--log-level",
+                CommandLine.hasFlag(args, "--hex") ? "hex" : "packets"));
+        if (level == Level.OFF || CommandLine.hasFlag(args, "--quiet")) {
+            return null;
+        }
+
+        String file = CommandLine.getOption(args, "--log", null);
+        if (file != null) {
+            file += fileSuffix;
+        }
+        PrintStream out = file == null
+                ? new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false,
+                        StandardCharsets.UTF_8)
+                : new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16), false,
+                        StandardCharsets.UTF_8);
+        return new PacketLog(level, CommandLine.getIntOption(args, "--log-sample", 1),
+                CommandLine.getIntOption(args, "--log-ring", DEFAULT_RING_SIZE), out, file != null);
+    }
+
+    /**
+     * Logs a packet that has just been wrapped (and so verified) by a PacketView,
+     * if the level and sampling call for it. Never blocks.
+     *
+     * @param packet view over the packet
+     */
+    void log(PacketView packet) {
+        boolean valid = packet.isValid();
+        if (valid && (level == Level.CORRUPT
+                || (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0))) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get() + 1;
+            if (sequence - written.get() > ring.length) {
+                dropped.increment(); // the writer is a whole ring behind
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence - 1, sequence));
+
+        Event event = ring[(int) (sequence & mask)];
+        event.timeMillis = System.currentTimeMillis();
+        event.valid = valid;
+        event.length = packet.length();
+        event.headerLength = valid ? packet.headerLength() : 0;
+        event.copied = packet.copyPrefix(event.data);
+        event.sequence = sequence; // volatile write: the event is visible before its sequence
+    }
+
+    // ****************** WRITER ****************** //
+
+    private void writeLoop() {
+        StringBuilder text = new StringBuilder(MAX_BATCH * 128);
+        boolean hex = level == Level.HEX;
+        long next = 0;
+        while (true) {
+            boolean stopping = !running; // read before draining, so nothing logged before close() is missed
+            int count = 0;
+            for (; count < MAX_BATCH && ring[(int) (next & mask)].sequence == next; count++, next++) {
+                format(ring[(int) (next & mask)], hex, text);
+            }
+            if (count > 0) {
+                written.set(next - 1); // the slots can be reused
+                out.append(text);
+                out.flush();
+                text.setLength(0);
+                linesWritten += count;
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Appends one line, e.g.
+     * 2026-01-01T12:00:00.123Z accepted src=10.0.0.1 dst=10.0.0.2 id=4660 bytes=25 message="Hello"
+     */
+    private static void format(Event event, boolean hex, StringBuilder text) {
+        text.append(Instant.ofEpochMilli(event.timeMillis));
+        byte[] data = event.data;
+        if (event.valid) {
+            text.append(" accepted src=").append(PacketCodec.convertIntToIPv4String(PacketCodec.readInt(data, 12)))
+                    .append(" dst=").append(PacketCodec.convertIntToIPv4String(PacketCodec.readInt(data, 16)))
+                    .append(" id=").append(((data[4] & 0xFF) << 8) | (data[5] & 0xFF))
+                    .append(" bytes=").append(event.length)
+                    .append(" payload=").append(event.length - event.headerLength)
+                    .append(" message=\"");
+            appendEscaped(text, new String(data, event.headerLength, event.copied - event.headerLength,
+                    StandardCharsets.UTF_8));
+            text.append(event.copied < event.length ? "...\"" : "\"");
+        } else {
+            text.append(" corrupt bytes=").append(event.length);
+        }
+        if (hex) {
+            text.append(" hex=").append(PacketCodec.convertBytesToHexadecimal(data, 0, event.copied))
+                    .append(event.copied < event.length ? "..." : "");
+        }
+        text.append('\n');
+    }
+
+    /**
+     * Keeps a message on one line: quotes, backslashes and control characters
+     * are escaped
+     */
+    private static void appendEscaped(StringBuilder text, String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else if (c < 0x20) {
+                text.append(String.format("\\x%02x", (int) c));
+            } else {
+                text.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return lines written so far
+     */
+    long linesWritten() {
+        return linesWritten;
+    }
+
+    // ****************** SHUTDOWN ****************** //
+
+    /**
+     * Writes out whatever is still in the ring, stops the writer and prints how
+     * many events were logged and dropped
+     *
+     * @throws InterruptedException
+     */
+    void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join();
+        if (ownsOut) {
+            out.close();
+        }
+        System.out.println("Packet log: " + linesWritten + " lines written, " + dropped.sum()
+                + " events dropped because the log could not keep up.");
+    }
+}
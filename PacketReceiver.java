@@ -1,116 +1,388 @@
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class PacketReceiver extends Thread {
 
+    static final int DEFAULT_PORT = 8888;
+    // a platform thread is held for the whole life of a connection, so this caps concurrent senders
+    static final int DEFAULT_PLATFORM_THREADS = 256;
+    static final int CONNECTION_BUFFER_SIZE = 32 * 1024; // per connection read buffer; grows for larger frames
+    static final int REPLY_BUFFER_SIZE = 4 * 1024; // per connection replies waiting to be flushed
+    static final String ACK_MESSAGE = "I received your message succesfully! Goodbye!";
+    static final String CORRUPT_MESSAGE = "Oh no, the packet I received was corrupted. Send me your message again when we talk next time!";
+    static final String NO_ROUTE_MESSAGE = "I have no route to the packet's destination. Packet discarded!";
+    static final String TTL_EXCEEDED_MESSAGE = "The packet's time to live ran out before it reached its destination. Packet discarded!";
+
+    // replies pre-encoded in the format DataOutputStream.writeUTF produces, so PacketSender can read them with readUTF
+    static final byte[] ACK_REPLY = encodeReply(ACK_MESSAGE);
+    static final byte[] CORRUPT_REPLY = encodeReply(CORRUPT_MESSAGE);
+    static final byte[] NO_ROUTE_REPLY = encodeReply(NO_ROUTE_MESSAGE);
+    static final byte[] TTL_EXCEEDED_REPLY = encodeReply(TTL_EXCEEDED_MESSAGE);
+
+    private final ServerSocket serverSocket; // opened through a channel, so every connection has a SocketChannel
+    private final ExecutorService workers;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet(); // open connections, closed on shutdown
+    private final PacketLog log; // null when not logging packets
+    private final ReceiverMetrics metrics;
+    private final FragmentReassembler reassembler; // shared by every connection
+    private final PcapWriter capture; // null unless capturing
+    private Path saveDirectory; // where files sent with --send-file are saved; null refuses them
+    private volatile boolean running = true;
+
     /**
-     * Converts a hexadecimal string IPv4 address to a regular string IPv4 address
+     * Creates a long-running receiver that accepts any number of senders on the
+     * given port and hands each connection to one of the workers
      * 
-     * @param hexIpAddress (e.g. 0A064156)
-     * @return IPv4 address string (e.g.: 10.6.65.86)
+     * @param port        TCP port to listen on
+     * @param workers     executor that runs one task per connection
+     * @param log         per-packet log, or null to log nothing
+     * @param metrics     counters updated by the connection handlers
+     * @param reassembler puts fragmented datagrams back together
+     * @param capture     records every intact packet, or null
+     * @throws IOException if the port cannot be bound
      */
-    static String convertHexadecimalToIPv4String(String hexIpAddress) {
+    PacketReceiver(int port, ExecutorService workers, PacketLog log, ReceiverMetrics metrics,
+            FragmentReassembler reassembler, PcapWriter capture) throws IOException {
+        super("packet-receiver-accept");
+        this.serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+        this.workers = workers;
+        this.log = log;
+        this.metrics = metrics;
+        this.reassembler = reassembler;
+        this.capture = capture;
+    }
 
-        String ip = "";
+    /**
+     * Accepts files sent with "PacketSender --send-file" and saves them in the
+     * given directory. Must be called before start().
+     *
+     * @param directory existing directory to save received files in
+     */
+    void saveFilesTo(Path directory) {
+        this.saveDirectory = directory;
+    }
 
-        // splits the hex IP address into groups of 2 and then convert them to integers
-        // 0A = 10 -- 06 = 06 -- 41 = 65 -- 56 = 86
-        for (int i = 0; i < hexIpAddress.length(); i = i + 2) {
-            ip = ip + Integer.valueOf(hexIpAddress.substring(i, i + 2), 16);
+    /**
+     * Encodes a reply the same way DataOutputStream.writeUTF does
+     *
+     * @param message reply text
+     * @return 2-byte length followed by the modified UTF-8 bytes
+     */
+    static byte[] encodeReply(String message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(message);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            // do not add a period if this is the last octet in the IPv4 address
-            if (i != hexIpAddress.length() - 2) {
-                ip += ".";
+    /**
+     * Creates the executor that runs one task per connection. A virtual thread per
+     * connection is used when the JVM supports it (Java 21+); otherwise, or when
+     * "platform" is requested, a bounded pool of platform threads is used.
+     * 
+     * @param pool    "virtual" or "platform"
+     * @param threads size of the platform thread pool
+     * @return executor for connection handlers
+     */
+    static ExecutorService newWorkerPool(String pool, int threads) {
+        if (pool.equals("virtual")) {
+            try {
+                // looked up reflectively so the receiver still compiles and runs on older JDKs
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                System.out.println("Virtual threads are not available on this JVM; using " + threads
+                        + " platform threads instead.");
             }
         }
 
-        return ip;
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "packet-receiver-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     /**
-     * Converts a singular packet string into a string array of 2-byte packet fields
-     * 
-     * @param packet (e.g. 450000281c46)
-     * @return string array of fields (e.g. ["4500", "0028", "1c46"])
+     * Accept loop: waits for senders and hands each connection to a worker until
+     * shutdown() is called
      */
-    static String[] convertStringToFields(String packet) {
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket connection = serverSocket.accept();
+                connections.add(connection);
+                workers.execute(() -> handleConnection(connection));
+            } catch (RejectedExecutionException e) {
+                break; // workers are shutting down
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Failed to accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
 
-        // create an array to store the substrings
-        String[] fields = new String[packet.length() / 4];
+    /**
+     * Reads packets from one sender until it closes the connection, replying to
+     * each one with whether it arrived intact.
+     *
+     * Frames are read straight into a direct buffer borrowed from the
+     * BufferPool and decoded where they landed, and the replies are collected
+     * in a second pooled buffer, so a connection allocates nothing per packet.
+     * The replies are flushed once every frame of a read has been answered.
+     * 
+     * @param connection socket connected to a sender
+     */
+    void handleConnection(Socket connection) {
+        PacketView packet = new PacketView(); // reused for every packet on this connection
+        PacketView reassembled = new PacketView();
+        ByteBuffer in = BufferPool.DEFAULT.acquire(CONNECTION_BUFFER_SIZE); // write mode between reads
+        ByteBuffer out = BufferPool.DEFAULT.acquire(REPLY_BUFFER_SIZE);
+        FileSink files = null; // created by the connection's first file transfer
+        metrics.connectionOpened();
+
+        try (Socket socket = connection) {
+            SocketChannel channel = socket.getChannel();
+            int bytesRead;
+            while ((bytesRead = channel.read(in)) != -1) { // -1: sender closed the connection
+                metrics.bytesIn.add(bytesRead);
+                in.flip();
+
+                // decode every complete frame: a 4-byte length followed by that many packet bytes
+                int needed = 0; // size of a frame too large for the buffer, if one is waiting
+                while (in.remaining() >= 4) {
+                    int start = in.position();
+                    int length = in.getInt(start);
+                    if (length < 0 || length > PacketCodec.MAX_PACKET_LENGTH) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        needed = 4 + length;
+                        break; // the rest of this frame has not arrived yet
+                    }
+
+                    int limit = in.limit();
+                    in.position(start + 4).limit(start + 4 + length);
+                    long decodeStart = System.nanoTime();
+                    packet.wrap(in);
+                    metrics.recordDecode(System.nanoTime() - decodeStart);
+                    byte[] reply;
+                    if (packet.isValid() && packet.protocol() == PacketCodec.PROTOCOL_STREAM) {
+                        if (files == null) {
+                            files = new FileSink(saveDirectory);
+                        }
+                        reply = files.receive(packet); // written to disk, not logged
+                        metrics.recordPacket(packet, true);
+                    } else {
+                        boolean isAuthentic = log == null
+                                ? receiveQuietly(packet, reassembled, reassembler, capture)
+                                : receivePacket(packet, reassembled, reassembler, capture, log);
+                        metrics.recordPacket(packet, isAuthentic);
+                        reply = isAuthentic ? ACK_REPLY : CORRUPT_REPLY;
+                    }
+                    in.limit(limit).position(start + 4 + length);
+
+                    if (out.remaining() < reply.length) {
+                        writeReplies(channel, out);
+                    }
+                    out.put(reply);
+                }
+                in.compact();
+                if (needed > in.capacity()) {
+                    in = BufferPool.DEFAULT.grow(in, needed);
+                }
+
+                // only flush once every packet the sender has already written is answered
+                writeReplies(channel, out);
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Connection from " + connection.getRemoteSocketAddress() + " failed: "
+                        + e.getMessage());
+            }
+        } finally {
+            if (files != null) {
+                files.close(); // keeps whatever part of an unfinished file arrived
+            }
+            BufferPool.DEFAULT.release(in);
+            BufferPool.DEFAULT.release(out);
+            BufferPool.DEFAULT.releaseThreadCache(); // the thread may end with the connection
+            connections.remove(connection);
+            metrics.connectionClosed();
+        }
+    }
 
-        // iterate over the input string and extract substrings of length 4
-        for (int i = 0; i < packet.length(); i += 4) {
-            fields[i / 4] = packet.substring(i, i + 4);
+    private void writeReplies(SocketChannel channel, ByteBuffer replies) throws IOException {
+        replies.flip();
+        while (replies.hasRemaining()) {
+            metrics.bytesOut.add(channel.write(replies));
         }
+        replies.clear();
+    }
 
-        return fields;
+    /**
+     * Handles a packet that has just been wrapped by a PacketView. A fragment is
+     * handed to the reassembler instead, and the datagram is only logged once its
+     * last fragment arrives; every intact fragment is acknowledged on its own.
+     * The payload checksum (see PacketCodec.OPTION_PAYLOAD_CHECKSUM) covers the
+     * whole datagram, so the fragment completing a datagram that fails it counts
+     * as corrupted. Intact packets (including fragments, as received) are also captured.
+     * 
+     * @param packet      view over the received packet
+     * @param reassembled view to wrap a completed datagram in
+     * @param reassembler puts fragmented datagrams back together
+     * @param capture     records every intact packet, or null
+     * @param log         per-packet log (formats and writes on its own thread)
+     * @return true if the packet is intact; otherwise, false
+     */
+    static boolean receivePacket(PacketView packet, PacketView reassembled, FragmentReassembler reassembler,
+            PcapWriter capture, PacketLog log) {
+        if (capture != null && packet.isValid()) {
+            capture.write(packet);
+        }
+        if (!packet.isValid() || !packet.isFragment()) {
+            log.log(packet);
+            return packet.isValid();
+        }
 
+        byte[] datagram = reassembler.accept(packet, System.nanoTime());
+        if (datagram == null) {
+            return true;
+        }
+        boolean isIntact = reassembled.wrap(datagram); // only now can the payload checksum be verified
+        log.log(reassembled);
+        return isIntact;
     }
 
     /**
-     * s
-     * Calculates the header checksum field of a packet
+     * receivePacket() without the per-packet log, for measuring how fast a
+     * receiver can go
      * 
-     * @param packet (e.g.
-     *               "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030")
-     * @return the header checksum (e.g. 9d35)
+     * @param packet      view over the received packet
+     * @param reassembled view to wrap a completed datagram in
+     * @param reassembler puts fragmented datagrams back together
+     * @param capture     records every intact packet, or null
+     * @return true if the packet is intact; otherwise, false
      */
-    static String calculateHeaderChecksum(String packet) {
+    static boolean receiveQuietly(PacketView packet, PacketView reassembled, FragmentReassembler reassembler,
+            PcapWriter capture) {
+        if (!packet.isValid()) {
+            return false;
+        }
+        if (capture != null) {
+            capture.write(packet);
+        }
+        if (!packet.isFragment()) {
+            return true;
+        }
+        byte[] datagram = reassembler.accept(packet, System.nanoTime());
+        return datagram == null || reassembled.wrap(datagram);
+    }
 
-        // STEP 1: Split the long string into an array of substrings, each of length 4
-        // For example, the string
-        // "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030"
-        // should become an array of strings representing ONLY THE HEADER
-        // ["4500","0028","1c46","4000","4006","0000","C0A8","0003","C0A8","0001","434f","4c4f","4d42","4941","2032","202d","204d","4553","5349","2030"]
-        // ignore all data that comes after the first 40 digits of the header
-        packet = packet.substring(0, 40);
+    /**
+     * Stops accepting new senders, waits up to the grace period for open
+     * connections to finish, then closes whatever is still open
+     * 
+     * @param gracePeriodMillis how long to wait for open connections
+     * @throws InterruptedException
+     */
+    void shutdown(long gracePeriodMillis) throws InterruptedException {
+        running = false;
+        try {
+            serverSocket.close(); // unblocks accept()
+        } catch (IOException e) {
+            // already closed
+        }
 
-        // create an array to store the substrings
-        String[] hexNums = convertStringToFields(packet); // iterate and extract substrings of length 4 from packet
+        workers.shutdown();
+        if (!workers.awaitTermination(gracePeriodMillis, TimeUnit.MILLISECONDS)) {
+            for (Socket connection : connections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            workers.shutdownNow();
+        }
+        join();
+    }
 
-        // STEP 2: Calculate the header checksum
+    /**
+     * Reads one length-prefixed binary frame (a 4-byte big-endian length followed
+     * by the raw packet bytes) from the sender
+     * 
+     * @param in stream connected to the sender
+     * @return raw packet bytes
+     * @throws IOException if the frame length is out of range or the stream ends
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > PacketCodec.MAX_PACKET_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
 
-        int sumSimple = 0; // exact sum of 2-byte header fields (will include the carryout if needed)
+        byte[] packet = new byte[length];
+        in.readFully(packet);
+        return packet;
+    }
 
-        // calculate sum of 2-byte fields of the packet
-        // convert each hexNum string to an equivalent decimal integer; add them all up
-        for (String hexNum : hexNums) {
-            sumSimple += Integer.parseInt(hexNum, 16);
-        }
-        String sumHexStr = Integer.toHexString(sumSimple); // simple sum as a hexadecimal string
+    /**
+     * Converts a hexadecimal string IPv4 address to a regular string IPv4 address
+     * 
+     * @param hexIpAddress (e.g. 0A064156)
+     * @return IPv4 address string (e.g.: 10.6.65.86)
+     */
+    static String convertHexadecimalToIPv4String(String hexIpAddress) {
 
-        // determine whether the checksum has a carryout or not
-        int carryout = 0;
-        int checksum = 0;
-        if (sumHexStr.length() == 5) { // has carryout; calculate new checksum value
-            // split the carry out and the 2-byte checksum portion; add them together
-            carryout = Integer.parseInt(sumHexStr.substring(0, 1), 16);
-            checksum = Integer.parseInt(sumHexStr.substring(1), 16);
-            checksum += carryout;
-        } else { // no carryout
-            checksum = sumSimple;
-        }
+        String ip = "";
 
-        // calculate 1's complement
-        checksum = 65535 - checksum; // 65535 is the decimal equivalent of FFFF in hexadecimal
+        // splits the hex IP address into groups of 2 and then convert them to integers
+        // 0A = 10 -- 06 = 06 -- 41 = 65 -- 56 = 86
+        for (int i = 0; i < hexIpAddress.length(); i = i + 2) {
+            ip = ip + Integer.valueOf(hexIpAddress.substring(i, i + 2), 16);
 
-        sumHexStr = Integer.toHexString(checksum);
+            // do not add a period if this is the last octet in the IPv4 address
+            if (i != hexIpAddress.length() - 2) {
+                ip += ".";
+            }
+        }
 
-        return sumHexStr;
+        return ip;
     }
 
+    /**
+     * Converts hexadecimal back to the text it encodes. The bytes are decoded as
+     * UTF-8 all at once, so characters longer than one byte survive.
+     * 
+     * @param hexString (e.g. 436166c3a9, the UTF-8 bytes of "Caf\u00e9")
+     * @return text (e.g. "Caf\u00e9")
+     */
     static String convertHexadecimalToString(String hexString) {
-        StringBuilder output = new StringBuilder("");
+        byte[] bytes = new byte[hexString.length() / 2];
 
-        for (int i = 0; i < hexString.length(); i += 2) {
-            String str = hexString.substring(i, i + 2);
-            output.append((char) Integer.parseInt(str, 16));
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hexString, i * 2, i * 2 + 2, 16);
         }
 
-        return output.toString();
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
+     * Legacy hexadecimal string form of PacketView.wrap(byte[]).
      * Verifies if the received encoded packet has errors or not
      * 
      * @param encodedPacket
@@ -118,7 +390,7 @@ public class PacketReceiver extends Thread {
      *         otherwise
      */
     static boolean verifyEncodedPacket(String encodedPacket) {
-        String modularSumHex = calculateHeaderChecksum(encodedPacket);
+        String modularSumHex = PacketCodec.calculateHeaderChecksum(encodedPacket);
         int modularSumDecimal = Integer.parseInt(modularSumHex, 16);
 
         if (modularSumDecimal == 0) {
@@ -139,7 +411,8 @@ public class PacketReceiver extends Thread {
         if (!verifyEncodedPacket(encodedPacket)) {
             message = "ERROR: This packet has been corrupted.";
         } else {
-            String encodedPayload = encodedPacket.substring(40); // extract the payload portion from the encoded packet
+            // extract the payload portion from the encoded packet, which starts after IHL 4-byte words of header
+            String encodedPayload = encodedPacket.substring(PacketCodec.legacyHeaderDigits(encodedPacket));
             message = convertHexadecimalToString(encodedPayload);
         }
 
@@ -164,9 +437,337 @@ public class PacketReceiver extends Thread {
         return message;
     }
 
+    /**
+     * Creates the metrics for a long-running receiver, registers them with JMX and,
+     * if --metrics-port is given, serves them over HTTP in Prometheus format
+     * 
+     * @param args        command-line arguments
+     * @param reassembler reassembler whose counters are included in the metrics
+     * @return the receiver's metrics
+     * @throws IOException if the metrics port cannot be bound
+     */
+    static ReceiverMetrics startMetrics(String[] args, FragmentReassembler reassembler) throws IOException {
+        ReceiverMetrics metrics = newMetrics(args);
+        metrics.reassembler = reassembler;
+        exportMetrics(args, metrics);
+        return metrics;
+    }
+
+    /**
+     * Creates a receiver's (or a shard's) metrics, with a flow table if
+     * --flow-table N is given
+     * 
+     * @param args command-line arguments
+     * @return metrics that are not exported yet
+     */
+    static ReceiverMetrics newMetrics(String[] args) {
+        ReceiverMetrics metrics = new ReceiverMetrics();
+        metrics.bufferPool = BufferPool.DEFAULT;
+        int flowCapacity = CommandLine.getIntOption(args, "--flow-table", 0);
+        if (flowCapacity > 0) {
+            long idleSeconds = CommandLine.getLongOption(args, "--flow-idle-seconds", FlowTable.DEFAULT_IDLE_SECONDS);
+            metrics.flows = new FlowTable(flowCapacity, idleSeconds * 1_000_000_000L);
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics with JMX and, if --metrics-port is given, serves them
+     * over HTTP in Prometheus format
+     * 
+     * @param args    command-line arguments
+     * @param metrics the receiver's metrics
+     * @throws IOException if the metrics port cannot be bound
+     */
+    static void exportMetrics(String[] args, ReceiverMetrics metrics) throws IOException {
+        metrics.registerMBean("SocketProgramming:type=ReceiverMetrics");
+
+        int metricsPort = CommandLine.getIntOption(args, "--metrics-port", -1);
+        if (metricsPort >= 0) {
+            metrics.startHttpEndpoint(metricsPort);
+            System.out.println("Metrics available on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+    }
+
+    /**
+     * Writes out and closes the per-packet log, if there is one
+     * 
+     * @param log per-packet log, or null
+     * @throws InterruptedException
+     */
+    static void closeLog(PacketLog log) throws InterruptedException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Prints the per-flow loss and duplicate counts of the busiest flows, if flows
+     * are tracked
+     * 
+     * @param metrics receiver metrics
+     */
+    static void printFlows(ReceiverMetrics metrics) {
+        if (metrics.flows != null) {
+            metrics.flows.printTopFlows(10);
+        }
+    }
+
+    /**
+     * Reads --save-dir and creates the directory if it does not exist yet
+     * 
+     * @param args command-line arguments
+     * @return directory to save received files in, or null if not given
+     * @throws IOException if the directory cannot be created
+     */
+    static Path saveDirectory(String[] args) throws IOException {
+        String directory = CommandLine.getOption(args, "--save-dir", null);
+        if (directory == null) {
+            return null;
+        }
+
+        Path path = Files.createDirectories(Path.of(directory));
+        System.out.println("Saving received files in " + path.toAbsolutePath());
+        return path;
+    }
+
+    /**
+     * Opens the pcap capture if --capture is given and makes sure it is closed
+     * (and its last segment trimmed) when the receiver exits
+     * 
+     * @param args command-line arguments
+     * @return the capture writer, or null if not capturing
+     * @throws IOException if the capture file cannot be created
+     */
+    static PcapWriter startCapture(String[] args) throws IOException {
+        String file = CommandLine.getOption(args, "--capture", null);
+        if (file == null) {
+            return null;
+        }
+
+        long segmentSize = CommandLine.getLongOption(args, "--capture-segment-mb", 64) * 1024 * 1024;
+        PcapWriter capture = new PcapWriter(Path.of(file), segmentSize);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                System.out.println("Could not finish the capture: " + e.getMessage());
+            }
+        }));
+        System.out.println("Capturing packets to " + file);
+        return capture;
+    }
+
+    /**
+     * Starts the receiver.
+     * 
+     * Without options it waits for a single packet from PacketSender, prints its
+     * contents and replies with whether it arrived intact. If the packet is a
+     * fragment, it keeps reading fragments until the whole datagram has arrived.
+     * Every mode reassembles fragmented datagrams.
+     * With --server it keeps running, accepts any number of concurrent senders and
+     * reads many packets per connection until it is stopped (Ctrl+C).
+     * 
+     * Options:
+     * --hex                     print every packet in hexadecimal
+     * --port N                  port to listen on (default 8888)
+     * --server                  long-running multi-client mode
+     * --pool virtual|platform   thread per connection kind in server mode (default virtual)
+     * --threads N               size of the platform thread pool (default 256)
+     * --nio                     long-running multi-client mode on non-blocking Selector event loops
+     * --loops N                 number of event loops in NIO mode (default cores)
+     * --shards N                NIO mode with N listeners on the same port (SO_REUSEPORT), each with its own event loop, buffers and metrics
+     * --udp                     long-running mode that receives one packet per UDP datagram
+     * --acks                    in UDP mode, acknowledge packets with one ack per sender per batch
+     * --reliable                in UDP mode, deliver each packet once and ack with a sliding window (for --udp --reliable senders)
+     * --quiet                   in the long-running modes, skip the line logged per packet (same as --log-level off)
+     * --log FILE                in the long-running modes, append the per-packet log to FILE instead of stdout
+     * --log-level LEVEL         off, corrupt (corrupted packets only), packets or hex (default packets, or hex with --hex)
+     * --log-sample N            log 1 in N intact packets, picked at random; corrupted ones are always logged (default 1)
+     * --log-ring N              packets buffered for the log writer, a power of two; more are dropped and counted (default 8192)
+     * --routes FILE             forward packets by destination, with routes read from FILE (uses NIO mode)
+     * --route PREFIX=NEXTHOP    add a route, e.g. 10.0.0.0/8=127.0.0.1:9001 or 0.0.0.0/0=local; repeatable
+     * --pipeline                NIO mode with decoding moved off the event loops onto decode workers
+     * --workers N               number of decode workers with --pipeline (default cores)
+     * --wait spin|yield|park    how idle decode workers wait for packets (default park)
+     * --ring-size N             frames buffered per event loop with --pipeline, a power of two (default 1024)
+     * --capture FILE            record every intact packet in a pcap file (e.g. capture.pcap)
+     * --capture-segment-mb N    size at which the capture rolls over to a new file (default 64)
+     * --metrics-port N          serve Prometheus metrics on http://127.0.0.1:N/metrics (server/NIO/UDP modes)
+     * --flow-table N            most flows (source/destination pairs) tracked for loss and duplicates (default 0 = off)
+     * --flow-idle-seconds S     drop a flow's statistics after S seconds without packets (default 60)
+     * --pool-debug              track pooled buffers and report any that were never released on shutdown
+     * --vector-checksum         verify payload checksums with the Vector API (see PacketCodec.useVectorChecksum())
+     * --save-dir DIR            in server and NIO modes, save files sent with "PacketSender --send-file" in DIR (see FileSink)
+     * 
+     * Example:
+     * java PacketReceiver --server --pool platform --threads 64
+     * java PacketReceiver --nio --loops 4
+     * java PacketReceiver --pipeline --loops 1 --workers 4 --wait spin --quiet
+     * java PacketReceiver --udp --quiet --acks
+     * java PacketReceiver --udp --reliable --quiet
+     * java PacketReceiver --server --log packets.log --log-sample 100
+     * java PacketReceiver --nio --quiet --save-dir received
+     * java PacketReceiver --shards 8 --quiet --metrics-port 9100
+     * java PacketReceiver --port 9001 --route 10.0.0.0/8=127.0.0.1:9002 --route 0.0.0.0/0=local
+     * 
+     * @param args
+     * @throws Exception
+     */
     public static void main(String[] args) throws Exception {
-        System.out.println("Packet Receiver Listening on port 8888\n");
-        ServerSocket serverSocket = new ServerSocket(8888);
+        if (CommandLine.hasFlag(args, "--pool-debug")) {
+            BufferPool.DEFAULT.enableLeakDetection();
+        }
+        if (CommandLine.hasFlag(args, "--vector-checksum")) {
+            PacketCodec.useVectorChecksum();
+        }
+        boolean printHex = CommandLine.hasFlag(args, "--hex");
+        int port = CommandLine.getIntOption(args, "--port", DEFAULT_PORT);
+        FragmentReassembler reassembler = new FragmentReassembler();
+        PcapWriter capture = startCapture(args);
+        RoutingTable routes = RoutingTable.fromArgs(args);
+        Path saveDirectory = saveDirectory(args);
+
+        if (CommandLine.hasFlag(args, "--shards")) {
+            if (routes != null || capture != null || CommandLine.hasFlag(args, "--pipeline")) {
+                throw new Exception("--shards cannot be combined with forwarding, --capture or --pipeline");
+            }
+            int shards = CommandLine.getIntOption(args, "--shards", Runtime.getRuntime().availableProcessors());
+
+            ReceiverMetrics[] shardMetrics = new ReceiverMetrics[shards];
+            PacketLog[] logs = new PacketLog[shards];
+            for (int i = 0; i < shards; i++) {
+                shardMetrics[i] = newMetrics(args);
+                logs[i] = PacketLog.fromArgs(args, shards > 1 ? "." + i : "");
+                shardMetrics[i].log = logs[i];
+            }
+            ShardedReceiver receiver = new ShardedReceiver(port, shardMetrics, logs);
+            if (saveDirectory != null) {
+                receiver.saveFilesTo(saveDirectory);
+            }
+            exportMetrics(args, receiver.metrics);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Shutting down...");
+                try {
+                    receiver.shutdown();
+                    receiver.printShards();
+                    for (ReceiverMetrics metrics : shardMetrics) {
+                        printFlows(metrics);
+                    }
+                    BufferPool.DEFAULT.reportLeaks();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+
+            System.out.println("Packet Receiver Listening on port " + receiver.port() + " (sharded mode, " + shards + " shards)\n");
+            receiver.start();
+            receiver.join();
+            return;
+        }
+
+        if (CommandLine.hasFlag(args, "--nio") || CommandLine.hasFlag(args, "--pipeline") || routes != null) {
+            int loops = CommandLine.getIntOption(args, "--loops", Runtime.getRuntime().availableProcessors());
+
+            ReceiverMetrics metrics = startMetrics(args, reassembler);
+            PacketLog log = PacketLog.fromArgs(args);
+            metrics.log = log;
+            NioPacketReceiver receiver = new NioPacketReceiver(port, loops, log, metrics, reassembler, capture,
+                    routes);
+            if (saveDirectory != null) {
+                receiver.saveFilesTo(saveDirectory);
+            }
+            String mode = "NIO mode, " + loops + " event loops";
+            if (routes != null) {
+                mode += ", forwarding";
+            }
+            if (CommandLine.hasFlag(args, "--pipeline")) {
+                if (routes != null) {
+                    throw new Exception("--pipeline cannot be combined with forwarding");
+                }
+                if (saveDirectory != null) {
+                    throw new Exception("--save-dir needs --server or --nio");
+                }
+                int workers = CommandLine.getIntOption(args, "--workers", Runtime.getRuntime().availableProcessors());
+                receiver.usePipeline(workers, CommandLine.getIntOption(args, "--ring-size", PacketRing.DEFAULT_SIZE),
+                        DecodePipeline.WaitStrategy.parse(CommandLine.getOption(args, "--wait", "park")));
+                mode += ", " + workers + " decode workers";
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Shutting down...");
+                try {
+                    receiver.shutdown();
+                    closeLog(log);
+                    printFlows(metrics);
+                    BufferPool.DEFAULT.reportLeaks();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+
+            System.out.println("Packet Receiver Listening on port " + port + " (" + mode + ")\n");
+            receiver.run();
+            return;
+        }
+
+        if (CommandLine.hasFlag(args, "--udp")) {
+            if (saveDirectory != null) {
+                throw new Exception("--save-dir needs --server or --nio");
+            }
+            ReceiverMetrics metrics = startMetrics(args, reassembler);
+            PacketLog log = PacketLog.fromArgs(args);
+            metrics.log = log;
+            UdpPacketReceiver receiver = new UdpPacketReceiver(port, log, CommandLine.hasFlag(args, "--acks"),
+                    CommandLine.hasFlag(args, "--reliable"), metrics, reassembler, capture);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Shutting down...");
+                receiver.shutdown();
+                try {
+                    closeLog(log);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (metrics.packetsDuplicate.sum() > 0) {
+                    System.out.println("Retransmitted packets already delivered: " + metrics.packetsDuplicate.sum());
+                }
+                printFlows(metrics);
+            }));
+
+            System.out.println("Packet Receiver Listening on port " + port + "/udp\n");
+            receiver.run();
+            return;
+        }
+
+        if (CommandLine.hasFlag(args, "--server")) {
+            String pool = CommandLine.getOption(args, "--pool", "virtual");
+            int threads = CommandLine.getIntOption(args, "--threads", DEFAULT_PLATFORM_THREADS);
+
+            ReceiverMetrics metrics = startMetrics(args, reassembler);
+            PacketLog log = PacketLog.fromArgs(args);
+            metrics.log = log;
+            PacketReceiver receiver = new PacketReceiver(port, newWorkerPool(pool, threads), log, metrics,
+                    reassembler, capture);
+            receiver.saveFilesTo(saveDirectory);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("Shutting down...");
+                try {
+                    receiver.shutdown(5000);
+                    closeLog(log);
+                    printFlows(metrics);
+                    BufferPool.DEFAULT.reportLeaks();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+
+            System.out.println("Packet Receiver Listening on port " + port + " (server mode)\n");
+            receiver.start();
+            receiver.join();
+            return;
+        }
+
+        System.out.println("Packet Receiver Listening on port " + port + "\n");
+        ServerSocket serverSocket = new ServerSocket(port);
         // server timeout 60 minutes
         serverSocket.setSoTimeout(1000 * 60 * 60);
 
@@ -175,36 +776,71 @@ public class PacketReceiver extends Thread {
 
         // Read from client using input stream
         DataInputStream in = new DataInputStream(server.getInputStream());
-        String receivedPacket = in.readUTF();
-        String sourceIP = decodeSourceIP(receivedPacket); // gets the decoded source IP from the raw encoded packet
+        DataOutputStream out = new DataOutputStream(server.getOutputStream());
+        byte[] receivedPacket = readFrame(in);
+        PacketView packet = new PacketView();
+        boolean isAuthentic = packet.wrap(receivedPacket); // verify the header once for the whole packet
+
+        // a fragment is acknowledged and followed by the rest of its datagram
+        int fragments = 0;
+        while (isAuthentic && packet.isFragment()) {
+            if (capture != null) {
+                capture.write(packet);
+            }
+            fragments++;
+            byte[] datagram = reassembler.accept(packet, System.nanoTime());
+            if (datagram != null) {
+                receivedPacket = datagram;
+                isAuthentic = packet.wrap(receivedPacket);
+                break;
+            }
+            out.write(ACK_REPLY);
+            out.flush();
+            receivedPacket = readFrame(in);
+            isAuthentic = packet.wrap(receivedPacket);
+        }
+        if (fragments > 0) {
+            System.out.println("Reassembled the packet from " + fragments + " fragments.");
+        }
+        if (capture != null && isAuthentic && fragments == 0) {
+            capture.write(packet);
+        }
 
-        System.out.println("Successfully received packet from: " + sourceIP);
-        System.out.println("Raw packet data: " + receivedPacket + "\n");
+        if (isAuthentic) {
+            // gets the decoded source IP from the raw packet
+            System.out.println("Successfully received packet from: "
+                    + PacketCodec.convertIntToIPv4String(packet.sourceAddress()));
+        } else {
+            System.out.println("Successfully received packet from: ERROR: This packet has been corrupted.");
+        }
+        if (printHex) {
+            System.out.println("Raw packet data: " + PacketCodec.convertBytesToHexadecimal(receivedPacket));
+        }
+        System.out.println();
 
         // Decode packet (de-encapsulate) and print the payload/message to terminal
-        String message = decodePayload(receivedPacket);
+        String message = "ERROR: This packet has been corrupted.";
+        int numOfBytes = Math.max(receivedPacket.length - PacketCodec.HEADER_LENGTH, 0);
+        if (isAuthentic) {
+            message = packet.payloadAsString();
+            numOfBytes = packet.payloadLength();
+        }
         System.out.println("Message: " + message + "\n");
 
         // display other logistical information regarding the packet
-        int headerLength = 40;
-        int payloadLength = receivedPacket.length() - headerLength;
-
-        int numOfBits = payloadLength * 4;
-        int numOfBytes = payloadLength / 2;
-        int packetLength = receivedPacket.length() / 2;
+        int numOfBits = numOfBytes * 8;
+        int packetLength = receivedPacket.length;
 
         System.out.println("The data has " + numOfBits + " bits or " + numOfBytes + " bytes.");
         System.out.println("The total length of the packet is " + packetLength + " bytes.");
 
         // Write to client using output stream
-        DataOutputStream out = new DataOutputStream(server.getOutputStream());
-        if (verifyEncodedPacket(receivedPacket)) {
+        if (isAuthentic) {
             System.out.println("Checksum verification confirms that the received packet is authentic.");
-            out.writeUTF("I received your message succesfully! Goodbye!");
+            out.writeUTF(ACK_MESSAGE);
         } else {
             System.out.println("Checksum verification shows that the received packet is corrupted. Packet discarded!");
-            out.writeUTF(
-                    "Oh no, the packet I received was corrupted. Send me your message again when we talk next time!");
+            out.writeUTF(CORRUPT_MESSAGE);
         }
 
         // close the connection
@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Pre-allocated ring of frames between one NIO event loop (the only producer)
+ * and the decode workers (the consumers), in the style of the LMAX Disruptor.
+ *
+ * Every slot owns a byte array that is reused for each frame that passes
+ * through it, so publishing a frame is a copy into memory that already exists.
+ * Sequences only ever grow; a sequence's slot is its value modulo the ring
+ * size.
+ *
+ * Work is split between the consumers by sequence number (worker w of W
+ * decodes sequences w, w + W, w + 2W, ...), so consumers never contend for a
+ * slot and need no compare-and-swap. Each consumer publishes the last
+ * sequence it finished. The event loop then sends the replies in sequence
+ * order, which keeps the replies on each connection in the order the packets
+ * arrived; a slot is reused only after its reply has been sent.
+ */
+public class PacketRing {
+
+    static final int DEFAULT_SIZE = 1024;
+    static final int SLOT_BYTES = 2048; // covers Ethernet-sized packets; a slot grows once for anything larger
+
+    // padding keeps each sequence on its own cache line, so a consumer publishing
+    // its progress does not slow down the producer or the other consumers
+    static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    static class Value extends LeftPadding {
+        volatile long value = -1;
+    }
+
+    static class Sequence extends Value {
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return value;
+        }
+
+        void set(long sequence) {
+            value = sequence;
+        }
+    }
+
+    /**
+     * One frame waiting to be decoded or waiting for its reply to be sent
+     */
+    static class Slot {
+        byte[] data = new byte[SLOT_BYTES];
+        int length;
+        SelectionKey sender; // connection the frame arrived on
+        byte[] reply; // set by the consumer
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    final Selector selector; // the producer's selector, woken up when replies are ready
+    final Sequence published = new Sequence(); // last sequence the producer published
+    final Sequence[] finished; // per consumer: last sequence it decoded
+    private final int consumers;
+    private long replied = -1; // last sequence whose reply was sent (producer thread only)
+
+    /**
+     * @param size      number of slots, a power of two
+     * @param consumers number of decode workers
+     * @param selector  selector of the event loop that produces into this ring
+     */
+    PacketRing(int size, int consumers, Selector selector) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The ring size must be a power of two: " + size);
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.consumers = consumers;
+        this.finished = new Sequence[consumers];
+        for (int i = 0; i < consumers; i++) {
+            finished[i] = new Sequence();
+        }
+        this.selector = selector;
+    }
+
+    Slot slot(long sequence) {
+        return slots[(int) (sequence & mask)];
+    }
+
+    // ****************** PRODUCER ****************** //
+
+    /**
+     * @return true if every slot holds a frame whose reply has not been sent yet
+     */
+    boolean isFull() {
+        return published.get() - replied >= slots.length;
+    }
+
+    /**
+     * Copies a frame's packet into the next slot and makes it visible to the
+     * consumers. The caller must make sure the ring is not full.
+     *
+     * @param buffer buffer holding the packet
+     * @param offset index of the first packet byte
+     * @param length number of packet bytes
+     * @param sender connection the packet arrived on
+     */
+    void publish(ByteBuffer buffer, int offset, int length, SelectionKey sender) {
+        long sequence = published.get() + 1;
+        Slot slot = slot(sequence);
+        if (slot.data.length < length) {
+            slot.data = new byte[PacketCodec.MAX_PACKET_LENGTH];
+        }
+        buffer.get(offset, slot.data, 0, length);
+        slot.length = length;
+        slot.sender = sender;
+        slot.reply = null;
+        published.set(sequence); // volatile write: the slot's contents are visible before the sequence
+    }
+
+    /**
+     * Returns the next slot whose reply is ready, in sequence order
+     *
+     * @return the slot, or null if the next reply is not ready yet
+     */
+    Slot nextReply() {
+        long sequence = replied + 1;
+        if (sequence > published.get() || finished[(int) (sequence % consumers)].get() < sequence) {
+            return null;
+        }
+        replied = sequence;
+        return slot(sequence);
+    }
+}
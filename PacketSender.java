@@ -1,6 +1,6 @@
 import java.net.*;
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.*;
 
 public class PacketSender {
@@ -44,26 +44,6 @@ public class PacketSender {
         return packet;
     }
 
-    /**
-     * Converts a singular packet string into a string array of 2-byte packet fields
-     * 
-     * @param packet (e.g. 450000281c46)
-     * @return string array of fields (e.g. ["4500", "0028", "1c46"])
-     */
-    static String[] convertStringToFields(String packet) {
-
-        // create an array to store the substrings
-        String[] fields = new String[packet.length() / 4];
-
-        // iterate over the input string and extract substrings of length 4
-        for (int i = 0; i < packet.length(); i += 4) {
-            fields[i / 4] = packet.substring(i, i + 4);
-        }
-
-        return fields;
-
-    }
-
     /**
      * Calculate the total hexadecimal length of a string packet
      * 
@@ -78,65 +58,56 @@ public class PacketSender {
     }
 
     /**
-     * Calculates the header checksum field of a packet
+     * Encapsulates the data into a binary IP datagram (IP packet). This replaces
+     * the hexadecimal string pipeline below: each byte is sent once instead of as
+     * two hex characters, and no intermediate strings are built per field.
+     * The encoding itself lives in PacketCodec, which PacketReceiver shares.
      * 
-     * @param packet (e.g.
-     *               "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030")
-     * @return the header checksum (e.g. 9d35)
+     * @param payload       raw payload bytes
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @return packet (header followed by the payload)
      */
-    static String calculateHeaderChecksum(String packet) {
-
-        // STEP 1: Split the long string into an array of substrings, each of length 4
-        // For example, the string
-        // "450000281c46400040060000C0A80003C0A80001434f4c4f4d4249412032202d204d455353492030"
-        // should become an array of strings representing ONLY THE HEADER
-        // ["4500","0028","1c46","4000","4006","0000","C0A8","0003","C0A8","0001","434f","4c4f","4d42","4941","2032","202d","204d","4553","5349","2030"]
-        // ignore all data that comes after the first 40 digits of the header
-        packet = packet.substring(0, 40);
-
-        // create an array to store the substrings
-        String[] hexNums = convertStringToFields(packet); // iterate and extract substrings of length 4 from packet
-
-        // STEP 2: Calculate the header checksum
-
-        int sumSimple = 0; // exact sum of 2-byte header fields (will include the carryout if needed)
-
-        // calculate sum of 2-byte fields of the packet
-        // convert each hexNum string to an equivalent decimal integer; add them all up
-        for (String hexNum : hexNums) {
-            sumSimple += Integer.parseInt(hexNum, 16);
-        }
-        String sumHexStr = Integer.toHexString(sumSimple); // simple sum as a hexadecimal string
-
-        // determine whether the checksum has a carryout or not
-        int carryout = 0;
-        int checksum = 0;
-        if (sumHexStr.length() == 5) { // has carryout; calculate new checksum value
-            // split the carry out and the 2-byte checksum portion; add them together
-            carryout = Integer.parseInt(sumHexStr.substring(0, 1), 16);
-            checksum = Integer.parseInt(sumHexStr.substring(1), 16);
-            checksum += carryout;
-        } else { // no carryout
-            checksum = sumSimple;
-        }
-
-        // calculate 1's complement
-        checksum = 65535 - checksum; // 65535 is the decimal equivalent of FFFF in hexadecimal
-
-        sumHexStr = Integer.toHexString(checksum);
+    static byte[] encapsulatePayload(byte[] payload, int sourceIP, int destinationIP) {
+        return PacketCodec.encode(payload, sourceIP, destinationIP);
+    }
 
-        return sumHexStr;
+    /**
+     * Writes a packet to the receiver as a length-prefixed binary frame: a 4-byte
+     * big-endian length followed by the raw packet bytes
+     * 
+     * @param out    stream connected to the receiver
+     * @param packet raw packet bytes
+     * @throws IOException
+     */
+    static void writeFrame(DataOutputStream out, byte[] packet) throws IOException {
+        out.writeInt(packet.length);
+        out.write(packet);
+        out.flush();
     }
 
     /**
-     * Converts the data from string text to hexadecimal
+     * Converts the data from string text to hexadecimal (its UTF-8 bytes, with
+     * leading zero digits dropped and the result left-padded to at least 20
+     * digits, as the original BigInteger version printed it). Linear in the
+     * length of the text.
      * 
      * @param text
      * @return the payload in hexadecimal
      * @throws UnsupportedEncodingException
      */
     static String encodePayload(String text) throws UnsupportedEncodingException {
-        return String.format("%020x", new BigInteger(1, text.getBytes()));
+        String hex = PacketCodec.convertBytesToHexadecimal(text.getBytes(StandardCharsets.UTF_8));
+        int start = 0;
+        while (start < hex.length() - 1 && hex.charAt(start) == '0') {
+            start++;
+        }
+
+        StringBuilder payload = new StringBuilder(Math.max(20, hex.length() - start));
+        for (int digits = hex.length() - start; digits < 20; digits++) {
+            payload.append('0');
+        }
+        return payload.append(hex, start, hex.length()).toString();
     }
 
     /**
@@ -161,6 +132,7 @@ public class PacketSender {
     }
 
     /**
+     * Legacy hexadecimal string form of encapsulatePayload(byte[], int, int).
      * Encapculates the data into an IP datagram (IP packet) and initialize the
      * modular sum (checksum) to 0000
      * 
@@ -176,7 +148,7 @@ public class PacketSender {
         String[] fields = new String[9];
         fields[0] = "4500"; // [FIX] 4 == IPv4 and 5 == header length; 00 == service type
         fields[1] = "0000"; // [VAR] packet length (sum of header length + payload length) (init. to 0000)
-        fields[2] = "1c46"; // [FIX] identification
+        fields[2] = String.format("%04x", PacketCodec.nextIdentification()); // [VAR] identification, increasing per flow
         fields[3] = "4000"; // [FIX] 40 = flag; 00 == fragment offset
         fields[4] = "4006"; // [FIX] 40 == TTL; 06 == TCP protocol
         fields[5] = "0000"; // [VAR] source header checksum (init. to 0000)
@@ -193,7 +165,7 @@ public class PacketSender {
         fields[1] = calculatePacketLength(packet); // calculate packet length field
         packet = convertFieldsToString(fields); // update packet with updated fields
 
-        fields[5] = calculateHeaderChecksum(packet); // calculate header checksum field
+        fields[5] = PacketCodec.calculateHeaderChecksum(packet); // calculate header checksum field
         packet = convertFieldsToString(fields); // update packet with updated fields
 
         return packet;
@@ -207,13 +179,17 @@ public class PacketSender {
      */
     static boolean verifyArgs(String[] args) {
 
+        if (args.length != 2) {
+            return false;
+        }
+
         // validate if args[1] is IPv4 address or not
         String regex = "^((25[0-5]|(2[0-4]|1\\d|[1-9]|)\\d)\\.?\\b){4}$"; // This regex matches IPv4 addresses
         Pattern pattern = Pattern.compile(regex);
         Matcher matcher = pattern.matcher(args[0]);
         boolean isIPv4 = matcher.matches();
 
-        return args.length == 2 && isIPv4 && args[1] != null;
+        return isIPv4 && args[1] != null;
     }
 
     /**
@@ -239,9 +215,31 @@ public class PacketSender {
     /**
      * Sends a user-inputted message to a specified IP address
      * Takes two arguments as input: <IPv4_ADDRESS> and <MESSAGE_STRING>
+     * An optional --hex flag prints the packet in hexadecimal before it is sent,
+     * and --mtu N splits it into IPv4 fragments of at most N bytes each.
      * 
      * Example:
      * java PacketSender.java 127.0.0.1 "Colombia 1 - Messi 0"
+     * java PacketSender.java --hex 127.0.0.1 "Colombia 1 - Messi 0"
+     * java PacketSender.java --mtu 68 127.0.0.1 "Colombia 1 - Messi 0"
+     * 
+     * Batch mode sends every line of a file (or stdin with "-") as its own packet
+     * over persistent, pipelined connections; see BatchSender for its options:
+     * java PacketSender --batch messages.txt --connections 4
+     * 
+     * File mode streams a file (or stdin with "-") of any size, chunk by chunk,
+     * to a receiver started with --save-dir; see FileSender for its options:
+     * java PacketSender --send-file video.mp4 --window 64
+     * 
+     * Load-test mode sends packets over many connections for a fixed duration and
+     * reports round-trip latency percentiles and throughput; see LoadGenerator:
+     * java PacketSender --load --connections 8 --duration 30 --size 64-1400
+     * 
+     * In every mode, --payload-checksum adds a checksum of the whole payload to
+     * each packet (in a 4-byte header option), so the receiver also catches
+     * corrupted payloads; --vector-checksum computes it with the Vector API (see
+     * PacketCodec.useVectorChecksum()):
+     * java PacketSender --load --payload-checksum --size 1400
      * 
      * NOTE: Due to the complicated nature of getting the local host's IP address
      * and the various network interface cards, we will assume that both the
@@ -252,14 +250,46 @@ public class PacketSender {
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
+        if (CommandLine.hasFlag(args, "--payload-checksum")) {
+            PacketCodec.enablePayloadChecksums();
+        }
+        if (CommandLine.hasFlag(args, "--vector-checksum")) {
+            PacketCodec.useVectorChecksum();
+        }
+
+        if (CommandLine.hasFlag(args, "--batch")) {
+            BatchSender.main(args);
+            return;
+        }
+        if (CommandLine.hasFlag(args, "--send-file")) {
+            FileSender.main(args);
+            return;
+        }
+        if (CommandLine.hasFlag(args, "--load")) {
+            LoadGenerator.main(args);
+            return;
+        }
+        if (CommandLine.hasFlag(args, "--replay")) {
+            PcapReplay.main(args);
+            return;
+        }
+        if (CommandLine.hasFlag(args, "--udp")) {
+            UdpSender.main(args);
+            return;
+        }
 
         // ****************** VERIFY USER INPUT ****************** //
 
+        // --hex turns on the hexadecimal debug rendering; --mtu N turns on fragmentation
+        boolean printHex = CommandLine.hasFlag(args, "--hex");
+        int mtu = CommandLine.getIntOption(args, "--mtu", 0);
+        args = CommandLine.positionalArgs(args, "--mtu");
+
         // verify that command line arguments are inputted correctly
         if (!verifyArgs(args)) {
             throw new Exception(
                     "Command-line arguments are incorrect." +
-                            "\nThe command-line arguments must be in the following format: java PacketSender.java <ip_address> <message>"
+                            "\nThe command-line arguments must be in the following format: java PacketSender.java [--hex] [--mtu N] [--payload-checksum] <ip_address> <message>"
                             +
                             "\n\nExample of correct input:" +
                             "\n\n\tjava PacketSender.java 127.0.0.1 \"Columbia is the best\"\n");
@@ -270,20 +300,31 @@ public class PacketSender {
         String sourceIP = getTextAfterForwardSlash(InetAddress.getLocalHost().toString());
         String destinationIP = args[0];
         String payload = args[1];
-        String encodedPayload = "";
-        String packet = "";
 
-        // encode the payload and create an IPv4 packet to be sent to the server
+        // create a binary IPv4 packet to be sent to the server
         System.out.println("Source IP: " + sourceIP + "\nReceiver IP: " + destinationIP + "\nPayload: " + payload);
         System.out.println("\n**** Creating packet by encapsulating the payload into an IPv4 packet... ****\n");
 
-        System.out.println("Encoded the payload from plain-text to hexadecimal:");
-        encodedPayload = encodePayload(payload);
-        System.out.println("\t" + encodedPayload);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        int source = PacketCodec.convertIPv4StringToInt(sourceIP);
+        int destination = PacketCodec.convertIPv4StringToInt(destinationIP);
+        byte[][] packets;
+        if (mtu > 0) {
+            packets = PacketCodec.encodeFragments(payloadBytes, source, destination, PacketCodec.nextIdentification(),
+                    mtu);
+            System.out.println("Split the payload into " + packets.length + " fragment(s) for an MTU of " + mtu
+                    + " bytes.");
+        } else {
+            packets = new byte[][] { encapsulatePayload(payloadBytes, source, destination) };
+        }
 
-        packet = encapsulatePayload(encodedPayload, sourceIP, destinationIP); // begin payload encapsulation process
-        System.out.println("Packet to be sent to PacketReceiver.java:");
-        System.out.println("\t" + packet);
+        for (byte[] packet : packets) {
+            System.out.println("Created a " + packet.length + " byte packet.");
+            if (printHex) {
+                System.out.println("Packet to be sent to PacketReceiver.java:");
+                System.out.println("\t" + PacketCodec.convertBytesToHexadecimal(packet));
+            }
+        }
 
         // ******** SEND THE PACKET TO PACKET RECEIVER ******** //
 
@@ -294,12 +335,18 @@ public class PacketSender {
 
         // write to server using output stream
         System.out.println("Sending data...");
-        DataOutputStream out = new DataOutputStream(client.getOutputStream());
-        out.writeUTF(packet);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        for (byte[] packet : packets) {
+            writeFrame(out, packet);
+        }
 
-        // read from the server
+        // read from the server; the receiver replies once per packet (fragment)
         DataInputStream in = new DataInputStream(client.getInputStream());
-        System.out.println("Response received from the server ====> " + in.readUTF());
+        String reply = "";
+        for (int i = 0; i < packets.length; i++) {
+            reply = in.readUTF();
+        }
+        System.out.println("Response received from the server ====> " + reply);
 
         // close the connection
         client.close();
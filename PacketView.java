@@ -0,0 +1,369 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable, read-only view over a binary IPv4 packet held in a byte array or a
+ * ByteBuffer.
+ *
+ * wrap() validates the header exactly once (length, version, IHL, total length
+ * and header checksum), and the payload too if the header carries a payload
+ * checksum option (see PacketCodec). After that, every accessor reads its field straight
+ * out of the underlying bytes, so decoding a packet allocates nothing and one
+ * view can be reused for every packet on a connection.
+ *
+ * A view is not thread-safe; give each thread its own.
+ */
+public class PacketView {
+
+    private byte[] array; // backing array, or null when viewing a ByteBuffer without one
+    private ByteBuffer buffer;
+    private int offset; // index of the first header byte
+    private int length; // number of packet bytes available
+    private boolean valid;
+
+    /**
+     * Points this view at a packet stored in a byte array and validates its header
+     *
+     * @param packet array holding the packet
+     * @param offset index of the first header byte
+     * @param length number of bytes in the packet
+     * @return true if the packet is well formed and its header checksum (and
+     *         payload checksum, if it has one) is correct; false otherwise
+     */
+    boolean wrap(byte[] packet, int offset, int length) {
+        this.array = packet;
+        this.buffer = null;
+        this.offset = offset;
+        this.length = length;
+        this.valid = validate();
+        return valid;
+    }
+
+    boolean wrap(byte[] packet) {
+        return wrap(packet, 0, packet.length);
+    }
+
+    /**
+     * Points this view at a packet stored in a ByteBuffer, between its position and
+     * its limit, and validates its header. The buffer's position and limit are not
+     * changed; the caller must not modify that region while the view is in use.
+     *
+     * @param packet buffer holding the packet
+     * @return true if the packet is well formed and its header checksum (and
+     *         payload checksum, if it has one) is correct; false otherwise
+     */
+    boolean wrap(ByteBuffer packet) {
+        if (packet.hasArray()) {
+            return wrap(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
+        }
+
+        this.array = null;
+        this.buffer = packet;
+        this.offset = packet.position();
+        this.length = packet.remaining();
+        this.valid = validate();
+        return valid;
+    }
+
+    private boolean validate() {
+        if (length < PacketCodec.HEADER_LENGTH) {
+            return false;
+        }
+
+        int headerLength = headerLength();
+        if (version() != 4 || headerLength < PacketCodec.HEADER_LENGTH || headerLength > length
+                || totalLength() != length) {
+            return false;
+        }
+
+        int checksum = array != null
+                ? PacketCodec.headerChecksum(array, offset, headerLength)
+                : PacketCodec.headerChecksum(buffer, offset, headerLength);
+        if (checksum != 0) {
+            return false;
+        }
+
+        // a fragment's payload checksum covers the whole datagram; it is checked once the datagram is reassembled
+        int option = headerLength > PacketCodec.HEADER_LENGTH && !isFragment()
+                ? findPayloadChecksumOption(headerLength)
+                : -1;
+        if (option == -1) {
+            return true;
+        }
+        int payloadChecksum = array != null
+                ? PacketCodec.payloadChecksum(array, offset + headerLength, length - headerLength, protocol(),
+                        sourceAddress(), destinationAddress())
+                : PacketCodec.payloadChecksum(buffer, offset + headerLength, length - headerLength, protocol(),
+                        sourceAddress(), destinationAddress());
+        return payloadChecksum == u16(option + 2);
+    }
+
+    /**
+     * Walks the header options
+     *
+     * @param headerLength header length in bytes
+     * @return index (from the first header byte) of the payload checksum option,
+     *         or -1 if the header has none
+     */
+    private int findPayloadChecksumOption(int headerLength) {
+        int i = PacketCodec.HEADER_LENGTH;
+        while (i < headerLength) {
+            int type = u8(i);
+            if (type == PacketCodec.OPTION_END) {
+                break;
+            }
+            if (type == PacketCodec.OPTION_NO_OPERATION) {
+                i++;
+                continue;
+            }
+            int optionLength = i + 1 < headerLength ? u8(i + 1) : 0;
+            if (optionLength < 2 || i + optionLength > headerLength) {
+                break; // malformed option list
+            }
+            if (type == PacketCodec.OPTION_PAYLOAD_CHECKSUM
+                    && optionLength == PacketCodec.PAYLOAD_CHECKSUM_OPTION_LENGTH) {
+                return i;
+            }
+            i += optionLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the result of the last wrap() call
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return number of packet bytes the view covers (valid or not)
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Renders the whole packet in hexadecimal, for debugging. Allocates.
+     *
+     * @return hexadecimal string (e.g. 45000028...)
+     */
+    String toHexString() {
+        if (array != null) {
+            return PacketCodec.convertBytesToHexadecimal(array, offset, length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes, 0, length);
+        return PacketCodec.convertBytesToHexadecimal(bytes);
+    }
+
+    // ****************** RAW FIELD ACCESS ****************** //
+
+    private int u8(int index) {
+        return array != null ? array[offset + index] & 0xFF : buffer.get(offset + index) & 0xFF;
+    }
+
+    private int u16(int index) {
+        return (u8(index) << 8) | u8(index + 1);
+    }
+
+    private int s32(int index) {
+        return (u16(index) << 16) | u16(index + 2);
+    }
+
+    // ****************** HEADER FIELDS ****************** //
+
+    int version() {
+        return u8(0) >>> 4;
+    }
+
+    /**
+     * @return internet header length, in 4-byte words
+     */
+    int ihl() {
+        return u8(0) & 0x0F;
+    }
+
+    /**
+     * @return header length in bytes (IHL * 4)
+     */
+    int headerLength() {
+        return ihl() * 4;
+    }
+
+    int serviceType() {
+        return u8(1);
+    }
+
+    int totalLength() {
+        return u16(2);
+    }
+
+    int identification() {
+        return u16(4);
+    }
+
+    /**
+     * @return the 3 flag bits (0x2 == don't fragment, 0x1 == more fragments)
+     */
+    int flags() {
+        return u8(6) >>> 5;
+    }
+
+    /**
+     * @return fragment offset, in 8-byte units
+     */
+    int fragmentOffset() {
+        return u16(6) & 0x1FFF;
+    }
+
+    boolean moreFragments() {
+        return (u8(6) & 0x20) != 0;
+    }
+
+    /**
+     * @return true if this packet is only part of a datagram (More Fragments set or
+     *         a non-zero fragment offset)
+     */
+    boolean isFragment() {
+        return (u16(6) & 0x3FFF) != 0;
+    }
+
+    int ttl() {
+        return u8(8);
+    }
+
+    int protocol() {
+        return u8(9);
+    }
+
+    int headerChecksum() {
+        return u16(10);
+    }
+
+    int sourceAddress() {
+        return s32(12);
+    }
+
+    int destinationAddress() {
+        return s32(16);
+    }
+
+    // ****************** PAYLOAD ****************** //
+
+    /**
+     * @return index of the first payload byte in the underlying array or buffer
+     */
+    int payloadOffset() {
+        return offset + headerLength();
+    }
+
+    int payloadLength() {
+        return length - headerLength();
+    }
+
+    /**
+     * @return the backing array (for zero-copy access to the payload through
+     *         payloadOffset() and payloadLength()), or null if the view is over a
+     *         direct ByteBuffer
+     */
+    byte[] array() {
+        return array;
+    }
+
+    /**
+     * Copies the payload into a caller-supplied array
+     *
+     * @param destination array to copy into
+     * @param destinationOffset index to start writing at
+     * @return the number of bytes copied
+     */
+    int copyPayload(byte[] destination, int destinationOffset) {
+        int payloadLength = payloadLength();
+        if (array != null) {
+            System.arraycopy(array, payloadOffset(), destination, destinationOffset, payloadLength);
+        } else {
+            buffer.get(payloadOffset(), destination, destinationOffset, payloadLength);
+        }
+        return payloadLength;
+    }
+
+    /**
+     * Copies the header (including any options) into a caller-supplied array
+     *
+     * @param destination array to copy into
+     * @param destinationOffset index to start writing at
+     * @return the number of bytes copied
+     */
+    int copyHeader(byte[] destination, int destinationOffset) {
+        int headerLength = headerLength();
+        if (array != null) {
+            System.arraycopy(array, offset, destination, destinationOffset, headerLength);
+        } else {
+            buffer.get(offset, destination, destinationOffset, headerLength);
+        }
+        return headerLength;
+    }
+
+    /**
+     * Copies the first bytes of the packet, valid or not, into a caller-supplied
+     * array
+     *
+     * @param destination array to copy into, from index 0
+     * @return the number of bytes copied: length() or the array's length,
+     *         whichever is smaller
+     */
+    int copyPrefix(byte[] destination) {
+        int count = Math.min(length, destination.length);
+        if (array != null) {
+            System.arraycopy(array, offset, destination, 0, count);
+        } else {
+            buffer.get(offset, destination, 0, count);
+        }
+        return count;
+    }
+
+    /**
+     * Copies the whole packet into a ByteBuffer at its position, advancing the
+     * position
+     *
+     * @param destination buffer with at least length() bytes remaining
+     * @return the number of bytes copied
+     */
+    int copyTo(ByteBuffer destination) {
+        if (array != null) {
+            destination.put(array, offset, length);
+        } else {
+            destination.put(destination.position(), buffer, offset, length);
+            destination.position(destination.position() + length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns a read-only slice over the payload. This allocates a small ByteBuffer
+     * object (but no copy of the bytes); use payloadOffset()/payloadLength() on the
+     * hot path instead.
+     *
+     * @return payload slice
+     */
+    ByteBuffer payload() {
+        ByteBuffer source = array != null ? ByteBuffer.wrap(array) : buffer.duplicate();
+        source.limit(offset + length).position(payloadOffset());
+        return source.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Decodes the payload as UTF-8 text. Allocates the returned String.
+     *
+     * @return payload in plain-text e.g. "COLOMBIA 2 - MESSI 0"
+     */
+    String payloadAsString() {
+        if (array != null) {
+            return new String(array, payloadOffset(), payloadLength(), StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[payloadLength()];
+        copyPayload(bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay mode for PacketSender: sends the IPv4 packets recorded in pcap files
+ * (such as the ones PacketReceiver --capture writes) to a receiver.
+ *
+ * Each file is memory-mapped and packets are sent straight out of the mapping:
+ * over TCP a length prefix and a view over the packet's bytes go out together
+ * in one gathering write (many frames per write), and over UDP the view is the
+ * datagram. No packet is ever copied onto the Java heap.
+ *
+ * Packets can be replayed as fast as possible, at a fixed rate, or with the
+ * gaps between them as recorded.
+ */
+public class PcapReplay {
+
+    static final int LINKTYPE_IPV4 = 228;
+    static final int ETHERNET_HEADER_LENGTH = 14;
+    static final int ETHERTYPE_IPV4 = 0x0800;
+    static final int BATCH_SIZE = 64; // frames per gathering write over TCP
+
+    /**
+     * A memory-mapped pcap file, read one record at a time
+     */
+    static class PcapFile {
+        final MappedByteBuffer mapped;
+        final int linkType;
+        final boolean nanosecondTimestamps;
+        int next = PcapWriter.GLOBAL_HEADER_LENGTH; // offset of the next record header
+
+        // the current packet, set by advance()
+        int packetOffset;
+        int packetLength;
+        long timestampNanos;
+        long truncated; // records skipped because they were not captured in full
+        long skipped; // records skipped because they do not hold an IPv4 packet
+
+        PcapFile(Path path) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (file.size() > Integer.MAX_VALUE) {
+                    throw new IOException(path + " is larger than 2 GB; capture with smaller segments");
+                }
+                mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()); // stays valid after closing
+            }
+            if (mapped.limit() < PcapWriter.GLOBAL_HEADER_LENGTH) {
+                throw new IOException(path + " is not a pcap file");
+            }
+
+            // the magic number tells both the byte order and the timestamp precision
+            int magic = mapped.getInt(0);
+            if (magic == Integer.reverseBytes(PcapWriter.MAGIC_MICROSECONDS)
+                    || magic == Integer.reverseBytes(PcapWriter.MAGIC_NANOSECONDS)) {
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                magic = Integer.reverseBytes(magic);
+            }
+            if (magic != PcapWriter.MAGIC_MICROSECONDS && magic != PcapWriter.MAGIC_NANOSECONDS) {
+                throw new IOException(path + " is not a pcap file (pcapng is not supported)");
+            }
+            nanosecondTimestamps = magic == PcapWriter.MAGIC_NANOSECONDS;
+
+            linkType = mapped.getInt(20) & 0x0FFFFFFF; // the top bits may carry the FCS length
+            if (linkType != PcapWriter.LINKTYPE_RAW && linkType != LINKTYPE_IPV4
+                    && linkType != PcapWriter.LINKTYPE_ETHERNET) {
+                throw new IOException(path + " has link type " + linkType + "; only raw IP and Ethernet are supported");
+            }
+        }
+
+        /**
+         * Moves to the next IPv4 packet in the file
+         *
+         * @return false at the end of the file
+         */
+        boolean advance() {
+            while (next + PcapWriter.RECORD_HEADER_LENGTH <= mapped.limit()) {
+                long seconds = mapped.getInt(next) & 0xFFFFFFFFL;
+                long fraction = mapped.getInt(next + 4) & 0xFFFFFFFFL;
+                int capturedLength = mapped.getInt(next + 8);
+                int originalLength = mapped.getInt(next + 12);
+                int data = next + PcapWriter.RECORD_HEADER_LENGTH;
+                if (capturedLength < 0 || data + capturedLength > mapped.limit()) {
+                    return false; // the file was cut off in the middle of a record
+                }
+                next = data + capturedLength;
+
+                if (capturedLength < originalLength) {
+                    truncated++;
+                    continue;
+                }
+                if (linkType == PcapWriter.LINKTYPE_ETHERNET) {
+                    if (capturedLength < ETHERNET_HEADER_LENGTH
+                            || (mapped.getShort(data + 12) & 0xFFFF) != ETHERTYPE_IPV4) {
+                        skipped++;
+                        continue;
+                    }
+                    data += ETHERNET_HEADER_LENGTH;
+                    capturedLength -= ETHERNET_HEADER_LENGTH;
+                }
+                if (capturedLength > PacketCodec.MAX_PACKET_LENGTH) {
+                    skipped++;
+                    continue;
+                }
+
+                packetOffset = data;
+                packetLength = capturedLength;
+                timestampNanos = seconds * 1_000_000_000L + (nanosecondTimestamps ? fraction : fraction * 1000);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+
+    // TCP: reusable length prefixes and views over the mapping for one gathering write
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE * 2];
+    private final ByteBuffer[] prefixes = new ByteBuffer[BATCH_SIZE];
+    private int batchCount; // frames in batch
+    private final ByteBuffer[] views = new ByteBuffer[BATCH_SIZE];
+    private ByteBuffer udpView;
+
+    private SocketChannel tcp;
+    private DatagramChannel udp;
+    private long intervalNanos; // fixed rate; 0 if not pacing at a fixed rate
+    private boolean recordedTiming;
+    private long sent;
+    private long bytesSent;
+
+    PcapReplay() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            prefixes[i] = ByteBuffer.allocateDirect(4);
+        }
+    }
+
+    /**
+     * Sends every packet of a file, pacing as configured
+     *
+     * @param pcap      file to replay
+     * @param startNanos System.nanoTime() when the replay started
+     * @param firstTimestamp timestamp of the first packet of the replay, or -1 to take it from this file
+     * @return timestamp of the first packet of the replay
+     */
+    private long replay(PcapFile pcap, long startNanos, long firstTimestamp) throws IOException {
+        // views over this file's mapping, reused for every packet
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            views[i] = pcap.mapped.duplicate();
+        }
+        udpView = pcap.mapped.duplicate();
+
+        while (pcap.advance()) {
+            if (firstTimestamp < 0) {
+                firstTimestamp = pcap.timestampNanos;
+            }
+
+            long scheduled = 0;
+            if (recordedTiming) {
+                scheduled = startNanos + (pcap.timestampNanos - firstTimestamp);
+            } else if (intervalNanos > 0) {
+                scheduled = startNanos + sent * intervalNanos;
+            }
+            if (scheduled != 0 && scheduled - System.nanoTime() > 0) {
+                flush(); // everything due so far goes out before waiting
+                waitUntil(scheduled);
+            }
+
+            send(pcap.packetOffset, pcap.packetLength);
+        }
+        flush(); // the views are about to be pointed at the next file
+        return firstTimestamp;
+    }
+
+    private static void waitUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            if (wait > 50_000) {
+                LockSupport.parkNanos(wait - 20_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void send(int offset, int length) throws IOException {
+        sent++;
+        bytesSent += length;
+
+        if (udp != null) {
+            udpView.limit(offset + length).position(offset);
+            udp.write(udpView);
+            return;
+        }
+
+        ByteBuffer prefix = prefixes[batchCount];
+        prefix.clear();
+        prefix.putInt(0, length);
+        ByteBuffer view = views[batchCount];
+        view.limit(offset + length).position(offset);
+        batch[batchCount * 2] = prefix;
+        batch[batchCount * 2 + 1] = view;
+        if (++batchCount == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the frames collected for TCP with as few gathering writes as the
+     * socket allows
+     */
+    private void flush() throws IOException {
+        if (batchCount == 0) {
+            return;
+        }
+        long remaining = 0;
+        for (int i = 0; i < batchCount * 2; i++) {
+            remaining += batch[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= tcp.write(batch, 0, batchCount * 2);
+        }
+        batchCount = 0;
+    }
+
+    /**
+     * Reads the receiver's replies until it closes the connection
+     */
+    private void readReplies(DataInputStream in) {
+        byte[] ack = PacketReceiver.ACK_REPLY; // length prefix followed by the text
+        byte[] reply = new byte[256];
+        try {
+            while (true) {
+                int length = in.readUnsignedShort();
+                if (length > reply.length) {
+                    reply = new byte[length];
+                }
+                in.readFully(reply, 0, length);
+                if (Arrays.equals(reply, 0, length, ack, 2, ack.length)) {
+                    acknowledged.incrementAndGet();
+                } else {
+                    corrupted.incrementAndGet();
+                }
+            }
+        } catch (EOFException e) {
+            // the receiver closed the connection after the last reply
+        } catch (IOException e) {
+            System.out.println("Lost the connection to the receiver: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replays the files in order, as one continuous recording
+     *
+     * @param files     pcap files to replay
+     * @param host      receiver host
+     * @param port      receiver port
+     * @param useUdp    whether to send datagrams instead of framed packets over TCP
+     * @param rate      packets per second, or 0 for no fixed rate
+     * @param recorded  whether to keep the recorded gaps between packets
+     * @throws Exception
+     */
+    void run(Path[] files, String host, int port, boolean useUdp, long rate, boolean recorded) throws Exception {
+        this.intervalNanos = rate > 0 ? Math.max(1, 1_000_000_000L / rate) : 0;
+        this.recordedTiming = recorded;
+
+        Thread replyReader = null;
+        if (useUdp) {
+            udp = DatagramChannel.open();
+            udp.connect(new InetSocketAddress(host, port));
+        } else {
+            tcp = SocketChannel.open(new InetSocketAddress(host, port));
+            tcp.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(tcp.socket().getInputStream(), 64 * 1024));
+            replyReader = new Thread(() -> readReplies(in), "pcap-replay-replies");
+            replyReader.start();
+        }
+
+        long truncated = 0;
+        long skipped = 0;
+        long start = System.nanoTime();
+        long firstTimestamp = -1;
+        try {
+            for (Path file : files) {
+                PcapFile pcap = new PcapFile(file);
+                firstTimestamp = replay(pcap, start, firstTimestamp);
+                truncated += pcap.truncated;
+                skipped += pcap.skipped;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println("Replayed " + sent + " packets from " + files.length + " file(s) in "
+                    + String.format("%.3f", seconds) + " s (" + String.format("%.0f", sent / seconds) + " packets/s, "
+                    + String.format("%.2f", bytesSent / seconds / 1e6) + " MB/s).");
+            if (truncated + skipped > 0) {
+                System.out.println("Skipped " + truncated + " truncated and " + skipped + " non-IPv4 record(s).");
+            }
+
+            if (replyReader != null) {
+                tcp.shutdownOutput(); // lets the receiver finish once every reply is written
+                replyReader.join();
+                System.out.println("Acknowledged: " + acknowledged.get() + ", corrupted: " + corrupted.get());
+            }
+        } finally {
+            if (udp != null) {
+                udp.close();
+            }
+            if (tcp != null) {
+                tcp.close();
+            }
+        }
+    }
+
+    /**
+     * Entry point for "java PacketSender --replay FILE [MORE FILES] ..."
+     *
+     * Options:
+     * --replay FILE     pcap file to replay; further files (e.g. capture segments) may follow
+     * --rate R          send R packets per second
+     * --timing          keep the gaps between packets as recorded
+     * --udp             send the packets as UDP datagrams instead of over TCP
+     * --host HOST       receiver to send to (default 127.0.0.1)
+     * --port N          receiver port (default 8888)
+     *
+     * Without --rate or --timing the packets are sent as fast as possible.
+     *
+     * @param args
+     * @throws Exception
+     */
+    static void main(String[] args) throws Exception {
+        String first = CommandLine.getOption(args, "--replay", null);
+        String[] more = CommandLine.positionalArgs(args, "--replay", "--rate", "--host", "--port");
+        long rate = CommandLine.getLongOption(args, "--rate", 0);
+        boolean recorded = CommandLine.hasFlag(args, "--timing");
+        boolean useUdp = CommandLine.hasFlag(args, "--udp");
+        String host = CommandLine.getOption(args, "--host", "127.0.0.1");
+        int port = CommandLine.getIntOption(args, "--port", 8888);
+
+        if (first == null) {
+            throw new Exception("Usage: java PacketSender --replay <file.pcap> [more files] [--rate R | --timing] [--udp]");
+        }
+        Path[] files = new Path[more.length + 1];
+        files[0] = Path.of(first);
+        for (int i = 0; i < more.length; i++) {
+            files[i + 1] = Path.of(more[i]);
+        }
+
+        new PcapReplay().run(files, host, port, useUdp, rate, recorded);
+    }
+}
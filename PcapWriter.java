@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only pcap writer for received packets.
+ *
+ * Packets are written as LINKTYPE_RAW records (the record is the IPv4 packet
+ * itself, with no link-layer header), so Wireshark and tcpdump open the files
+ * directly. Each segment file is memory-mapped at its full size up front and
+ * records are copied straight into the mapping; writing a packet is a memory
+ * copy, not a system call. When the next record would not fit, the segment is
+ * trimmed to the bytes actually written and the writer rolls over to a new
+ * one: capture.pcap, capture.1.pcap, capture.2.pcap, ...
+ *
+ * Instances are thread-safe; every receiver thread may write to the same one.
+ */
+public class PcapWriter implements AutoCloseable {
+
+    static final int MAGIC_MICROSECONDS = 0xa1b2c3d4;
+    static final int MAGIC_NANOSECONDS = 0xa1b23c4d;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int LINKTYPE_RAW = 101;
+    static final int GLOBAL_HEADER_LENGTH = 24;
+    static final int RECORD_HEADER_LENGTH = 16;
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final Path basePath;
+    private final long segmentSize;
+    private final long startMicros; // wall-clock time when the writer was opened
+    private final long startNanos; // System.nanoTime() at the same moment
+    private FileChannel file;
+    private MappedByteBuffer mapped;
+    private int segment;
+
+    /**
+     * Opens the first segment
+     *
+     * @param basePath    path of the first segment (e.g. capture.pcap)
+     * @param segmentSize size at which to roll over to a new segment, in bytes
+     * @throws IOException if the segment cannot be created
+     */
+    PcapWriter(Path basePath, long segmentSize) throws IOException {
+        if (segmentSize < GLOBAL_HEADER_LENGTH + RECORD_HEADER_LENGTH + PacketCodec.MAX_PACKET_LENGTH
+                || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The segment size must be between 64 KB and 2 GB: " + segmentSize);
+        }
+        this.basePath = basePath;
+        this.segmentSize = segmentSize;
+        this.startMicros = System.currentTimeMillis() * 1000;
+        this.startNanos = System.nanoTime();
+        openSegment();
+    }
+
+    /**
+     * @param index segment number
+     * @return path of that segment: the base path for the first one, then with .1, .2, ...
+     *         before the extension
+     */
+    static Path segmentPath(Path basePath, int index) {
+        if (index == 0) {
+            return basePath;
+        }
+        String name = basePath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String segmentName = dot > 0 ? name.substring(0, dot) + "." + index + name.substring(dot)
+                : name + "." + index;
+        return basePath.resolveSibling(segmentName);
+    }
+
+    private void openSegment() throws IOException {
+        file = FileChannel.open(segmentPath(basePath, segment), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+        // pcap global header: big-endian magic, so readers know the byte order of everything else
+        mapped.putInt(MAGIC_MICROSECONDS);
+        mapped.putShort((short) 2).putShort((short) 4); // version 2.4
+        mapped.putInt(0); // GMT
+        mapped.putInt(0); // timestamp accuracy
+        mapped.putInt(PacketCodec.MAX_PACKET_LENGTH); // snapshot length
+        mapped.putInt(LINKTYPE_RAW);
+    }
+
+    /**
+     * Trims the current segment to the bytes written and releases it
+     */
+    private void closeSegment() throws IOException {
+        int written = mapped.position();
+        mapped.force();
+        mapped = null; // the mapping itself goes away when the buffer is garbage collected
+        file.truncate(written);
+        file.close();
+    }
+
+    /**
+     * Appends a packet with the current time as its timestamp. If a new segment
+     * cannot be created, capturing stops (the receiver itself keeps running).
+     *
+     * @param packet view over the packet to record
+     */
+    synchronized void write(PacketView packet) {
+        if (mapped == null) {
+            return; // closed
+        }
+        if (mapped.remaining() < RECORD_HEADER_LENGTH + packet.length()) {
+            try {
+                closeSegment();
+                segment++;
+                openSegment();
+            } catch (IOException e) {
+                System.out.println("Stopped capturing packets: " + e.getMessage());
+                mapped = null;
+                return;
+            }
+        }
+
+        long micros = startMicros + (System.nanoTime() - startNanos) / 1000;
+        mapped.putInt((int) (micros / 1_000_000));
+        mapped.putInt((int) (micros % 1_000_000));
+        mapped.putInt(packet.length()); // bytes captured
+        mapped.putInt(packet.length()); // bytes on the wire
+        packet.copyTo(mapped);
+    }
+
+    /**
+     * @return number of segment files written so far, including the current one
+     */
+    synchronized int segments() {
+        return segment + 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mapped != null) {
+            closeSegment();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Receiving half of the sliding-window protocol (--reliable over UDP), one per
+ * sender.
+ *
+ * A packet's IPv4 identification is its sequence number. The window remembers
+ * the next identification it is waiting for (everything before it has been
+ * delivered) and a bitmap of the identifications after it that have already
+ * arrived, so every packet is delivered exactly once however often it is
+ * retransmitted. Packets are delivered as they arrive, not held back until the
+ * gaps before them are filled.
+ *
+ * The sender learns what arrived from a compact binary ack:
+ *
+ *   type (1 byte) | NACK ranges n (1) | cumulative ack (2) | end (2) | n x { first (2) | count (2) }
+ *
+ * The cumulative ack is the next identification expected and the end is one
+ * past the highest identification received. Every identification in between
+ * has arrived except the ones in the NACK ranges: packets that were lost or
+ * arrived corrupted and should be retransmitted right away. Reporting ranges
+ * rather than a bitmap keeps the ack small while covering the whole window,
+ * so every hole can be repaired within one round trip. If there are more
+ * holes than MAX_NACK_RANGES, the end is pulled in to the last one reported.
+ */
+public class ReceiveWindow {
+
+    static final int MAX_WINDOW = 16384; // identifications tracked ahead of the cumulative ack; under 2^15 for serial arithmetic
+    static final int MAX_NACK_RANGES = 128;
+    static final int ACK_HEADER_LENGTH = 6;
+    static final int NACK_RANGE_LENGTH = 4;
+    static final int MAX_ACK_LENGTH = ACK_HEADER_LENGTH + MAX_NACK_RANGES * NACK_RANGE_LENGTH;
+    static final byte ACK_FRAME_TYPE = 0x57; // 'W', tells window acks from the 8-byte counting acks
+    static final long IDLE_RESET_NANOS = 10_000_000_000L; // a sender quiet for this long starts over
+
+    /**
+     * What happened to a packet offered to the window
+     */
+    enum Arrival {
+        NEW, // not seen before: deliver it
+        DUPLICATE, // already delivered (a retransmission whose ack was lost or late)
+        BEYOND_WINDOW // too far ahead of the cumulative ack to track; dropped
+    }
+
+    final SocketAddress sender;
+    private final long[] received = new long[MAX_WINDOW / 64]; // bit (id % MAX_WINDOW): id arrived, for ids after next
+    private int next = -1; // next identification expected; -1 until the first packet
+    private int end; // one past the highest identification received (next if nothing after it has arrived)
+    private long lastPacketNanos;
+    boolean ackDue; // something arrived since the last ack was sent
+
+    ReceiveWindow(SocketAddress sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Records the arrival of an intact packet. The first packet from a sender (or
+     * the first after a long silence) starts the sequence.
+     *
+     * @param identification the packet's IPv4 identification
+     * @param nowNanos       System.nanoTime()
+     * @return NEW if the packet should be delivered
+     */
+    Arrival accept(int identification, long nowNanos) {
+        ackDue = true;
+        if (next == -1 || nowNanos - lastPacketNanos > IDLE_RESET_NANOS) {
+            Arrays.fill(received, 0);
+            next = (identification + 1) & 0xFFFF;
+            end = next;
+            lastPacketNanos = nowNanos;
+            return Arrival.NEW;
+        }
+        lastPacketNanos = nowNanos;
+
+        int ahead = (short) (identification - next); // serial arithmetic on 16 bits
+        if (ahead < 0) {
+            return Arrival.DUPLICATE;
+        }
+        if (ahead >= MAX_WINDOW) {
+            return Arrival.BEYOND_WINDOW;
+        }
+        if (ahead > 0) {
+            if (isReceived(identification)) {
+                return Arrival.DUPLICATE;
+            }
+            received[(identification & (MAX_WINDOW - 1)) >>> 6] |= 1L << identification;
+            if (ahead >= (short) (end - next)) {
+                end = (identification + 1) & 0xFFFF;
+            }
+            return Arrival.NEW;
+        }
+
+        // the packet the cumulative ack was waiting for: move past it and everything after it that is here
+        next = (next + 1) & 0xFFFF;
+        while (isReceived(next)) {
+            received[(next & (MAX_WINDOW - 1)) >>> 6] &= ~(1L << next);
+            next = (next + 1) & 0xFFFF;
+        }
+        if ((short) (end - next) < 0) {
+            end = next;
+        }
+        return Arrival.NEW;
+    }
+
+    /**
+     * Notes that a packet from this sender failed verification, so the next ack
+     * goes out right away and its bitmap shows the hole
+     */
+    void rejected() {
+        ackDue = true;
+    }
+
+    private boolean isReceived(int identification) {
+        return (received[(identification & (MAX_WINDOW - 1)) >>> 6] & (1L << identification)) != 0;
+    }
+
+    /**
+     * Writes the ack frame, listing the runs of missing identifications between
+     * the cumulative ack and the end
+     *
+     * @param frame buffer with room for MAX_ACK_LENGTH bytes, written from its position
+     */
+    void writeAck(ByteBuffer frame) {
+        int start = frame.position();
+        frame.position(start + ACK_HEADER_LENGTH);
+
+        int ranges = 0;
+        int reportedEnd = end;
+        int span = (end - next) & 0xFFFF;
+        int i = 0; // offset from next; next itself is always missing
+        while (i < span) {
+            int id = (next + i) & 0xFFFF;
+            if (isReceived(id)) {
+                // skip whole words of arrived packets at once
+                long word = received[(id & (MAX_WINDOW - 1)) >>> 6] >>> id;
+                i += word == -1L >>> (id & 63) ? 64 - (id & 63) : Long.numberOfTrailingZeros(~word);
+                continue;
+            }
+            if (ranges == MAX_NACK_RANGES) {
+                reportedEnd = id; // no room to report this hole or anything after it
+                break;
+            }
+            int first = i;
+            while (i < span && !isReceived((next + i) & 0xFFFF)) {
+                i++;
+            }
+            frame.putShort((short) (next + first)).putShort((short) (i - first));
+            ranges++;
+        }
+
+        frame.put(start, ACK_FRAME_TYPE).put(start + 1, (byte) ranges).putShort(start + 2, (short) next)
+                .putShort(start + 4, (short) reportedEnd);
+        ackDue = false;
+    }
+}
@@ -0,0 +1,517 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters for a long-running PacketReceiver.
+ *
+ * Every counter is a LongAdder, so the receiver threads update them without
+ * locks or contended cache lines; the totals are only added up when they are
+ * read. Decode times go into a fixed set of histogram buckets, one LongAdder
+ * each.
+ *
+ * The counters can be read in Prometheus text format from a small local HTTP
+ * endpoint (GET /metrics) and through JMX.
+ *
+ * A sharded receiver gives every shard a ReceiverMetrics of its own, so shards
+ * never touch each other's counters, and exports a total created with
+ * ReceiverMetrics(shards): it has no counters of its own and adds up the
+ * shards' every time it is read.
+ */
+public class ReceiverMetrics implements ReceiverMetricsMBean {
+
+    // upper bounds of the decode time histogram buckets, in nanoseconds
+    static final long[] DECODE_BUCKETS_NANOS = { 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 100_000,
+            1_000_000 };
+
+    final LongAdder packetsAccepted = new LongAdder();
+    // malformed, failed the header or payload checksum, or completed a reassembled datagram that failed verification
+    final LongAdder packetsRejected = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder packetsForwarded = new LongAdder();
+    final LongAdder packetsNoRoute = new LongAdder();
+    final LongAdder packetsTtlExpired = new LongAdder();
+    final LongAdder packetsDuplicate = new LongAdder(); // retransmissions of packets already delivered (--reliable)
+
+    private final LongAdder[] decodeBuckets = new LongAdder[DECODE_BUCKETS_NANOS.length + 1]; // last is +Inf
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder[] forwardBuckets = new LongAdder[DECODE_BUCKETS_NANOS.length + 1];
+    private final LongAdder forwardNanos = new LongAdder();
+
+    FragmentReassembler reassembler; // optional; its counters are included when set
+    BufferPool bufferPool; // optional; its occupancy is included when set
+    FlowTable flows; // optional; every intact packet is accounted to its flow when set
+    PacketLog log; // optional; its written and dropped lines are included when set
+
+    private final ReceiverMetrics[] shards; // the metrics this total adds up, or null for a receiver's own metrics
+
+    ReceiverMetrics() {
+        this(null);
+    }
+
+    /**
+     * Creates the total of a sharded receiver's metrics
+     *
+     * @param shards metrics of every shard; read, never updated, by the total
+     */
+    ReceiverMetrics(ReceiverMetrics[] shards) {
+        this.shards = shards;
+        this.bufferPool = shards != null ? shards[0].bufferPool : null; // one pool serves every shard
+        for (int i = 0; i < decodeBuckets.length; i++) {
+            decodeBuckets[i] = new LongAdder();
+            forwardBuckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a packet as accepted or rejected, and accounts an accepted packet to
+     * its flow
+     *
+     * @param packet      view over the packet
+     * @param isAuthentic whether the packet passed verification
+     */
+    void recordPacket(PacketView packet, boolean isAuthentic) {
+        if (isAuthentic) {
+            packetsAccepted.increment();
+            if (flows != null) {
+                flows.record(packet, System.nanoTime());
+            }
+        } else {
+            packetsRejected.increment();
+        }
+    }
+
+    /**
+     * Records how long it took to verify and decode one packet
+     *
+     * @param nanos decode time in nanoseconds
+     */
+    void recordDecode(long nanos) {
+        decodeBuckets[bucket(nanos)].increment();
+        decodeNanos.add(nanos);
+    }
+
+    /**
+     * Records how long a forwarded packet spent in this hop
+     *
+     * @param nanos time from reading the packet until it was handed to the next hop
+     */
+    void recordForward(long nanos) {
+        forwardBuckets[bucket(nanos)].increment();
+        forwardNanos.add(nanos);
+    }
+
+    private static int bucket(long nanos) {
+        int bucket = 0;
+        while (bucket < DECODE_BUCKETS_NANOS.length && nanos > DECODE_BUCKETS_NANOS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    // ****************** READING ****************** //
+
+    /**
+     * @return the metrics whose counters are read: the shards of a total, or
+     *         just this one
+     */
+    private ReceiverMetrics[] parts() {
+        return shards != null ? shards : new ReceiverMetrics[] { this };
+    }
+
+    /**
+     * Adds up one counter over parts()
+     */
+    private long total(Function<ReceiverMetrics, LongAdder> counter) {
+        long total = 0;
+        for (ReceiverMetrics part : parts()) {
+            total += counter.apply(part).sum();
+        }
+        return total;
+    }
+
+    /**
+     * Adds up a histogram's buckets over parts()
+     */
+    private long[] totals(Function<ReceiverMetrics, LongAdder[]> histogram) {
+        long[] totals = new long[DECODE_BUCKETS_NANOS.length + 1];
+        for (ReceiverMetrics part : parts()) {
+            LongAdder[] buckets = histogram.apply(part);
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += buckets[i].sum();
+            }
+        }
+        return totals;
+    }
+
+    @Override
+    public long getPacketsAccepted() {
+        return total(m -> m.packetsAccepted);
+    }
+
+    @Override
+    public long getPacketsRejected() {
+        return total(m -> m.packetsRejected);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return total(m -> m.bytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return total(m -> m.bytesOut);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return total(m -> m.activeConnections);
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return total(m -> m.connectionsOpened);
+    }
+
+    @Override
+    public long getPooledBuffersInUse() {
+        long inUse = 0;
+        for (int i = 0; bufferPool != null && i < BufferPool.SIZE_CLASSES.length; i++) {
+            inUse += bufferPool.inUse(i);
+        }
+        return inUse;
+    }
+
+    @Override
+    public long getPooledBytes() {
+        return bufferPool == null ? 0 : bufferPool.totalBytes();
+    }
+
+    @Override
+    public long getFlowsTracked() {
+        long tracked = 0;
+        for (ReceiverMetrics part : parts()) {
+            tracked += part.flows == null ? 0 : part.flows.size();
+        }
+        return tracked;
+    }
+
+    @Override
+    public long getPacketsLost() {
+        long lost = 0;
+        for (ReceiverMetrics part : parts()) {
+            if (part.flows != null) {
+                synchronized (part.flows) {
+                    lost += part.flows.totalLost;
+                }
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public long getPacketsDuplicated() {
+        long duplicated = 0;
+        for (ReceiverMetrics part : parts()) {
+            if (part.flows != null) {
+                synchronized (part.flows) {
+                    duplicated += part.flows.totalDuplicates;
+                }
+            }
+        }
+        return duplicated;
+    }
+
+    @Override
+    public double getMeanDecodeNanos() {
+        long count = 0;
+        for (long bucket : totals(m -> m.decodeBuckets)) {
+            count += bucket;
+        }
+        return count == 0 ? 0 : (double) total(m -> m.decodeNanos) / count;
+    }
+
+    /**
+     * Renders every counter in the Prometheus text exposition format
+     *
+     * @return metrics text, as served on /metrics
+     */
+    @Override
+    public String getPrometheusText() {
+        StringBuilder text = new StringBuilder(2048);
+        counter(text, "packet_receiver_packets_accepted_total",
+                "Packets whose header checksum and payload checksum (if present) verified.", getPacketsAccepted());
+        counter(text, "packet_receiver_packets_rejected_total",
+                "Packets rejected as malformed or for a failed header or payload checksum, including fragments "
+                        + "completing a reassembled datagram that failed verification.",
+                getPacketsRejected());
+        counter(text, "packet_receiver_bytes_in_total", "Bytes read from senders, including framing.", getBytesIn());
+        counter(text, "packet_receiver_bytes_out_total", "Reply bytes written to senders.", getBytesOut());
+        counter(text, "packet_receiver_connections_opened_total", "Connections accepted.", getConnectionsOpened());
+        text.append("# HELP packet_receiver_active_connections Connections currently open.\n")
+                .append("# TYPE packet_receiver_active_connections gauge\n")
+                .append("packet_receiver_active_connections ").append(getActiveConnections()).append('\n');
+
+        histogram(text, "packet_receiver_decode_seconds", "Time taken to verify and decode a packet.",
+                totals(m -> m.decodeBuckets), total(m -> m.decodeNanos));
+
+        long forwarded = total(m -> m.packetsForwarded);
+        long noRoute = total(m -> m.packetsNoRoute);
+        long ttlExpired = total(m -> m.packetsTtlExpired);
+        if (forwarded + noRoute + ttlExpired > 0) {
+            counter(text, "packet_receiver_packets_forwarded_total", "Packets sent on to a next hop.", forwarded);
+            counter(text, "packet_receiver_packets_no_route_total",
+                    "Packets dropped because no reachable route matched their destination.", noRoute);
+            counter(text, "packet_receiver_packets_ttl_expired_total",
+                    "Packets dropped because their TTL ran out.", ttlExpired);
+            histogram(text, "packet_receiver_forward_seconds",
+                    "Time from reading a forwarded packet until it was handed to the next hop.",
+                    totals(m -> m.forwardBuckets), total(m -> m.forwardNanos));
+        }
+
+        long duplicates = total(m -> m.packetsDuplicate);
+        if (duplicates > 0) {
+            counter(text, "packet_receiver_packets_duplicate_total",
+                    "Retransmitted packets dropped because they had already been delivered.", duplicates);
+        }
+
+        appendLog(text, parts());
+        appendReassembly(text, parts());
+        if (bufferPool != null) {
+            appendBufferPool(text, bufferPool);
+        }
+        appendFlows(text, parts());
+
+        if (shards != null) {
+            text.append("# HELP packet_receiver_shard_packets_accepted_total Packets accepted by each shard.\n")
+                    .append("# TYPE packet_receiver_shard_packets_accepted_total counter\n");
+            for (int i = 0; i < shards.length; i++) {
+                text.append("packet_receiver_shard_packets_accepted_total{shard=\"").append(i).append("\"} ")
+                        .append(shards[i].packetsAccepted.sum()).append('\n');
+            }
+        }
+
+        return text.toString();
+    }
+
+    private static void appendLog(StringBuilder text, ReceiverMetrics[] parts) {
+        boolean logging = false;
+        long lines = 0;
+        long dropped = 0;
+        for (ReceiverMetrics part : parts) {
+            if (part.log != null) {
+                logging = true;
+                lines += part.log.linesWritten();
+                dropped += part.log.dropped.sum();
+            }
+        }
+        if (logging) {
+            counter(text, "packet_receiver_log_lines_total", "Lines written to the packet log.", lines);
+            counter(text, "packet_receiver_log_dropped_total",
+                    "Packets left out of the packet log because its writer could not keep up.", dropped);
+        }
+    }
+
+    private static void appendReassembly(StringBuilder text, ReceiverMetrics[] parts) {
+        boolean reassembling = false;
+        long reassembled = 0;
+        long timedOut = 0;
+        long evicted = 0;
+        long discarded = 0;
+        long duplicates = 0;
+        long overlapping = 0;
+        long bytes = 0;
+        for (ReceiverMetrics part : parts) {
+            FragmentReassembler reassembler = part.reassembler;
+            if (reassembler == null) {
+                continue;
+            }
+            reassembling = true;
+            synchronized (reassembler) {
+                reassembled += reassembler.datagramsReassembled;
+                timedOut += reassembler.datagramsTimedOut;
+                evicted += reassembler.datagramsEvictedForMemory;
+                discarded += reassembler.datagramsDiscarded;
+                duplicates += reassembler.duplicateFragments;
+                overlapping += reassembler.overlappingFragments;
+                bytes += reassembler.bufferedBytes();
+            }
+        }
+        if (!reassembling) {
+            return;
+        }
+
+        counter(text, "packet_receiver_datagrams_reassembled_total", "Fragmented datagrams put back together.",
+                reassembled);
+        counter(text, "packet_receiver_datagrams_timed_out_total",
+                "Partial datagrams dropped because their fragments stopped arriving.", timedOut);
+        counter(text, "packet_receiver_datagrams_evicted_total",
+                "Partial datagrams dropped to stay under the reassembly memory cap.", evicted);
+        counter(text, "packet_receiver_datagrams_discarded_total",
+                "Partial datagrams dropped because of inconsistent fragments.", discarded);
+        counter(text, "packet_receiver_duplicate_fragments_total", "Fragments whose data had already arrived.",
+                duplicates);
+        counter(text, "packet_receiver_overlapping_fragments_total",
+                "Fragments that overlapped data that had already arrived.", overlapping);
+        text.append("# HELP packet_receiver_reassembly_bytes Bytes charged against the reassembly memory cap for partial datagrams.\n")
+                .append("# TYPE packet_receiver_reassembly_bytes gauge\n")
+                .append("packet_receiver_reassembly_bytes ").append(bytes).append('\n');
+    }
+
+    private static void appendFlows(StringBuilder text, ReceiverMetrics[] parts) {
+        boolean tracking = false;
+        long size = 0;
+        long evicted = 0;
+        long expired = 0;
+        long lost = 0;
+        long duplicates = 0;
+        long reordered = 0;
+        long late = 0;
+        long resyncs = 0;
+        for (ReceiverMetrics part : parts) {
+            FlowTable flows = part.flows;
+            if (flows == null) {
+                continue;
+            }
+            tracking = true;
+            synchronized (flows) {
+                size += flows.size();
+                evicted += flows.flowsEvicted;
+                expired += flows.flowsExpired;
+                lost += flows.totalLost;
+                duplicates += flows.totalDuplicates;
+                reordered += flows.totalReordered;
+                late += flows.totalLate;
+                resyncs += flows.totalResyncs;
+            }
+        }
+        if (!tracking) {
+            return;
+        }
+
+        text.append("# HELP packet_receiver_flows Flows (source and destination pairs) currently tracked.\n")
+                .append("# TYPE packet_receiver_flows gauge\n")
+                .append("packet_receiver_flows ").append(size).append('\n');
+        counter(text, "packet_receiver_flows_evicted_total", "Flows dropped to make room in a full flow table.",
+                evicted);
+        counter(text, "packet_receiver_flows_expired_total", "Flows dropped after going idle.", expired);
+        counter(text, "packet_receiver_packets_lost_total",
+                "Identifications skipped by a flow that never arrived within the reorder window.", lost);
+        counter(text, "packet_receiver_packets_duplicated_total", "Packets whose identification had already arrived.",
+                duplicates);
+        counter(text, "packet_receiver_packets_reordered_total",
+                "Packets that arrived after a later packet of their flow.", reordered);
+        counter(text, "packet_receiver_packets_late_total",
+                "Packets that arrived too far behind their flow to tell whether they were duplicates.", late);
+        counter(text, "packet_receiver_flow_resyncs_total",
+                "Jumps back in a flow's identifications too large to be reordering, e.g. a restarted sender.",
+                resyncs);
+    }
+
+    private static void appendBufferPool(StringBuilder text, BufferPool pool) {
+        text.append("# HELP packet_receiver_buffer_pool_allocated_total Pooled direct buffers allocated, by size class.\n")
+                .append("# TYPE packet_receiver_buffer_pool_allocated_total counter\n");
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            sizeClass(text, "packet_receiver_buffer_pool_allocated_total", i, pool.allocated(i));
+        }
+        text.append("# HELP packet_receiver_buffer_pool_acquired_total Buffers borrowed from the pool, by size class.\n")
+                .append("# TYPE packet_receiver_buffer_pool_acquired_total counter\n");
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            sizeClass(text, "packet_receiver_buffer_pool_acquired_total", i, pool.acquired(i));
+        }
+        text.append("# HELP packet_receiver_buffer_pool_in_use Buffers currently borrowed, by size class.\n")
+                .append("# TYPE packet_receiver_buffer_pool_in_use gauge\n");
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            sizeClass(text, "packet_receiver_buffer_pool_in_use", i, pool.inUse(i));
+        }
+        text.append("# HELP packet_receiver_buffer_pool_idle Free buffers held by the pool, by size class.\n")
+                .append("# TYPE packet_receiver_buffer_pool_idle gauge\n");
+        for (int i = 0; i < BufferPool.SIZE_CLASSES.length; i++) {
+            sizeClass(text, "packet_receiver_buffer_pool_idle", i, pool.idle(i));
+        }
+        counter(text, "packet_receiver_buffer_pool_oversized_total",
+                "Buffers too large for any size class, allocated outside the pool.", pool.oversized.sum());
+    }
+
+    private static void sizeClass(StringBuilder text, String name, int sizeClass, long value) {
+        text.append(name).append("{size=\"").append(BufferPool.SIZE_CLASSES[sizeClass]).append("\"} ").append(value)
+                .append('\n');
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, long[] buckets, long totalNanos) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i];
+            String bound = i < DECODE_BUCKETS_NANOS.length ? Double.toString(DECODE_BUCKETS_NANOS[i] / 1e9) : "+Inf";
+            text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        text.append(name).append("_sum ").append(totalNanos / 1e9).append('\n')
+                .append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    // ****************** EXPORTING ****************** //
+
+    /**
+     * Serves the metrics in Prometheus text format on http://127.0.0.1:port/metrics
+     *
+     * @param port local port for the HTTP endpoint
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    HttpServer startHttpEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = getPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server
+     *
+     * @param name JMX object name (e.g. SocketProgramming:type=ReceiverMetrics)
+     */
+    void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (Exception e) {
+            System.out.println("Could not register the metrics with JMX: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * JMX view of ReceiverMetrics (visible in JConsole/VisualVM under
+ * SocketProgramming:type=ReceiverMetrics).
+ */
+public interface ReceiverMetricsMBean {
+
+    long getPacketsAccepted();
+
+    long getPacketsRejected();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getActiveConnections();
+
+    long getConnectionsOpened();
+
+    long getFlowsTracked();
+
+    long getPacketsLost();
+
+    long getPacketsDuplicated();
+
+    long getPooledBuffersInUse();
+
+    long getPooledBytes();
+
+    double getMeanDecodeNanos();
+
+    String getPrometheusText();
+}
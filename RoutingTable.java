@@ -0,0 +1,172 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Routing table for a forwarding PacketReceiver: maps destination prefixes
+ * (e.g. 10.0.0.0/8) to a next hop, and looks addresses up by longest-prefix
+ * match.
+ *
+ * The prefixes live in a binary trie stored in flat int arrays (two child
+ * indexes and one route per node), so a lookup is at most 32 array reads with
+ * no objects to chase and no allocation.
+ *
+ * Routes are written as "PREFIX NEXTHOP" (or "PREFIX=NEXTHOP" on the command
+ * line), where NEXTHOP is host:port of the next PacketReceiver, or "local" to
+ * deliver the packet here.
+ */
+public class RoutingTable {
+
+    static final int NO_ROUTE = -1;
+    static final int LOCAL = 0;
+
+    private int[] children = new int[64]; // node i's children are at 2i (bit 0) and 2i + 1 (bit 1); 0 = none
+    private int[] routes = new int[32]; // route of the prefix ending at node i, or NO_ROUTE
+    private int nodeCount = 1; // node 0 is the root (the /0 prefix)
+    private final List<InetSocketAddress> nextHops = new ArrayList<>(); // index 0 is unused (LOCAL)
+
+    RoutingTable() {
+        Arrays.fill(routes, NO_ROUTE);
+        nextHops.add(null);
+    }
+
+    /**
+     * Adds a route, replacing any route for the same prefix
+     *
+     * @param prefix       network address
+     * @param prefixLength number of leading bits that must match (0 to 32)
+     * @param nextHop      next PacketReceiver, or null to deliver locally
+     */
+    void add(int prefix, int prefixLength, InetSocketAddress nextHop) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        }
+
+        int node = 0;
+        for (int bit = 0; bit < prefixLength; bit++) {
+            int child = 2 * node + ((prefix >>> (31 - bit)) & 1);
+            if (children[child] == 0) {
+                int created = newNode(); // may replace the children array, so not inlined below
+                children[child] = created;
+            }
+            node = children[child];
+        }
+        routes[node] = nextHop == null ? LOCAL : nextHopIndex(nextHop);
+    }
+
+    private int newNode() {
+        if (nodeCount == routes.length) {
+            routes = Arrays.copyOf(routes, routes.length * 2);
+            Arrays.fill(routes, nodeCount, routes.length, NO_ROUTE);
+            children = Arrays.copyOf(children, routes.length * 2);
+        }
+        return nodeCount++;
+    }
+
+    private int nextHopIndex(InetSocketAddress nextHop) {
+        int index = nextHops.indexOf(nextHop);
+        if (index == -1) {
+            nextHops.add(nextHop);
+            index = nextHops.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Finds the route of the longest prefix that matches an address
+     *
+     * @param address destination IPv4 address as an int
+     * @return LOCAL, NO_ROUTE, or the index of the next hop (see nextHop())
+     */
+    int lookup(int address) {
+        int node = 0;
+        int route = routes[0];
+        for (int bit = 0; bit < 32; bit++) {
+            node = children[2 * node + ((address >>> (31 - bit)) & 1)];
+            if (node == 0) {
+                break;
+            }
+            if (routes[node] != NO_ROUTE) {
+                route = routes[node];
+            }
+        }
+        return route;
+    }
+
+    /**
+     * @param index next hop index returned by lookup()
+     * @return address of that next hop
+     */
+    InetSocketAddress nextHop(int index) {
+        return nextHops.get(index);
+    }
+
+    /**
+     * @return number of next hops, plus one for LOCAL (the valid indexes are below this)
+     */
+    int nextHopCount() {
+        return nextHops.size();
+    }
+
+    /**
+     * Adds a route written as "PREFIX NEXTHOP" or "PREFIX=NEXTHOP"
+     *
+     * @param route e.g. "10.0.0.0/8 127.0.0.1:9001" or "0.0.0.0/0=local"
+     */
+    void add(String route) {
+        String[] parts = route.trim().split("\\s*=\\s*|\\s+");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Routes look like \"10.0.0.0/8 127.0.0.1:9001\": " + route);
+        }
+
+        String[] prefix = parts[0].split("/");
+        int prefixLength = prefix.length == 2 ? Integer.parseInt(prefix[1]) : 32;
+        InetSocketAddress nextHop = null;
+        if (!parts[1].equalsIgnoreCase("local")) {
+            int colon = parts[1].lastIndexOf(':');
+            if (colon == -1) {
+                throw new IllegalArgumentException("A next hop is host:port or \"local\": " + parts[1]);
+            }
+            nextHop = new InetSocketAddress(parts[1].substring(0, colon),
+                    Integer.parseInt(parts[1].substring(colon + 1)));
+        }
+        add(PacketCodec.convertIPv4StringToInt(prefix[0]), prefixLength, nextHop);
+    }
+
+    /**
+     * Builds the routing table from --routes FILE (one route per line, # starts a
+     * comment) and any number of --route PREFIX=NEXTHOP options
+     *
+     * @param args command-line arguments
+     * @return the routing table, or null if no routes were given
+     * @throws IOException if the routes file cannot be read
+     */
+    static RoutingTable fromArgs(String[] args) throws IOException {
+        String file = CommandLine.getOption(args, "--routes", null);
+        List<String> routes = CommandLine.getOptions(args, "--route");
+        if (file == null && routes.isEmpty()) {
+            return null;
+        }
+
+        RoutingTable table = new RoutingTable();
+        if (file != null) {
+            for (String line : Files.readAllLines(Path.of(file))) {
+                int comment = line.indexOf('#');
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                if (!line.isBlank()) {
+                    table.add(line);
+                }
+            }
+        }
+        for (String route : routes) {
+            table.add(route);
+        }
+        return table;
+    }
+}
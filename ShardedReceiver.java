@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Sharded mode for PacketReceiver: one shard per core, each with a listener of
+ * its own on the same port (SO_REUSEPORT), so the kernel spreads new
+ * connections over the shards and no single accept thread has to keep up
+ * with all of them.
+ *
+ * A shard is one event loop that accepts and serves its own connections, with
+ * its own read buffer, fragment reassembler, flow table, packet log and
+ * metrics. Shards share nothing on the per-packet path; their metrics are
+ * only added up when they are read (see ReceiverMetrics(ReceiverMetrics[])).
+ *
+ * Needs an operating system that supports SO_REUSEPORT (e.g. Linux 3.9+).
+ */
+public class ShardedReceiver {
+
+    private final ServerSocketChannel[] listeners;
+    private final NioPacketReceiver.EventLoop[] loops;
+    private final PacketLog[] logs;
+    final ReceiverMetrics[] shardMetrics;
+    final ReceiverMetrics metrics; // the sum of every shard's metrics, added up when read
+    private final int port;
+
+    /**
+     * Binds one listener per shard and creates the shards' event loops (they are
+     * started by start())
+     *
+     * @param port         TCP port to listen on; 0 picks a free port, shared by every shard
+     * @param shardMetrics metrics of each shard, one per shard (its reassembler is set here)
+     * @param logs         per-packet log of each shard (entries may be null to log nothing)
+     * @throws IOException if the port cannot be bound or SO_REUSEPORT is not supported
+     */
+    ShardedReceiver(int port, ReceiverMetrics[] shardMetrics, PacketLog[] logs) throws IOException {
+        int shards = shardMetrics.length;
+        this.shardMetrics = shardMetrics;
+        this.metrics = new ReceiverMetrics(shardMetrics);
+        this.logs = logs;
+        listeners = new ServerSocketChannel[shards];
+        loops = new NioPacketReceiver.EventLoop[shards];
+        for (int i = 0; i < shards; i++) {
+            listeners[i] = ServerSocketChannel.open();
+            if (!listeners[i].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                throw new IOException("SO_REUSEPORT is not supported on this platform; use --nio instead");
+            }
+            listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            listeners[i].bind(new InetSocketAddress(port));
+            port = listeners[i].socket().getLocalPort(); // the port picked for the first shard, if it was 0
+
+            FragmentReassembler reassembler = new FragmentReassembler();
+            shardMetrics[i].reassembler = reassembler;
+            loops[i] = new NioPacketReceiver.EventLoop(i, logs[i], shardMetrics[i], reassembler, null, null);
+            loops[i].listen(listeners[i]);
+        }
+        this.port = port;
+    }
+
+    /**
+     * @return the port every shard listens on
+     */
+    int port() {
+        return port;
+    }
+
+    /**
+     * Accepts files sent with "PacketSender --send-file" and saves them in the
+     * given directory. Must be called before start().
+     *
+     * @param directory existing directory to save received files in
+     */
+    void saveFilesTo(Path directory) {
+        for (NioPacketReceiver.EventLoop loop : loops) {
+            loop.saveDirectory = directory;
+        }
+    }
+
+    /**
+     * Starts every shard's event loop
+     */
+    void start() {
+        for (NioPacketReceiver.EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Waits until every shard has stopped
+     *
+     * @throws InterruptedException
+     */
+    void join() throws InterruptedException {
+        for (NioPacketReceiver.EventLoop loop : loops) {
+            loop.join();
+        }
+    }
+
+    /**
+     * Closes the listeners, then every shard along with its connections and log
+     *
+     * @throws InterruptedException
+     */
+    void shutdown() throws InterruptedException {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        for (NioPacketReceiver.EventLoop loop : loops) {
+            loop.close();
+        }
+        join();
+        for (PacketLog log : logs) {
+            PacketReceiver.closeLog(log);
+        }
+    }
+
+    /**
+     * Prints the connections and packets each shard received
+     */
+    void printShards() {
+        long total = Math.max(1, metrics.getPacketsAccepted());
+        for (int i = 0; i < shardMetrics.length; i++) {
+            long accepted = shardMetrics[i].getPacketsAccepted();
+            System.out.println("Shard " + i + ": " + shardMetrics[i].getConnectionsOpened() + " connections, "
+                    + accepted + " packets accepted (" + String.format("%.1f", 100.0 * accepted / total) + "%)");
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PacketReceiver engine for the UDP transport: every datagram carries exactly
+ * one packet, with no length prefix and no reply per packet.
+ *
+ * A single thread waits on a Selector and, each time the channel becomes
+ * readable, drains up to BATCH_SIZE datagrams with non-blocking receives into
+ * one reusable direct ByteBuffer (the closest Java gets to recvmmsg). Packets
+ * are decoded straight out of that buffer with a PacketView.
+ *
+ * Acknowledgements are optional. When they are on, each sender gets one ack
+ * datagram per drained batch that counts how many of its packets were intact
+ * and how many were corrupted, instead of one reply per packet.
+ *
+ * In reliable mode (--reliable) the receiver runs the receiving half of the
+ * sliding-window protocol instead: each sender gets a ReceiveWindow that
+ * delivers every packet exactly once, and one window ack per drained batch
+ * tells the sender what to retransmit (see WindowedSender).
+ */
+public class UdpPacketReceiver {
+
+    static final int BATCH_SIZE = 64; // datagrams drained per wakeup
+    static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024; // SO_RCVBUF, absorbs bursts between drains
+    static final int ACK_LENGTH = 8; // packets accepted and rejected, 4 bytes each
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(PacketCodec.MAX_PACKET_LENGTH);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(ReceiveWindow.MAX_ACK_LENGTH);
+    private final PacketView packet = new PacketView();
+    private final PacketView reassembled = new PacketView();
+    private final Map<SocketAddress, int[]> pendingAcks = new HashMap<>(); // sender -> {accepted, rejected} this batch
+    private final PacketLog log; // null when not logging packets
+    private final boolean sendAcks;
+    private final Map<SocketAddress, ReceiveWindow> windows; // reliable mode: per sender
+    private final List<ReceiveWindow> windowsToAck = new ArrayList<>(); // reliable mode: senders heard from this batch
+    private final ReceiverMetrics metrics;
+    private final FragmentReassembler reassembler;
+    private final PcapWriter capture;
+    private volatile boolean running = true;
+
+    /**
+     * Binds the UDP port
+     *
+     * @param port        UDP port to listen on
+     * @param log         per-packet log, or null to log nothing
+     * @param sendAcks    whether to acknowledge packets (one ack per sender per batch)
+     * @param reliable    whether to run the sliding-window protocol (implies acks)
+     * @param metrics     counters updated by the receive loop
+     * @param reassembler puts fragmented datagrams back together
+     * @param capture     records every intact packet, or null
+     * @throws IOException if the port cannot be bound
+     */
+    UdpPacketReceiver(int port, PacketLog log, boolean sendAcks, boolean reliable,
+            ReceiverMetrics metrics, FragmentReassembler reassembler, PcapWriter capture) throws IOException {
+        this.channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        this.log = log;
+        this.sendAcks = sendAcks && !reliable;
+        this.windows = reliable ? new HashMap<>() : null;
+        this.metrics = metrics;
+        this.reassembler = reassembler;
+        this.capture = capture;
+    }
+
+    /**
+     * Receives packets on the calling thread until shutdown() is called, printing
+     * the packet rate once a second while packets are arriving
+     */
+    void run() {
+        long lastReport = System.nanoTime();
+        long packets = 0;
+        long bytes = 0;
+
+        try {
+            while (running) {
+                selector.select(1000);
+                selector.selectedKeys().clear();
+
+                // drain a batch of datagrams without blocking
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    readBuffer.clear();
+                    SocketAddress sender = channel.receive(readBuffer);
+                    if (sender == null) {
+                        break; // nothing more queued
+                    }
+                    readBuffer.flip();
+                    packets++;
+                    bytes += readBuffer.remaining();
+                    receive(sender);
+                }
+                if (sendAcks) {
+                    flushAcks();
+                }
+                if (windows != null) {
+                    flushWindowAcks();
+                }
+
+                long now = System.nanoTime();
+                if (now - lastReport >= 1_000_000_000L) {
+                    double seconds = (now - lastReport) / 1e9;
+                    if (packets > 0) {
+                        System.out.printf("UDP: %.0f packets/s, %.2f MB/s%n", packets / seconds, bytes / seconds / 1e6);
+                    }
+                    packets = 0;
+                    bytes = 0;
+                    lastReport = now;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("UDP receiver stopped: " + e.getMessage());
+            }
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Decodes the datagram in readBuffer and counts it towards the sender's next
+     * ack
+     */
+    private void receive(SocketAddress sender) {
+        metrics.bytesIn.add(readBuffer.remaining());
+
+        long decodeStart = System.nanoTime();
+        packet.wrap(readBuffer);
+        metrics.recordDecode(System.nanoTime() - decodeStart);
+
+        if (windows != null && !admit(sender)) {
+            return;
+        }
+        boolean isAuthentic = log == null
+                ? PacketReceiver.receiveQuietly(packet, reassembled, reassembler, capture)
+                : PacketReceiver.receivePacket(packet, reassembled, reassembler, capture, log);
+        metrics.recordPacket(packet, isAuthentic);
+
+        if (sendAcks) {
+            int[] counts = pendingAcks.computeIfAbsent(sender, address -> new int[2]);
+            counts[isAuthentic ? 0 : 1]++;
+        }
+    }
+
+    /**
+     * Reliable mode: offers the packet to its sender's window
+     *
+     * @return false if the packet is a duplicate (or too far ahead) and must not
+     *         be delivered
+     */
+    private boolean admit(SocketAddress sender) {
+        ReceiveWindow window = windows.get(sender);
+        if (window == null) {
+            if (!packet.isValid()) {
+                return true; // nothing to acknowledge yet; just count it as corrupted
+            }
+            window = new ReceiveWindow(sender);
+            windows.put(sender, window);
+        }
+        if (!window.ackDue) {
+            windowsToAck.add(window);
+        }
+
+        if (!packet.isValid()) {
+            window.rejected(); // the next ack shows the hole and the sender retransmits it
+            return true;
+        }
+        if (window.accept(packet.identification(), System.nanoTime()) != ReceiveWindow.Arrival.NEW) {
+            metrics.packetsDuplicate.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reliable mode: sends each sender of the last batch its window ack
+     */
+    private void flushWindowAcks() throws IOException {
+        for (ReceiveWindow window : windowsToAck) {
+            ackBuffer.clear();
+            window.writeAck(ackBuffer);
+            ackBuffer.flip();
+            metrics.bytesOut.add(channel.send(ackBuffer, window.sender));
+        }
+        windowsToAck.clear();
+    }
+
+    /**
+     * Sends each sender of the last batch one ack with its packet counts. An ack
+     * that does not fit in the socket's send buffer is dropped, like any other
+     * datagram.
+     */
+    private void flushAcks() throws IOException {
+        for (Map.Entry<SocketAddress, int[]> entry : pendingAcks.entrySet()) {
+            ackBuffer.clear();
+            ackBuffer.putInt(entry.getValue()[0]).putInt(entry.getValue()[1]).flip();
+            if (channel.send(ackBuffer, entry.getKey()) > 0) {
+                metrics.bytesOut.add(ACK_LENGTH);
+            }
+        }
+        pendingAcks.clear();
+    }
+
+    /**
+     * Stops the receive loop
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
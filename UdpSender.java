@@ -0,0 +1,170 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP transport for PacketSender: each packet is sent as one datagram, without
+ * a length prefix and without waiting for a reply.
+ *
+ * Packets are encoded into a single reusable direct buffer and written to a
+ * connected DatagramChannel. If the receiver acknowledges packets (one ack per
+ * batch it drains, see UdpPacketReceiver), a background thread adds up the
+ * acks; since UDP may drop packets and acks alike, the sender only waits a
+ * short while for the last ones.
+ *
+ * With --reliable, delivery is left to the sliding-window protocol of
+ * WindowedSender instead, which retransmits whatever the receiver misses.
+ */
+public class UdpSender {
+
+    static final int MAX_DATAGRAM_LENGTH = 65507; // largest UDP payload over IPv4
+    static final long ACK_TIMEOUT_NANOS = 1_000_000_000L; // give up once acks stop arriving for this long
+
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+    private volatile long lastAckNanos = System.nanoTime();
+
+    /**
+     * Adds up the acks sent back by the receiver until the channel is closed
+     */
+    private void readAcks(DatagramChannel channel) {
+        ByteBuffer ack = ByteBuffer.allocateDirect(UdpPacketReceiver.ACK_LENGTH);
+        try {
+            while (true) {
+                ack.clear();
+                channel.read(ack);
+                if (ack.position() != UdpPacketReceiver.ACK_LENGTH) {
+                    continue; // not an ack
+                }
+                acknowledged.addAndGet(ack.getInt(0));
+                corrupted.addAndGet(ack.getInt(4));
+                lastAckNanos = System.nanoTime();
+            }
+        } catch (PortUnreachableException e) {
+            System.out.println("Nothing is listening on the receiver's UDP port.");
+        } catch (IOException e) {
+            // the channel was closed once sending finished
+        }
+    }
+
+    /**
+     * Sends the same payload count times and prints a summary
+     *
+     * @param payload       payload of every packet
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @param host          receiver host
+     * @param port          receiver UDP port
+     * @param count         number of packets to send
+     * @param waitForAcks   whether to wait for the receiver's acks
+     * @throws Exception
+     */
+    void run(byte[] payload, int sourceIP, int destinationIP, String host, int port, long count, boolean waitForAcks)
+            throws Exception {
+        if (PacketCodec.headerLength() + payload.length > MAX_DATAGRAM_LENGTH) {
+            throw new IllegalArgumentException("A UDP packet can carry at most "
+                    + (MAX_DATAGRAM_LENGTH - PacketCodec.headerLength()) + " bytes of payload");
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(host, port));
+            Thread ackReader = null;
+            if (waitForAcks) {
+                ackReader = new Thread(() -> readAcks(channel), "udp-sender-acks");
+                ackReader.start();
+            }
+
+            ByteBuffer out = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+            long start = System.nanoTime();
+            long bytesSent = 0;
+            for (long i = 0; i < count; i++) {
+                out.clear();
+                PacketCodec.encode(out, payload, 0, payload.length, sourceIP, destinationIP);
+                out.flip();
+                bytesSent += channel.write(out);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println("Sent " + count + " packets in " + String.format("%.3f", seconds) + " s ("
+                    + String.format("%.0f", count / seconds) + " packets/s, "
+                    + String.format("%.2f", bytesSent / seconds / 1e6) + " MB/s).");
+
+            if (ackReader != null) {
+                lastAckNanos = System.nanoTime();
+                while (acknowledged.get() + corrupted.get() < count
+                        && System.nanoTime() - lastAckNanos < ACK_TIMEOUT_NANOS) {
+                    Thread.sleep(10);
+                }
+                channel.close(); // stops the ack reader
+                ackReader.join();
+
+                long answered = acknowledged.get() + corrupted.get();
+                System.out.println("Acknowledged: " + acknowledged.get() + ", corrupted: " + corrupted.get()
+                        + ", unacknowledged (lost): " + (count - answered));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Entry point for "java PacketSender --udp ..."
+     *
+     * Sends the given message, or random payloads of --size bytes if no message is
+     * given, as UDP datagrams.
+     *
+     * Options:
+     * <ip_address> <message>  destination and message, as in the default mode (optional)
+     * --count N               packets to send (default 1)
+     * --size N                payload size when no message is given (default 64)
+     * --acks                  wait for the receiver's acks (start it with --acks too)
+     * --reliable              deliver every packet, retransmitting lost ones (start the receiver with --reliable too)
+     * --window N              most packets in flight with --reliable (default 1024, at most 16384)
+     * --rate N                with --reliable, send at most N new packets per second (default: paced by the window only)
+     * --dest IP               destination IPv4 address when no message is given (default 127.0.0.1)
+     * --host HOST             receiver to send to (default 127.0.0.1)
+     * --port N                receiver UDP port (default 8888)
+     *
+     * @param args
+     * @throws Exception
+     */
+    static void main(String[] args) throws Exception {
+        String[] positional = CommandLine.positionalArgs(args, "--count", "--size", "--dest", "--host", "--port",
+                "--window", "--rate");
+        long count = CommandLine.getLongOption(args, "--count", 1);
+        String host = CommandLine.getOption(args, "--host", "127.0.0.1");
+        int port = CommandLine.getIntOption(args, "--port", 8888);
+        boolean waitForAcks = CommandLine.hasFlag(args, "--acks");
+
+        String destinationIP;
+        byte[] payload;
+        if (positional.length >= 2) {
+            destinationIP = positional[0];
+            payload = positional[1].getBytes(StandardCharsets.UTF_8);
+        } else {
+            destinationIP = CommandLine.getOption(args, "--dest", "127.0.0.1");
+            payload = new byte[CommandLine.getIntOption(args, "--size", 64)];
+            new Random(42).nextBytes(payload);
+        }
+
+        String sourceIP = PacketSender.getTextAfterForwardSlash(InetAddress.getLocalHost().toString());
+        if (CommandLine.hasFlag(args, "--reliable")) {
+            if (PacketCodec.headerLength() + payload.length > MAX_DATAGRAM_LENGTH) {
+                throw new IllegalArgumentException("A UDP packet can carry at most "
+                        + (MAX_DATAGRAM_LENGTH - PacketCodec.headerLength()) + " bytes of payload");
+            }
+            WindowedSender.run(payload, PacketCodec.convertIPv4StringToInt(sourceIP),
+                    PacketCodec.convertIPv4StringToInt(destinationIP), host, port, count,
+                    CommandLine.getIntOption(args, "--window", WindowedSender.DEFAULT_WINDOW),
+                    CommandLine.getLongOption(args, "--rate", 0));
+            return;
+        }
+        new UdpSender().run(payload, PacketCodec.convertIPv4StringToInt(sourceIP),
+                PacketCodec.convertIPv4StringToInt(destinationIP), host, port, count, waitForAcks);
+    }
+}
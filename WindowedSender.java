@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sending half of the sliding-window protocol (PacketSender --udp --reliable):
+ * delivers every packet over UDP, keeping up to a window of packets in flight
+ * so that throughput is set by the window and the round-trip time rather than
+ * by waiting for each ack in turn.
+ *
+ * Packets are numbered by their IPv4 identification. The first packet is sent
+ * on its own and starts the sequence at the receiver; once it is acknowledged
+ * the window opens. The receiver answers every batch it drains with a window
+ * ack (see ReceiveWindow): a cumulative ack, the end of what has arrived and
+ * the ranges missing before it. A packet is retransmitted when
+ * - an ack NACKs it, i.e. later packets have arrived but it has not (it was
+ *   lost, or failed verification at the receiver); a retransmitted packet is
+ *   NACKed again only after its copy has had a round trip to arrive, or
+ * - it has gone unacknowledged for longer than the retransmission timeout.
+ *
+ * The timeout adapts to the measured round-trip time (Jacobson/Karels, as in
+ * RFC 6298), doubles on every expiry, and ignores retransmitted packets when
+ * sampling (Karn's algorithm). The window is fixed: sized to the link's
+ * bandwidth-delay product, it keeps a high-latency link busy. New packets are
+ * paced at a window per smoothed RTT rather than sent in bursts whenever the
+ * window opens, so a window that fits the path does not overflow the queue
+ * at its bottleneck; queueing raises the RTT, which slows the pace in turn.
+ * When the bottleneck rate is known, --rate caps the pace at it, so a window
+ * of several round trips can keep sending while losses are repaired without
+ * building a queue.
+ *
+ * Everything runs on one thread with a non-blocking channel. Every packet
+ * carries the same payload, so a retransmission simply encodes the packet
+ * again and no copies are kept.
+ */
+public class WindowedSender {
+
+    static final int DEFAULT_WINDOW = 1024;
+    static final long INITIAL_RTO_NANOS = 1_000_000_000L; // before the first round-trip sample
+    static final long MIN_RTO_NANOS = 200_000_000L; // as TCP on Linux; losses with later packets behind them are NACKed long before
+    static final long MAX_RTO_NANOS = 4_000_000_000L;
+    static final long TIMER_INTERVAL_NANOS = 1_000_000L; // how often the window is checked for timeouts
+    static final long GIVE_UP_NANOS = 15_000_000_000L; // the receiver is gone if nothing is acked for this long
+    static final long IDLE_PARK_NANOS = 20_000;
+    static final int PACING_BURST = 32; // packets that may go out back to back after a pause
+
+    private final DatagramChannel channel;
+    private final byte[] payload;
+    private final int sourceIP;
+    private final int destinationIP;
+    private final int window;
+    private final long minGapNanos; // from the rate limit, or 0
+    private final int firstIdentification;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(UdpSender.MAX_DATAGRAM_LENGTH);
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(ReceiveWindow.MAX_ACK_LENGTH + 1);
+
+    // per packet in flight, indexed by sequence number & mask
+    private final long[] sentAt; // nanoTime of the latest transmission
+    private final boolean[] retransmitted;
+    private final boolean[] selectivelyAcked; // in the bitmap of an ack, but not yet cumulatively acked
+    private final int mask;
+
+    long base; // oldest sequence not cumulatively acked
+    long next; // next sequence never sent
+    private long highestReported; // one past the newest packet an ack has reported as arrived
+    private long nextSendNanos; // pacing: when the next new packet may go out
+
+    long smoothedRtt = -1; // -1 until the first sample
+    private long rttVariance;
+    long rto = INITIAL_RTO_NANOS;
+
+    long retransmissions;
+    long fastRetransmissions;
+    long timeouts;
+    private long acksReceived;
+
+    /**
+     * @param channel       channel connected to the receiver (or to a LinkEmulator in front of it)
+     * @param payload       payload of every packet
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @param window        most packets in flight, at most ReceiveWindow.MAX_WINDOW
+     * @param rate          most new packets per second, or 0 for no limit beyond the window
+     */
+    WindowedSender(DatagramChannel channel, byte[] payload, int sourceIP, int destinationIP, int window, long rate) {
+        if (window < 1 || window > ReceiveWindow.MAX_WINDOW) {
+            throw new IllegalArgumentException(
+                    "The window must be between 1 and " + ReceiveWindow.MAX_WINDOW + " packets: " + window);
+        }
+        this.channel = channel;
+        this.payload = payload;
+        this.sourceIP = sourceIP;
+        this.destinationIP = destinationIP;
+        this.window = window;
+        this.minGapNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+        this.firstIdentification = PacketCodec.nextIdentification();
+
+        int slots = Integer.highestOneBit(window * 2 - 1);
+        this.sentAt = new long[slots];
+        this.retransmitted = new boolean[slots];
+        this.selectivelyAcked = new boolean[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * Sends count packets and returns once the receiver has acknowledged all of
+     * them
+     *
+     * @param count number of packets to deliver
+     * @throws IOException if the receiver cannot be reached or stops answering
+     */
+    void send(long count) throws IOException {
+        long start = System.nanoTime();
+        long lastProgress = start;
+        long nextTimerCheck = start;
+
+        while (base < count) {
+            long now = System.nanoTime();
+            boolean busy = false;
+
+            long acked = base;
+            while (readAck(now)) {
+                busy = true;
+            }
+            if (base > acked) {
+                lastProgress = now;
+            } else if (now - lastProgress > GIVE_UP_NANOS) {
+                throw new IOException("The receiver stopped acknowledging packets");
+            }
+
+            // the first packet starts the sequence at the receiver, so it travels alone
+            long limit = Math.min(count, base == 0 ? 1 : base + window);
+            long gap = Math.max(Math.max(smoothedRtt, 0) / window, minGapNanos);
+            nextSendNanos = Math.max(nextSendNanos, now - PACING_BURST * gap);
+            while (next < limit && nextSendNanos <= now) {
+                if (!transmitNext(now)) {
+                    break; // the socket's send buffer is full
+                }
+                nextSendNanos += gap;
+                busy = true;
+            }
+
+            if (now >= nextTimerCheck) {
+                checkTimeouts(now);
+                nextTimerCheck = now + TIMER_INTERVAL_NANOS;
+            }
+            if (!busy) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Delivered " + count + " packets in " + String.format("%.3f", seconds) + " s ("
+                + String.format("%.0f", count / seconds) + " packets/s, "
+                + String.format("%.2f", count * (PacketCodec.headerLength() + payload.length) / seconds / 1e6)
+                + " MB/s) with a window of " + window + ".");
+        System.out.println("Retransmissions: " + retransmissions + " (" + fastRetransmissions + " on NACK, "
+                + timeouts + " on timeout); acks received: " + acksReceived + "; smoothed RTT "
+                + String.format("%.3f", Math.max(smoothedRtt, 0) / 1e6) + " ms.");
+    }
+
+    private int identification(long sequence) {
+        return (int) ((firstIdentification + sequence) & 0xFFFF);
+    }
+
+    /**
+     * Sends the next packet that has never been sent
+     *
+     * @return false if the socket could not take it right now
+     */
+    boolean transmitNext(long now) throws IOException {
+        if (!transmit(next, now)) {
+            return false;
+        }
+        retransmitted[(int) (next & mask)] = false;
+        selectivelyAcked[(int) (next & mask)] = false;
+        next++;
+        return true;
+    }
+
+    /**
+     * Encodes and sends one packet
+     *
+     * @return false if the socket could not take it right now
+     */
+    private boolean transmit(long sequence, long now) throws IOException {
+        out.clear();
+        PacketCodec.encode(out, payload, 0, payload.length, identification(sequence), sourceIP, destinationIP);
+        out.flip();
+        if (channel.write(out) == 0) {
+            return false;
+        }
+        sentAt[(int) (sequence & mask)] = now;
+        return true;
+    }
+
+    void retransmit(long sequence, long now) throws IOException {
+        if (transmit(sequence, now)) {
+            retransmitted[(int) (sequence & mask)] = true;
+            retransmissions++;
+        }
+    }
+
+    /**
+     * Reads and applies one window ack, if one is waiting
+     *
+     * @return false if no ack was waiting
+     */
+    boolean readAck(long now) throws IOException {
+        ack.clear();
+        try {
+            if (channel.read(ack) <= 0) {
+                return false;
+            }
+        } catch (PortUnreachableException e) {
+            throw new IOException("Nothing is listening on the receiver's UDP port", e);
+        }
+        int ranges = ack.get(1) & 0xFF;
+        if (ack.get(0) != ReceiveWindow.ACK_FRAME_TYPE
+                || ack.position() != ReceiveWindow.ACK_HEADER_LENGTH + ranges * ReceiveWindow.NACK_RANGE_LENGTH) {
+            return true; // not a window ack (is the receiver running with --reliable?)
+        }
+        acksReceived++;
+
+        // the cumulative ack moves the window if it acknowledges packets in flight; older acks do not
+        int newlyAcked = offset(ack.getShort(2));
+        int span = offset(ack.getShort(4));
+        if (newlyAcked > next - base || span > next - base) {
+            return true;
+        }
+        long end = base + span;
+        if (end > highestReported) {
+            // the newest packet to arrive was sent most recently, so it has queued behind everything else in flight
+            highestReported = end;
+            if (!retransmitted[(int) ((end - 1) & mask)]) {
+                sampleRtt(now - sentAt[(int) ((end - 1) & mask)]);
+            }
+        }
+        base += newlyAcked;
+
+        // everything up to the end of the span has arrived except the NACKed ranges
+        long sequence = base;
+        for (int i = 0; i < ranges; i++) {
+            int position = ReceiveWindow.ACK_HEADER_LENGTH + i * ReceiveWindow.NACK_RANGE_LENGTH;
+            long first = base + offset(ack.getShort(position));
+            long last = Math.min(first + Short.toUnsignedInt(ack.getShort(position + 2)), end);
+            for (; sequence < first; sequence++) {
+                selectivelyAcked[(int) (sequence & mask)] = true;
+            }
+            for (; sequence < last; sequence++) {
+                fastRetransmit(sequence, now);
+            }
+        }
+        for (; sequence < end; sequence++) {
+            selectivelyAcked[(int) (sequence & mask)] = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return how far the identification in an ack is ahead of the window's base
+     */
+    private int offset(short identification) {
+        return (Short.toUnsignedInt(identification) - identification(base)) & 0xFFFF;
+    }
+
+    /**
+     * Retransmits a NACKed packet. A packet that has already been retransmitted is
+     * only sent again once the copy has had a round trip to arrive; until then
+     * acks simply have not seen it yet.
+     */
+    private void fastRetransmit(long sequence, long now) throws IOException {
+        int slot = (int) (sequence & mask);
+        if (!retransmitted[slot] || now - sentAt[slot] > smoothedRtt) {
+            retransmit(sequence, now);
+            fastRetransmissions++;
+        }
+    }
+
+    /**
+     * Retransmits every packet in flight that has waited longer than the
+     * retransmission timeout without being reported as arrived, and backs the
+     * timeout off if any had
+     */
+    void checkTimeouts(long now) throws IOException {
+        boolean expired = false;
+        for (long sequence = base; sequence < next; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (!selectivelyAcked[slot] && now - sentAt[slot] >= rto) {
+                retransmit(sequence, now);
+                timeouts++;
+                expired = true;
+            }
+        }
+        if (expired) {
+            rto = Math.min(rto * 2, MAX_RTO_NANOS);
+        }
+    }
+
+    /**
+     * Updates the smoothed round-trip time, its variance and the retransmission
+     * timeout (RFC 6298). On a steady link the variance decays towards zero, so
+     * the margin over the smoothed RTT is kept at a quarter of it at least;
+     * otherwise the last packets of a full window, which queue behind the
+     * others, would time out spuriously on a long link.
+     */
+    private void sampleRtt(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, smoothedRtt + Math.max(4 * rttVariance, smoothedRtt / 4)));
+    }
+
+    /**
+     * Entry point for "java PacketSender --udp --reliable ..."
+     *
+     * @param payload       payload of every packet
+     * @param sourceIP      source IPv4 address as an int
+     * @param destinationIP destination IPv4 address as an int
+     * @param host          receiver host (or LinkEmulator)
+     * @param port          receiver UDP port
+     * @param count         number of packets to deliver
+     * @param window        most packets in flight
+     * @param rate          most new packets per second, or 0 for no limit
+     * @throws IOException
+     */
+    static void run(byte[] payload, int sourceIP, int destinationIP, String host, int port, long count, int window,
+            long rate) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            new WindowedSender(channel, payload, sourceIP, destinationIP, window, rate).send(count);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.Random;
+
+/**
+ * Scaling benchmark for the sharded receiver. For 1, 2, 4, ... up to the
+ * given number of shards, it starts a ShardedReceiver in this JVM and drives
+ * it with the load generator's closed-loop senders over loopback for a fixed
+ * time, then reports the packets per second the receiver accepted, the round
+ * trip p99 and how evenly the kernel spread the connections over the shards.
+ *
+ * The senders run on the same machine and take their share of the cores, so
+ * run it on a box with at least twice as many cores as shards to see the
+ * receiver scale.
+ *
+ * It is a plain program rather than a JMH benchmark, so it stays in the
+ * default package next to the receiver it drives (see bench.Codec for why JMH
+ * benchmarks cannot), and is built into the benchmarks jar.
+ *
+ * Example:
+ * cd benchmarks ; mvn package ; java -cp target/benchmarks.jar ShardBenchmark
+ * java -cp target/benchmarks.jar ShardBenchmark [max_shards] [connections] [seconds] [payload_bytes]
+ */
+public class ShardBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4 * maxShards;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int payloadLength = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + connections + " connections, "
+                + seconds + " s per run, " + payloadLength + "-byte payloads\n");
+        System.out.println(String.format("%-8s %14s %10s %12s   %s", "shards", "packets/s", "speedup", "p99 (us)",
+                "packets per shard (min-max %)"));
+
+        double baseline = run(1, connections, seconds, payloadLength, 0);
+        for (int shards = 2; shards < maxShards * 2; shards *= 2) {
+            run(Math.min(shards, maxShards), connections, seconds, payloadLength, baseline); // ends on maxShards
+        }
+    }
+
+    /**
+     * Measures one shard count
+     *
+     * @return packets accepted per second
+     */
+    static double run(int shards, int connections, int seconds, int payloadLength, double baseline)
+            throws Exception {
+        ReceiverMetrics[] shardMetrics = new ReceiverMetrics[shards];
+        for (int i = 0; i < shards; i++) {
+            shardMetrics[i] = new ReceiverMetrics(); // no flow table or log: only the receive path is measured
+        }
+        ShardedReceiver receiver = new ShardedReceiver(0, shardMetrics, new PacketLog[shards]);
+        receiver.start();
+
+        int[] sizes = LoadGenerator.sampleSizes(Integer.toString(payloadLength), new Random(1));
+        int sourceIP = PacketCodec.convertIPv4StringToInt("127.0.0.1");
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        LoadGenerator.Worker[] workers = new LoadGenerator.Worker[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new LoadGenerator.Worker("127.0.0.1", receiver.port(), sizes, sourceIP + i, sourceIP, 64, 0,
+                    deadline);
+            threads[i] = new Thread(workers[i], "shard-benchmark-" + i);
+        }
+
+        // count from when every connection is open, so connecting is not part of the run
+        long start = System.nanoTime();
+        long startPackets = receiver.metrics.getPacketsAccepted();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        for (int i = 0; i < connections; i++) {
+            threads[i].join();
+            latency.add(workers[i].histogram);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        double packetsPerSecond = (receiver.metrics.getPacketsAccepted() - startPackets) / elapsed;
+
+        long total = Math.max(1, receiver.metrics.getPacketsAccepted());
+        double min = 100;
+        double max = 0;
+        for (ReceiverMetrics metrics : shardMetrics) {
+            double share = 100.0 * metrics.getPacketsAccepted() / total;
+            min = Math.min(min, share);
+            max = Math.max(max, share);
+        }
+        System.out.println(String.format("%-8d %14.0f %9.2fx %12.1f   %.1f-%.1f", shards, packetsPerSecond,
+                baseline == 0 ? 1.0 : packetsPerSecond / baseline, latency.valueAtPercentile(99) / 1e3, min, max));
+
+        receiver.shutdown();
+        return packetsPerSecond;
+    }
+}
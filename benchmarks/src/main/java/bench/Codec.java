@@ -0,0 +1,114 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles to the codec methods under test.
+ *
+ * PacketSender, PacketReceiver, PacketCodec and PacketView live in the default
+ * package (so they can be run with a plain javac/java), while JMH requires
+ * benchmarks to be in a named package, and Java code in a named package cannot
+ * refer to default-package classes by name. The benchmarks therefore call them
+ * through static final MethodHandles, which the JIT treats as constants and
+ * inlines like direct calls.
+ */
+final class Codec {
+
+    static final Class<?> PACKET_VIEW = load("PacketView");
+
+    // binary codec
+    static final MethodHandle ENCODE = find("PacketCodec", "encode",
+            MethodType.methodType(byte[].class, byte[].class, int.class, int.class));
+    static final MethodHandle ENCODE_INTO = find("PacketCodec", "encode",
+            MethodType.methodType(int.class, ByteBuffer.class, byte[].class, int.class, int.class, int.class, int.class));
+    static final MethodHandle HEADER_CHECKSUM = find("PacketCodec", "headerChecksum",
+            MethodType.methodType(int.class, byte[].class, int.class, int.class));
+    static final MethodHandle SUM_WORDS = find("PacketCodec", "scalarSumWords",
+            MethodType.methodType(long.class, byte[].class, int.class, int.class));
+    static final MethodHandle SUM_WORDS_BUFFER = find("PacketCodec", "scalarSumWords",
+            MethodType.methodType(long.class, ByteBuffer.class, int.class, int.class));
+    static final MethodHandle ENABLE_PAYLOAD_CHECKSUMS = find("PacketCodec", "enablePayloadChecksums",
+            MethodType.methodType(void.class));
+    static final MethodHandle NEW_VIEW = constructor(PACKET_VIEW);
+    static final MethodHandle VIEW_WRAP = virtual(PACKET_VIEW, "wrap",
+            MethodType.methodType(boolean.class, byte[].class));
+    static final MethodHandle VIEW_SOURCE = virtual(PACKET_VIEW, "sourceAddress", MethodType.methodType(int.class));
+    static final MethodHandle VIEW_COPY_PAYLOAD = virtual(PACKET_VIEW, "copyPayload",
+            MethodType.methodType(int.class, byte[].class, int.class));
+    static final MethodHandle VIEW_PAYLOAD_STRING = virtual(PACKET_VIEW, "payloadAsString",
+            MethodType.methodType(String.class));
+
+    // legacy hexadecimal string pipeline
+    static final MethodHandle LEGACY_ENCODE_PAYLOAD = find("PacketSender", "encodePayload",
+            MethodType.methodType(String.class, String.class));
+    static final MethodHandle LEGACY_ENCAPSULATE = find("PacketSender", "encapsulatePayload",
+            MethodType.methodType(String.class, String.class, String.class, String.class));
+    static final MethodHandle LEGACY_HEADER_CHECKSUM = find("PacketCodec", "calculateHeaderChecksum",
+            MethodType.methodType(String.class, String.class));
+    static final MethodHandle LEGACY_VERIFY = find("PacketReceiver", "verifyEncodedPacket",
+            MethodType.methodType(boolean.class, String.class));
+    static final MethodHandle LEGACY_DECODE_PAYLOAD = find("PacketReceiver", "decodePayload",
+            MethodType.methodType(String.class, String.class));
+
+    private Codec() {
+    }
+
+    /**
+     * The Vector API implementation, kept apart so that only benchmarks run with
+     * --add-modules jdk.incubator.vector load it
+     */
+    static final class Vector {
+
+        static final Class<?> VECTOR_CHECKSUM = load("VectorChecksum");
+        static final MethodHandle NEW = constructor(VECTOR_CHECKSUM);
+        static final MethodHandle SUM_WORDS = virtual(VECTOR_CHECKSUM, "sum",
+                MethodType.methodType(long.class, byte[].class, int.class, int.class));
+        static final MethodHandle SUM_WORDS_BUFFER = virtual(VECTOR_CHECKSUM, "sum",
+                MethodType.methodType(long.class, ByteBuffer.class, int.class, int.class));
+
+        private Vector() {
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> target) throws IllegalAccessException {
+        // the default package is in the unnamed module, which is open to everyone
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    private static MethodHandle find(String className, String name, MethodType type) {
+        Class<?> target = load(className);
+        try {
+            return lookup(target).findStatic(target, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle virtual(Class<?> target, String name, MethodType type) {
+        try {
+            return lookup(target).findVirtual(target, name, type).asType(type.insertParameterTypes(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> target) {
+        try {
+            return lookup(target).findConstructor(target, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
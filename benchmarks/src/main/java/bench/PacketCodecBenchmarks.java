@@ -0,0 +1,124 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encode, checksum, verify and decode benchmarks for the binary codec
+ * (PacketCodec/PacketView) and the legacy hexadecimal string pipeline it
+ * replaced, at payload sizes from 16 bytes up to the largest payload an IPv4
+ * packet can carry.
+ *
+ * Run through BenchmarkRunner, which turns on the gc profiler so every result
+ * also reports bytes allocated per operation (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmarks {
+
+    @Param({ "16", "256", "1460", "16384", "65515" })
+    int payloadSize;
+
+    static final int SOURCE_IP = 0xC0A80003; // 192.168.0.3
+    static final int DESTINATION_IP = 0xC0A80001; // 192.168.0.1
+
+    byte[] payload;
+    byte[] packet;
+    byte[] payloadCopy;
+    ByteBuffer encodeBuffer;
+    Object view;
+
+    String text;
+    String legacyPayload;
+    String legacyPacket;
+
+    @Setup
+    public void setUp() throws Throwable {
+        StringBuilder builder = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        text = builder.toString();
+        payload = text.getBytes(StandardCharsets.UTF_8);
+
+        packet = (byte[]) Codec.ENCODE.invokeExact(payload, SOURCE_IP, DESTINATION_IP);
+        payloadCopy = new byte[payloadSize];
+        encodeBuffer = ByteBuffer.allocateDirect(packet.length);
+        view = (Object) Codec.NEW_VIEW.invokeExact();
+
+        legacyPayload = (String) Codec.LEGACY_ENCODE_PAYLOAD.invokeExact(text);
+        legacyPacket = (String) Codec.LEGACY_ENCAPSULATE.invokeExact(legacyPayload, "192.168.0.3", "192.168.0.1");
+    }
+
+    // ****************** ENCAPSULATE ****************** //
+
+    @Benchmark
+    public byte[] encapsulate() throws Throwable {
+        return (byte[]) Codec.ENCODE.invokeExact(payload, SOURCE_IP, DESTINATION_IP);
+    }
+
+    @Benchmark
+    public int encapsulateIntoBuffer() throws Throwable {
+        encodeBuffer.clear();
+        return (int) Codec.ENCODE_INTO.invokeExact(encodeBuffer, payload, 0, payload.length, SOURCE_IP,
+                DESTINATION_IP);
+    }
+
+    @Benchmark
+    public String legacyEncapsulate() throws Throwable {
+        String encoded = (String) Codec.LEGACY_ENCODE_PAYLOAD.invokeExact(text);
+        return (String) Codec.LEGACY_ENCAPSULATE.invokeExact(encoded, "192.168.0.3", "192.168.0.1");
+    }
+
+    // ****************** CHECKSUM ****************** //
+
+    @Benchmark
+    public int checksum() throws Throwable {
+        return (int) Codec.HEADER_CHECKSUM.invokeExact(packet, 0, 20);
+    }
+
+    @Benchmark
+    public String legacyChecksum() throws Throwable {
+        return (String) Codec.LEGACY_HEADER_CHECKSUM.invokeExact(legacyPacket);
+    }
+
+    // ****************** VERIFY ****************** //
+
+    @Benchmark
+    public boolean verify() throws Throwable {
+        return (boolean) Codec.VIEW_WRAP.invokeExact(view, packet);
+    }
+
+    @Benchmark
+    public boolean legacyVerify() throws Throwable {
+        return (boolean) Codec.LEGACY_VERIFY.invokeExact(legacyPacket);
+    }
+
+    // ****************** DECODE ****************** //
+
+    @Benchmark
+    public int decode() throws Throwable {
+        boolean valid = (boolean) Codec.VIEW_WRAP.invokeExact(view, packet);
+        int source = (int) Codec.VIEW_SOURCE.invokeExact(view);
+        int copied = (int) Codec.VIEW_COPY_PAYLOAD.invokeExact(view, payloadCopy, 0);
+        return valid ? source + copied : 0;
+    }
+
+    @Benchmark
+    public String decodeToString() throws Throwable {
+        boolean valid = (boolean) Codec.VIEW_WRAP.invokeExact(view, packet);
+        return valid ? (String) Codec.VIEW_PAYLOAD_STRING.invokeExact(view) : null;
+    }
+
+    @Benchmark
+    public String legacyDecode() throws Throwable {
+        return (String) Codec.LEGACY_DECODE_PAYLOAD.invokeExact(legacyPacket);
+    }
+}
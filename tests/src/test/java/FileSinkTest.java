@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for FileSink, which writes untrusted stream packets to disk: a file
+ * arriving in chunks, file names that must not leave the save directory (or
+ * be the directory itself), and chunks reaching past the announced size.
+ */
+class FileSinkTest {
+
+    static final int SOURCE = PacketCodec.convertIPv4StringToInt("192.168.0.3");
+    static final int DESTINATION = PacketCodec.convertIPv4StringToInt("192.168.0.1");
+
+    @TempDir
+    Path directory;
+
+    private final PacketView view = new PacketView();
+
+    /**
+     * Builds one stream packet: the stream header followed by the data
+     */
+    static byte[] streamPacket(int type, long value, byte[] data) {
+        int payloadLength = FileSender.STREAM_HEADER_LENGTH + data.length;
+        int headerLength = PacketCodec.headerLength();
+        ByteBuffer packet = ByteBuffer.allocate(headerLength + payloadLength);
+        packet.put(headerLength, (byte) type).putLong(headerLength + 1, value);
+        packet.put(headerLength + FileSender.STREAM_HEADER_LENGTH, data);
+        PacketCodec.encodeHeader(packet, 0, payloadLength, 1, PacketCodec.PROTOCOL_STREAM, SOURCE, DESTINATION);
+        return packet.array();
+    }
+
+    private byte[] receive(FileSink sink, int type, long value, byte[] data) {
+        assertTrue(view.wrap(streamPacket(type, value, data)));
+        return sink.receive(view);
+    }
+
+    private byte[] open(FileSink sink, String name, long size) {
+        return receive(sink, FileSender.STREAM_OPEN, size, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long filesIn(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void savesAFileThatArrivesInChunksOutOfOrder() throws IOException {
+        FileSink sink = new FileSink(directory);
+        byte[] contents = FragmentReassemblerTest.bytes(24, 0);
+
+        assertSame(PacketReceiver.ACK_REPLY, open(sink, "data.bin", 24));
+        assertSame(PacketReceiver.ACK_REPLY,
+                receive(sink, FileSender.STREAM_DATA, 16, Arrays.copyOfRange(contents, 16, 24)));
+        assertSame(PacketReceiver.ACK_REPLY,
+                receive(sink, FileSender.STREAM_DATA, 0, Arrays.copyOfRange(contents, 0, 16)));
+        assertSame(PacketReceiver.ACK_REPLY, receive(sink, FileSender.STREAM_CLOSE, 24, new byte[0]));
+
+        assertArrayEquals(contents, Files.readAllBytes(directory.resolve("data.bin")));
+        assertFalse(Files.exists(directory.resolve("data.bin.part")));
+    }
+
+    @Test
+    void refusesNamesThatAreNotAFileInTheSaveDirectory() throws IOException {
+        FileSink sink = new FileSink(directory);
+
+        for (String name : new String[] { "", ".", "..", "/", "dir/.", "dir/..", "../.." }) {
+            assertSame(FileSink.REFUSED_REPLY, open(sink, name, 8), "name \"" + name + "\"");
+            assertSame(FileSink.REFUSED_REPLY, receive(sink, FileSender.STREAM_DATA, 0, new byte[8]));
+        }
+        assertEquals(0, filesIn(directory));
+    }
+
+    @Test
+    void keepsOnlyTheLastPartOfAName() throws IOException {
+        FileSink sink = new FileSink(directory);
+
+        assertSame(PacketReceiver.ACK_REPLY, open(sink, "../../escape.txt", 0));
+        assertSame(PacketReceiver.ACK_REPLY, receive(sink, FileSender.STREAM_CLOSE, 0, new byte[0]));
+
+        assertTrue(Files.exists(directory.resolve("escape.txt")));
+        assertFalse(Files.exists(directory.getParent().resolve("escape.txt")));
+    }
+
+    @Test
+    void refusesChunksPastTheAnnouncedSize() throws IOException {
+        FileSink sink = new FileSink(directory);
+        Path partial = directory.resolve("data.bin.part");
+
+        assertSame(PacketReceiver.ACK_REPLY, open(sink, "data.bin", 16));
+        assertSame(FileSink.REFUSED_REPLY, receive(sink, FileSender.STREAM_DATA, 8, new byte[16])); // ends at 24
+        assertSame(FileSink.REFUSED_REPLY, receive(sink, FileSender.STREAM_DATA, 1L << 40, new byte[8]));
+        assertSame(FileSink.REFUSED_REPLY, receive(sink, FileSender.STREAM_DATA, Long.MAX_VALUE - 4, new byte[8]));
+        assertEquals(0, Files.size(partial), "no sparse file may be created past the end");
+
+        assertSame(PacketReceiver.ACK_REPLY, receive(sink, FileSender.STREAM_DATA, 8, new byte[8])); // ends at 16
+        assertEquals(16, Files.size(partial));
+        sink.close();
+    }
+
+    @Test
+    void refusesEveryTransferWithoutASaveDirectory() {
+        FileSink sink = new FileSink(null);
+
+        assertSame(FileSink.REFUSED_REPLY, open(sink, "data.bin", 8));
+    }
+}
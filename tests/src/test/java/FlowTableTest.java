@@ -0,0 +1,204 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for FlowTable: the 64-identification reorder window (lost, duplicated,
+ * reordered and late packets), identification wrap-around, resyncs, and the
+ * least-recently-used eviction and idle expiry of flows.
+ */
+class FlowTableTest {
+
+    static final int DESTINATION = PacketCodec.convertIPv4StringToInt("192.168.0.1");
+    static final int A = PacketCodec.convertIPv4StringToInt("10.0.0.1");
+    static final int B = PacketCodec.convertIPv4StringToInt("10.0.0.2");
+    static final int C = PacketCodec.convertIPv4StringToInt("10.0.0.3");
+
+    private final PacketView view = new PacketView();
+    private final byte[] packet = new byte[PacketCodec.HEADER_LENGTH];
+
+    private void recordAt(FlowTable flows, int source, int identification, long nowNanos) {
+        PacketCodec.writeHeader(packet, 0, 0, identification & 0xFFFF, 0, source, DESTINATION,
+                PacketCodec.NO_PAYLOAD_CHECKSUM);
+        assertTrue(view.wrap(packet));
+        flows.record(view, nowNanos);
+    }
+
+    private void record(FlowTable flows, int source, int... identifications) {
+        for (int identification : identifications) {
+            recordAt(flows, source, identification, 0);
+        }
+    }
+
+    private void recordRange(FlowTable flows, int source, int from, int to) {
+        for (int identification = from; identification < to; identification++) {
+            recordAt(flows, source, identification, 0);
+        }
+    }
+
+    static FlowTable newTable() {
+        return new FlowTable(16, Long.MAX_VALUE);
+    }
+
+    @Test
+    void countsNothingForAFlowInOrder() {
+        FlowTable flows = newTable();
+        recordRange(flows, A, 100, 1_000);
+
+        assertEquals(0, flows.totalLost);
+        assertEquals(0, flows.totalDuplicates);
+        assertEquals(0, flows.totalReordered);
+        assertEquals(1, flows.size());
+    }
+
+    @Test
+    void countsAPacketArrivingWithinTheWindowAsReordered() {
+        FlowTable flows = newTable();
+        record(flows, A, 0, 1, 3, 2, 4);
+        recordRange(flows, A, 5, 200); // push the window well past them
+
+        assertEquals(1, flows.totalReordered);
+        assertEquals(0, flows.totalLost);
+    }
+
+    @Test
+    void countsARepeatedPacketAsDuplicate() {
+        FlowTable flows = newTable();
+        record(flows, A, 0, 1, 2, 2, 1);
+
+        assertEquals(2, flows.totalDuplicates);
+        assertEquals(0, flows.totalReordered);
+    }
+
+    @Test
+    void countsAMissingPacketAsLostOnceTheWindowMovesPastIt() {
+        FlowTable flows = newTable();
+        record(flows, A, 0, 1, 3);
+        recordRange(flows, A, 4, 2 + FlowTable.WINDOW);
+        assertEquals(0, flows.totalLost); // 2 can still arrive
+
+        record(flows, A, 2 + FlowTable.WINDOW); // 2 leaves the window
+        assertEquals(1, flows.totalLost);
+    }
+
+    @Test
+    void countsEveryPacketSkippedByALongJump() {
+        FlowTable flows = newTable();
+        record(flows, A, 0, 1_000);
+        record(flows, A, 1_000 + FlowTable.WINDOW);
+
+        assertEquals(999, flows.totalLost);
+    }
+
+    @Test
+    void takesBackTheLossOfAPacketThatArrivesLate() {
+        FlowTable flows = newTable();
+        record(flows, A, 0);
+        recordRange(flows, A, 2, 200); // 1 is counted as lost
+        assertEquals(1, flows.totalLost);
+
+        record(flows, A, 1); // far behind the window
+        assertEquals(1, flows.totalLate);
+        assertEquals(0, flows.totalLost);
+    }
+
+    @Test
+    void followsIdentificationsAcrossTheWrapAround() {
+        FlowTable flows = newTable();
+        recordRange(flows, A, 0xFFF0, 0x10010);
+
+        assertEquals(0, flows.totalLost);
+        assertEquals(0, flows.totalResyncs);
+        assertEquals(0, flows.totalDuplicates);
+    }
+
+    @Test
+    void startsOverWhenASenderRestarts() {
+        FlowTable flows = newTable();
+        recordRange(flows, A, 10_000, 10_010);
+        record(flows, A, 0, 1, 2); // much further back than the resync gap
+
+        assertEquals(1, flows.totalResyncs);
+        assertEquals(0, flows.totalLost);
+        assertEquals(0, flows.totalLate);
+    }
+
+    @Test
+    void onlySequencesTheFirstFragmentOfADatagram() {
+        FlowTable flows = newTable();
+        record(flows, A, 0);
+        PacketCodec.writeHeader(packet, 0, 0, 1, PacketCodec.FLAG_MORE_FRAGMENTS, A, DESTINATION,
+                PacketCodec.NO_PAYLOAD_CHECKSUM);
+        view.wrap(packet);
+        flows.record(view, 0);
+        PacketCodec.writeHeader(packet, 0, 0, 1, 1, A, DESTINATION, PacketCodec.NO_PAYLOAD_CHECKSUM); // offset 8
+        view.wrap(packet);
+        flows.record(view, 0);
+
+        assertEquals(0, flows.totalDuplicates);
+    }
+
+    @Test
+    void keepsFlowsApart() {
+        FlowTable flows = newTable();
+        for (int identification = 0; identification < 100; identification++) {
+            record(flows, A, identification);
+            record(flows, B, 1_000 + identification);
+        }
+
+        assertEquals(2, flows.size());
+        assertEquals(0, flows.totalLost);
+    }
+
+    @Test
+    void evictsTheLeastRecentlySeenFlowWhenFull() {
+        FlowTable flows = new FlowTable(2, Long.MAX_VALUE);
+        record(flows, A, 0);
+        record(flows, B, 0);
+        record(flows, A, 1); // B is now the least recently seen
+        record(flows, C, 0);
+
+        assertEquals(1, flows.flowsEvicted);
+        assertEquals(2, flows.size());
+
+        // A is still tracked, so the identifications its jump pushes out of the window (2 and 3) are lost
+        record(flows, A, 3 + FlowTable.WINDOW);
+        assertEquals(2, flows.totalLost);
+        // B starts over as a new flow, so its gap does not count
+        record(flows, B, 1_000);
+        assertEquals(2, flows.totalLost);
+        assertEquals(2, flows.flowsEvicted);
+    }
+
+    @Test
+    void survivesManyEvictionsWithoutLosingTrackOfFlows() {
+        FlowTable flows = new FlowTable(8, Long.MAX_VALUE);
+        for (int round = 0; round < 100; round++) {
+            for (int source = 0; source < 12; source++) {
+                record(flows, A + source, round);
+            }
+        }
+
+        assertEquals(8, flows.size());
+        assertEquals(0, flows.totalLost); // every flow evicted before its next packet starts over
+        assertEquals(100 * 12 - 8, flows.flowsEvicted);
+    }
+
+    @Test
+    void dropsFlowsIdleForLongerThanTheTimeout() {
+        FlowTable flows = new FlowTable(16, 1_000);
+        recordAt(flows, A, 0, 0);
+        recordAt(flows, B, 0, 500);
+        recordAt(flows, B, 1, 1_200); // A has been idle for 1200 ns
+
+        assertEquals(1, flows.flowsExpired);
+        assertEquals(1, flows.size());
+    }
+
+    @Test
+    void rejectsATableWithoutRoom() {
+        assertThrows(IllegalArgumentException.class, () -> new FlowTable(0, 1_000));
+    }
+}
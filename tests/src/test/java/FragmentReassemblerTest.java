@@ -0,0 +1,240 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for FragmentReassembler: fragments in and out of order, duplicates,
+ * overlaps (the first copy wins), inconsistent fragments and the timeout and
+ * memory limits.
+ */
+class FragmentReassemblerTest {
+
+    static final int SOURCE = PacketCodec.convertIPv4StringToInt("192.168.0.3");
+    static final int DESTINATION = PacketCodec.convertIPv4StringToInt("192.168.0.1");
+    static final int OVERHEAD = FragmentReassembler.DATAGRAM_OVERHEAD;
+
+    private final PacketView view = new PacketView();
+
+    /**
+     * Builds one fragment without a payload checksum
+     *
+     * @param identification datagram identification
+     * @param start          offset of the first payload byte in the datagram, a multiple of 8
+     * @param payload        the fragment's payload bytes
+     * @param more           whether the More Fragments flag is set
+     */
+    static byte[] fragment(int identification, int start, byte[] payload, boolean more) {
+        byte[] packet = new byte[PacketCodec.HEADER_LENGTH + payload.length];
+        int flagsAndOffset = (start / 8) | (more ? PacketCodec.FLAG_MORE_FRAGMENTS : 0);
+        PacketCodec.writeHeader(packet, 0, payload.length, identification, flagsAndOffset, SOURCE, DESTINATION,
+                PacketCodec.NO_PAYLOAD_CHECKSUM);
+        System.arraycopy(payload, 0, packet, PacketCodec.HEADER_LENGTH, payload.length);
+        return packet;
+    }
+
+    static byte[] bytes(int length, int first) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    private byte[] accept(FragmentReassembler reassembler, byte[] fragment, long nowNanos) {
+        assertTrue(view.wrap(fragment));
+        return reassembler.accept(view, nowNanos);
+    }
+
+    private byte[] payloadOf(byte[] datagram) {
+        assertTrue(view.wrap(datagram), "the reassembled datagram must be a valid packet");
+        assertFalse(view.isFragment());
+        byte[] payload = new byte[view.payloadLength()];
+        view.copyPayload(payload, 0);
+        return payload;
+    }
+
+    @Test
+    void reassemblesFragmentsInOrder() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] payload = bytes(40, 0);
+
+        assertNull(accept(reassembler, fragment(7, 0, Arrays.copyOfRange(payload, 0, 16), true), 0));
+        assertNull(accept(reassembler, fragment(7, 16, Arrays.copyOfRange(payload, 16, 32), true), 0));
+        byte[] datagram = accept(reassembler, fragment(7, 32, Arrays.copyOfRange(payload, 32, 40), false), 0);
+
+        assertNotNull(datagram);
+        assertArrayEquals(payload, payloadOf(datagram));
+        assertEquals(7, view.identification());
+        assertEquals(1, reassembler.datagramsReassembled);
+        assertEquals(0, reassembler.pendingDatagrams());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+
+    @Test
+    void reassemblesFragmentsOutOfOrder() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] payload = bytes(40, 0);
+
+        assertNull(accept(reassembler, fragment(7, 32, Arrays.copyOfRange(payload, 32, 40), false), 0));
+        assertNull(accept(reassembler, fragment(7, 0, Arrays.copyOfRange(payload, 0, 16), true), 0));
+        byte[] datagram = accept(reassembler, fragment(7, 16, Arrays.copyOfRange(payload, 16, 32), true), 0);
+
+        assertArrayEquals(payload, payloadOf(datagram));
+    }
+
+    @Test
+    void keepsDatagramsWithDifferentIdentificationsApart() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+
+        assertNull(accept(reassembler, fragment(1, 0, bytes(8, 0), true), 0));
+        assertNull(accept(reassembler, fragment(2, 0, bytes(8, 100), true), 0));
+        assertEquals(2, reassembler.pendingDatagrams());
+
+        assertArrayEquals(bytes(16, 100), payloadOf(accept(reassembler, fragment(2, 8, bytes(8, 108), false), 0)));
+        assertEquals(1, reassembler.pendingDatagrams());
+    }
+
+    @Test
+    void countsDuplicateFragmentsOnce() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] first = fragment(7, 0, bytes(16, 0), true);
+
+        assertNull(accept(reassembler, first, 0));
+        assertNull(accept(reassembler, first, 0));
+        byte[] datagram = accept(reassembler, fragment(7, 16, bytes(8, 16), false), 0);
+
+        assertEquals(1, reassembler.duplicateFragments);
+        assertEquals(0, reassembler.overlappingFragments);
+        assertArrayEquals(bytes(24, 0), payloadOf(datagram));
+    }
+
+    @Test
+    void keepsTheFirstCopyOfOverlappingBytes() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+        byte[] overlapping = new byte[16];
+        Arrays.fill(overlapping, (byte) 0x55); // bytes 8-23, of which 8-15 already arrived
+
+        assertNull(accept(reassembler, fragment(7, 0, bytes(16, 0), true), 0));
+        assertNull(accept(reassembler, fragment(7, 8, overlapping, true), 0));
+        byte[] datagram = accept(reassembler, fragment(7, 24, bytes(8, 24), false), 0);
+
+        assertEquals(1, reassembler.overlappingFragments);
+        byte[] expected = bytes(32, 0);
+        Arrays.fill(expected, 16, 24, (byte) 0x55); // only the new blocks were copied in
+        assertArrayEquals(expected, payloadOf(datagram));
+    }
+
+    @Test
+    void discardsADatagramWithTwoDifferentEnds() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+
+        assertNull(accept(reassembler, fragment(7, 16, bytes(8, 16), false), 0)); // ends at 24
+        assertNull(accept(reassembler, fragment(7, 16, bytes(16, 16), false), 0)); // ends at 32
+
+        assertEquals(1, reassembler.datagramsDiscarded);
+        assertEquals(0, reassembler.pendingDatagrams());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+
+    @Test
+    void discardsAFragmentReachingPastTheEnd() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+
+        assertNull(accept(reassembler, fragment(7, 8, bytes(8, 8), false), 0)); // ends at 16
+        assertNull(accept(reassembler, fragment(7, 16, bytes(8, 16), true), 0)); // claims more after 16
+
+        assertEquals(1, reassembler.datagramsDiscarded);
+        assertEquals(0, reassembler.pendingDatagrams());
+    }
+
+    @Test
+    void discardsANonFinalFragmentThatIsNotWholeBlocks() {
+        FragmentReassembler reassembler = new FragmentReassembler();
+
+        assertNull(accept(reassembler, fragment(7, 0, bytes(12, 0), true), 0));
+
+        assertEquals(1, reassembler.datagramsDiscarded);
+        assertEquals(0, reassembler.pendingDatagrams());
+    }
+
+    @Test
+    void dropsPartialDatagramsOlderThanTheTimeout() {
+        FragmentReassembler reassembler = new FragmentReassembler(1_000, FragmentReassembler.DEFAULT_MEMORY_CAP);
+
+        assertNull(accept(reassembler, fragment(1, 0, bytes(8, 0), true), 0));
+        assertNull(accept(reassembler, fragment(2, 0, bytes(8, 0), true), 999));
+        assertEquals(0, reassembler.datagramsTimedOut);
+
+        // datagram 1 has expired by the time its last fragment arrives, so that fragment starts a new datagram
+        assertNull(accept(reassembler, fragment(1, 8, bytes(8, 8), false), 1_000));
+        assertEquals(1, reassembler.datagramsTimedOut);
+        assertEquals(2, reassembler.pendingDatagrams());
+        assertEquals(0, reassembler.datagramsReassembled);
+    }
+
+    @Test
+    void evictsTheOldestDatagramsToStayUnderTheMemoryCap() {
+        FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS,
+                2 * OVERHEAD + 100);
+
+        assertNull(accept(reassembler, fragment(1, 0, bytes(64, 0), true), 0));
+        assertEquals(OVERHEAD + 64, reassembler.bufferedBytes());
+        assertNull(accept(reassembler, fragment(2, 0, bytes(64, 0), true), 1));
+
+        assertEquals(1, reassembler.datagramsEvictedForMemory);
+        assertEquals(1, reassembler.pendingDatagrams());
+        assertEquals(OVERHEAD + 64, reassembler.bufferedBytes());
+
+        // datagram 2 survived and completes; datagram 1 lost its first fragment and cannot
+        assertNotNull(accept(reassembler, fragment(2, 64, bytes(8, 64), false), 2));
+        assertNull(accept(reassembler, fragment(1, 64, bytes(8, 64), false), 2));
+    }
+
+    @Test
+    void evictsTheDatagramItselfWhenItAloneExceedsTheCap() {
+        FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS,
+                OVERHEAD + 32);
+
+        assertNull(accept(reassembler, fragment(1, 0, bytes(64, 0), true), 0));
+
+        assertEquals(1, reassembler.datagramsEvictedForMemory);
+        assertEquals(0, reassembler.pendingDatagrams());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+
+    @Test
+    void chargesEachPartialDatagramAgainstTheMemoryCap() {
+        long cap = 10 * (OVERHEAD + 16);
+        FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS, cap);
+
+        // 1-byte last fragments, each with its own identification and none ever completed
+        int flood = 10_000;
+        for (int identification = 0; identification < flood; identification++) {
+            assertNull(accept(reassembler, fragment(identification, 8, bytes(1, 0), false), identification));
+            assertTrue(reassembler.bufferedBytes() <= cap);
+        }
+
+        assertEquals(10, reassembler.pendingDatagrams());
+        assertEquals(flood - 10, reassembler.datagramsEvictedForMemory);
+        assertEquals(10 * (OVERHEAD + 9), reassembler.bufferedBytes());
+    }
+
+    @Test
+    void dropsAFragmentWhenTheCapCannotHoldAnEmptyDatagram() {
+        FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_TIMEOUT_NANOS,
+                OVERHEAD - 1);
+
+        assertNull(accept(reassembler, fragment(1, 0, bytes(8, 0), true), 0));
+
+        assertEquals(1, reassembler.datagramsEvictedForMemory);
+        assertEquals(0, reassembler.pendingDatagrams());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+}
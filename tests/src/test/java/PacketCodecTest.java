@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the incremental header checksum update (RFC 1624) that the
+ * forwarder uses when it decrements the TTL.
+ */
+class PacketCodecTest {
+
+    @Test
+    void matchesTheWorkedExampleOfRfc1624() {
+        // section 4: m = 0x5555 changes to m' = 0x3285 in a header whose checksum was 0xDD2F. Eqn. 2 (RFC 1141)
+        // yields 0xFFFF (-0), while eqn. 3 and a full recompute yield 0x0000
+        assertEquals(0x0000, PacketCodec.updateChecksum(0xDD2F, 0x5555, 0x3285));
+    }
+
+    @Test
+    void agreesWithAFullRecomputeWhenTheTtlIsDecremented() {
+        Random random = new Random(1);
+        PacketView view = new PacketView();
+        for (int i = 0; i < 10_000; i++) {
+            // every other header carries the payload checksum option (of an empty payload)
+            int sourceIP = random.nextInt();
+            int destinationIP = random.nextInt();
+            int checksum = i % 2 == 0 ? PacketCodec.NO_PAYLOAD_CHECKSUM
+                    : PacketCodec.payloadChecksum(new byte[0], 0, 0, PacketCodec.PROTOCOL_TCP, sourceIP, destinationIP);
+            int headerLength = checksum == PacketCodec.NO_PAYLOAD_CHECKSUM ? PacketCodec.HEADER_LENGTH
+                    : PacketCodec.HEADER_LENGTH + 4;
+            byte[] packet = new byte[headerLength];
+            PacketCodec.writeHeader(packet, 0, 0, random.nextInt(0x10000), 0, sourceIP, destinationIP, checksum);
+            packet[8] = (byte) (2 + random.nextInt(254)); // any TTL that may still be decremented
+            PacketCodec.writeShort(packet, 10, 0);
+            PacketCodec.writeShort(packet, 10, PacketCodec.headerChecksum(packet, 0, headerLength));
+
+            int oldField = ((packet[8] & 0xFF) << 8) | (packet[9] & 0xFF);
+            int newField = oldField - 0x100;
+            int updated = PacketCodec.updateChecksum(readShort(packet, 10), oldField, newField);
+            PacketCodec.writeShort(packet, 8, newField);
+            PacketCodec.writeShort(packet, 10, 0);
+
+            assertEquals(PacketCodec.headerChecksum(packet, 0, headerLength), updated);
+            PacketCodec.writeShort(packet, 10, updated);
+            assertTrue(view.wrap(packet));
+        }
+    }
+
+    @Test
+    void agreesWithAFullRecomputeForAnyChangedField() {
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            byte[] header = new byte[PacketCodec.HEADER_LENGTH];
+            random.nextBytes(header);
+            PacketCodec.writeShort(header, 10, 0);
+            int checksum = PacketCodec.headerChecksum(header, 0, header.length);
+
+            int field = 2 * random.nextInt(5); // any 2-byte field before the checksum
+            int oldField = readShort(header, field);
+            int newField = random.nextInt(0x10000);
+            PacketCodec.writeShort(header, field, newField);
+
+            assertEquals(PacketCodec.headerChecksum(header, 0, header.length),
+                    PacketCodec.updateChecksum(checksum, oldField, newField));
+        }
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+}
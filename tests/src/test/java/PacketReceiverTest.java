@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the per-packet receive path shared by every receiver mode
+ * (PacketReceiver.receivePacket() and receiveQuietly()), in particular the
+ * payload checksum of fragmented datagrams: only the first fragment carries
+ * it, so it can only be checked once the datagram is reassembled, and the
+ * fragment completing a corrupted datagram must be rejected.
+ */
+class PacketReceiverTest {
+
+    static final int SOURCE = PacketCodec.convertIPv4StringToInt("192.168.0.3");
+    static final int DESTINATION = PacketCodec.convertIPv4StringToInt("192.168.0.1");
+    static final int FRAGMENT_LENGTH = 64;
+
+    private final PacketView packet = new PacketView();
+    private final PacketView reassembled = new PacketView();
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    private final PacketLog log = new PacketLog(PacketLog.Level.PACKETS, 1, 1024,
+            new PrintStream(OutputStream.nullOutputStream()), true);
+
+    @AfterEach
+    void closeLog() throws InterruptedException {
+        log.close();
+    }
+
+    /**
+     * Splits a payload into fragments of FRAGMENT_LENGTH bytes, the first of
+     * which carries the payload checksum option for the whole payload
+     */
+    static byte[][] fragments(byte[] payload, int identification) {
+        int checksum = PacketCodec.payloadChecksum(payload, 0, payload.length, PacketCodec.PROTOCOL_TCP, SOURCE,
+                DESTINATION);
+        int count = (payload.length + FRAGMENT_LENGTH - 1) / FRAGMENT_LENGTH;
+        byte[][] fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int start = i * FRAGMENT_LENGTH;
+            int length = Math.min(FRAGMENT_LENGTH, payload.length - start);
+            int headerLength = i == 0 ? PacketCodec.HEADER_LENGTH + 4 : PacketCodec.HEADER_LENGTH;
+            int flagsAndOffset = (start / 8) | (i < count - 1 ? PacketCodec.FLAG_MORE_FRAGMENTS : 0);
+            fragments[i] = new byte[headerLength + length];
+            PacketCodec.writeHeader(fragments[i], 0, length, identification, flagsAndOffset, SOURCE, DESTINATION,
+                    i == 0 ? checksum : PacketCodec.NO_PAYLOAD_CHECKSUM);
+            System.arraycopy(payload, start, fragments[i], headerLength, length);
+        }
+        return fragments;
+    }
+
+    static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+
+    /**
+     * Flips a payload bit; the header checksum does not cover it, so the
+     * fragment itself still verifies
+     */
+    static void corrupt(byte[] fragment) {
+        fragment[fragment.length - 1] ^= 0x10;
+    }
+
+    private boolean receive(byte[] fragment, boolean quietly) {
+        packet.wrap(fragment);
+        return quietly ? PacketReceiver.receiveQuietly(packet, reassembled, reassembler, null)
+                : PacketReceiver.receivePacket(packet, reassembled, reassembler, null, log);
+    }
+
+    private void assertOnlyTheLastIsRejected(byte[][] fragments, boolean quietly) {
+        for (int i = 0; i < fragments.length - 1; i++) {
+            assertTrue(receive(fragments[i], quietly), "fragment " + i);
+        }
+        assertFalse(receive(fragments[fragments.length - 1], quietly), "the fragment completing the datagram");
+        assertEquals(1, reassembler.datagramsReassembled);
+    }
+
+    @Test
+    void acceptsAnIntactFragmentedDatagram() {
+        for (boolean quietly : new boolean[] { false, true }) {
+            for (byte[] fragment : fragments(payload(300), quietly ? 2 : 1)) {
+                assertTrue(receive(fragment, quietly));
+            }
+        }
+        assertEquals(2, reassembler.datagramsReassembled);
+        assertTrue(reassembled.isValid());
+        assertEquals(300, reassembled.payloadLength());
+    }
+
+    @Test
+    void rejectsTheDatagramWhenALaterFragmentIsCorrupted() {
+        byte[][] fragments = fragments(payload(300), 1);
+        corrupt(fragments[2]);
+
+        assertOnlyTheLastIsRejected(fragments, false);
+    }
+
+    @Test
+    void rejectsTheDatagramWhenTheFirstFragmentIsCorrupted() {
+        byte[][] fragments = fragments(payload(300), 1);
+        corrupt(fragments[0]);
+
+        assertOnlyTheLastIsRejected(fragments, false);
+    }
+
+    @Test
+    void rejectsACorruptedDatagramWithoutALogToo() {
+        byte[][] fragments = fragments(payload(300), 1);
+        corrupt(fragments[1]);
+
+        assertOnlyTheLastIsRejected(fragments, true);
+    }
+
+    @Test
+    void rejectsWhicheverFragmentCompletesACorruptedDatagram() {
+        byte[][] fragments = fragments(payload(300), 1);
+        corrupt(fragments[fragments.length - 1]);
+
+        assertTrue(receive(fragments[fragments.length - 1], true)); // arrives first
+        for (int i = 1; i < fragments.length - 1; i++) {
+            assertTrue(receive(fragments[i], true));
+        }
+        assertFalse(receive(fragments[0], true));
+    }
+
+    @Test
+    void rejectsACorruptedUnfragmentedPacketRightAway() {
+        byte[] whole = fragments(payload(40), 1)[0];
+        corrupt(whole);
+
+        assertFalse(receive(whole, false));
+        assertFalse(receive(whole, true));
+    }
+}
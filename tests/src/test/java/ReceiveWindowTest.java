@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for ReceiveWindow: exactly-once delivery, the cumulative ack, the NACK
+ * ranges of the window ack and their limit, and identification wrap-around.
+ */
+class ReceiveWindowTest {
+
+    private final ReceiveWindow window = new ReceiveWindow(new InetSocketAddress("127.0.0.1", 9000));
+
+    private void accept(int... identifications) {
+        for (int identification : identifications) {
+            assertEquals(ReceiveWindow.Arrival.NEW, window.accept(identification & 0xFFFF, 0));
+        }
+    }
+
+    /**
+     * Writes the window's ack and describes it, e.g. "102-107 nack 102+2 105+1"
+     * for a cumulative ack of 102, an end of 107 and two missing ranges
+     */
+    private String ack() {
+        ByteBuffer frame = ByteBuffer.allocate(ReceiveWindow.MAX_ACK_LENGTH);
+        window.writeAck(frame);
+        assertEquals(ReceiveWindow.ACK_FRAME_TYPE, frame.get(0));
+        int ranges = frame.get(1) & 0xFF;
+        assertEquals(ReceiveWindow.ACK_HEADER_LENGTH + ranges * ReceiveWindow.NACK_RANGE_LENGTH, frame.position());
+
+        StringBuilder text = new StringBuilder();
+        text.append(Short.toUnsignedInt(frame.getShort(2))).append('-').append(Short.toUnsignedInt(frame.getShort(4)));
+        if (ranges > 0) {
+            text.append(" nack");
+        }
+        for (int i = 0; i < ranges; i++) {
+            int position = ReceiveWindow.ACK_HEADER_LENGTH + i * ReceiveWindow.NACK_RANGE_LENGTH;
+            text.append(' ').append(Short.toUnsignedInt(frame.getShort(position))).append('+')
+                    .append(Short.toUnsignedInt(frame.getShort(position + 2)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    void startsTheSequenceAtTheFirstPacket() {
+        accept(100);
+        assertEquals("101-101", ack());
+
+        accept(101, 102);
+        assertEquals("103-103", ack());
+    }
+
+    @Test
+    void reportsEveryHoleAsANackRange() {
+        accept(100, 101, 104, 106);
+
+        assertEquals("102-107 nack 102+2 105+1", ack());
+    }
+
+    @Test
+    void movesTheCumulativeAckPastPacketsThatAlreadyArrived() {
+        accept(100, 101, 104, 106);
+        accept(102, 103);
+
+        assertEquals("105-107 nack 105+1", ack());
+
+        accept(105);
+        assertEquals("107-107", ack());
+    }
+
+    @Test
+    void deliversEveryPacketOnlyOnce() {
+        accept(100, 101, 104);
+
+        assertEquals(ReceiveWindow.Arrival.DUPLICATE, window.accept(100, 0)); // behind the cumulative ack
+        assertEquals(ReceiveWindow.Arrival.DUPLICATE, window.accept(104, 0)); // ahead, already here
+        assertEquals("102-105 nack 102+2", ack());
+    }
+
+    @Test
+    void dropsPacketsTooFarAhead() {
+        accept(100);
+
+        assertEquals(ReceiveWindow.Arrival.BEYOND_WINDOW, window.accept(101 + ReceiveWindow.MAX_WINDOW, 0));
+        accept(100 + ReceiveWindow.MAX_WINDOW); // the last one it can track
+        assertEquals("101-" + (101 + ReceiveWindow.MAX_WINDOW) + " nack 101+" + (ReceiveWindow.MAX_WINDOW - 1),
+                ack());
+    }
+
+    @Test
+    void followsIdentificationsAcrossTheWrapAround() {
+        accept(65534, 65535, 1, 3);
+
+        assertEquals("0-4 nack 0+1 2+1", ack());
+
+        accept(0, 2);
+        assertEquals("4-4", ack());
+    }
+
+    @Test
+    void pullsTheEndInWhenThereAreMoreHolesThanRanges() {
+        accept(0);
+        for (int i = 1; i <= ReceiveWindow.MAX_NACK_RANGES + 10; i++) {
+            accept(2 * i); // every odd identification is missing
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(ReceiveWindow.MAX_ACK_LENGTH);
+        window.writeAck(frame);
+        assertEquals(ReceiveWindow.MAX_NACK_RANGES, frame.get(1) & 0xFF);
+        assertEquals(1, frame.getShort(2));
+        // the end is the first hole left out, so everything before it is covered by the ranges
+        assertEquals(2 * ReceiveWindow.MAX_NACK_RANGES + 1, frame.getShort(4));
+        int last = ReceiveWindow.ACK_HEADER_LENGTH + (ReceiveWindow.MAX_NACK_RANGES - 1) * ReceiveWindow.NACK_RANGE_LENGTH;
+        assertEquals(2 * ReceiveWindow.MAX_NACK_RANGES - 1, frame.getShort(last));
+    }
+
+    @Test
+    void startsOverAfterALongSilence() {
+        assertEquals(ReceiveWindow.Arrival.NEW, window.accept(100, 0));
+        assertEquals(ReceiveWindow.Arrival.NEW, window.accept(102, 1));
+
+        assertEquals(ReceiveWindow.Arrival.NEW, window.accept(5_000, 1 + ReceiveWindow.IDLE_RESET_NANOS + 1));
+        assertEquals("5001-5001", ack());
+    }
+
+    @Test
+    void marksAnAckDueUntilItIsWritten() {
+        accept(100);
+        assertTrue(window.ackDue);
+
+        ack();
+        assertFalse(window.ackDue);
+
+        window.rejected();
+        assertTrue(window.ackDue);
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetSocketAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for RoutingTable: longest-prefix match, default routes, replacing a
+ * route and parsing routes from text.
+ */
+class RoutingTableTest {
+
+    static int address(String address) {
+        return PacketCodec.convertIPv4StringToInt(address);
+    }
+
+    private static InetSocketAddress lookUp(RoutingTable table, String address) {
+        int route = table.lookup(address(address));
+        return route == RoutingTable.NO_ROUTE || route == RoutingTable.LOCAL ? null : table.nextHop(route);
+    }
+
+    @Test
+    void picksTheLongestMatchingPrefix() {
+        InetSocketAddress wide = new InetSocketAddress("127.0.0.1", 9001);
+        InetSocketAddress narrow = new InetSocketAddress("127.0.0.1", 9002);
+        RoutingTable table = new RoutingTable();
+        table.add(address("10.0.0.0"), 8, wide);
+        table.add(address("10.1.0.0"), 16, narrow);
+        table.add(address("10.1.2.3"), 32, null);
+
+        assertEquals(wide, lookUp(table, "10.2.3.4"));
+        assertEquals(wide, lookUp(table, "10.255.255.255"));
+        assertEquals(narrow, lookUp(table, "10.1.0.0"));
+        assertEquals(narrow, lookUp(table, "10.1.2.4"));
+        assertEquals(RoutingTable.LOCAL, table.lookup(address("10.1.2.3")));
+    }
+
+    @Test
+    void findsNoRouteOutsideEveryPrefix() {
+        RoutingTable table = new RoutingTable();
+        table.add(address("10.0.0.0"), 8, new InetSocketAddress("127.0.0.1", 9001));
+
+        assertEquals(RoutingTable.NO_ROUTE, table.lookup(address("11.0.0.1")));
+        assertEquals(RoutingTable.NO_ROUTE, table.lookup(address("9.255.255.255")));
+    }
+
+    @Test
+    void fallsBackToTheDefaultRoute() {
+        RoutingTable table = new RoutingTable();
+        table.add("0.0.0.0/0 local");
+        table.add("192.168.0.0/24 127.0.0.1:9001");
+
+        assertEquals(RoutingTable.LOCAL, table.lookup(address("8.8.8.8")));
+        assertEquals(new InetSocketAddress("127.0.0.1", 9001), lookUp(table, "192.168.0.77"));
+        assertEquals(RoutingTable.LOCAL, table.lookup(address("192.168.1.77")));
+    }
+
+    @Test
+    void matchesPrefixesThatDoNotEndOnAByte() {
+        RoutingTable table = new RoutingTable();
+        table.add("172.16.0.0/12 local");
+
+        assertEquals(RoutingTable.LOCAL, table.lookup(address("172.16.0.1")));
+        assertEquals(RoutingTable.LOCAL, table.lookup(address("172.31.255.255")));
+        assertEquals(RoutingTable.NO_ROUTE, table.lookup(address("172.32.0.0")));
+        assertEquals(RoutingTable.NO_ROUTE, table.lookup(address("172.15.255.255")));
+    }
+
+    @Test
+    void replacesTheRouteOfTheSamePrefix() {
+        RoutingTable table = new RoutingTable();
+        table.add("10.0.0.0/8 127.0.0.1:9001");
+        table.add("10.0.0.0/8=127.0.0.1:9002");
+
+        assertEquals(new InetSocketAddress("127.0.0.1", 9002), lookUp(table, "10.9.9.9"));
+    }
+
+    @Test
+    void sharesOneIndexPerNextHop() {
+        RoutingTable table = new RoutingTable();
+        table.add("10.0.0.0/8 127.0.0.1:9001");
+        table.add("11.0.0.0/8 127.0.0.1:9001");
+        table.add("12.0.0.0/8 127.0.0.1:9002");
+
+        assertEquals(table.lookup(address("10.0.0.1")), table.lookup(address("11.0.0.1")));
+        assertEquals(3, table.nextHopCount()); // LOCAL and the two next hops
+    }
+
+    @Test
+    void growsPastItsInitialNodes() {
+        RoutingTable table = new RoutingTable();
+        for (int i = 0; i < 256; i++) {
+            table.add(address("10.0." + i + ".1"), 32, new InetSocketAddress("127.0.0.1", 9000 + i));
+        }
+
+        for (int i = 0; i < 256; i++) {
+            assertEquals(9000 + i, lookUp(table, "10.0." + i + ".1").getPort());
+        }
+        assertNull(lookUp(table, "10.0.0.2"));
+    }
+
+    @Test
+    void rejectsMalformedRoutes() {
+        RoutingTable table = new RoutingTable();
+
+        assertThrows(IllegalArgumentException.class, () -> table.add(address("10.0.0.0"), 33, null));
+        assertThrows(IllegalArgumentException.class, () -> table.add("10.0.0.0/8"));
+        assertThrows(IllegalArgumentException.class, () -> table.add("10.0.0.0/8 127.0.0.1"));
+    }
+}
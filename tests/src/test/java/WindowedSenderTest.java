@@ -0,0 +1,191 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for the retransmission logic of WindowedSender: the retransmission
+ * timeout computed from round-trip samples (RFC 6298), its back-off, Karn's
+ * algorithm and retransmitting NACKed packets. The sender talks to a
+ * ReceiveWindow over loopback UDP, and the tests pass in the clock, so every
+ * round trip takes exactly as long as the test says.
+ */
+@Timeout(10)
+class WindowedSenderTest {
+
+    static final long MILLIS = 1_000_000L;
+    static final int SOURCE = PacketCodec.convertIPv4StringToInt("192.168.0.3");
+    static final int DESTINATION = PacketCodec.convertIPv4StringToInt("192.168.0.1");
+
+    private DatagramChannel receiver;
+    private DatagramChannel channel;
+    private WindowedSender sender;
+    private ReceiveWindow window;
+    private final PacketView view = new PacketView();
+    private final ByteBuffer datagram = ByteBuffer.allocate(UdpSender.MAX_DATAGRAM_LENGTH);
+
+    @BeforeEach
+    void connect() throws IOException {
+        receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = DatagramChannel.open().connect(receiver.getLocalAddress());
+        channel.configureBlocking(false);
+        sender = new WindowedSender(channel, new byte[16], SOURCE, DESTINATION, 64, 0);
+        window = new ReceiveWindow(channel.getLocalAddress());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        channel.close();
+        receiver.close();
+    }
+
+    /**
+     * Receives the next packet the sender sent
+     *
+     * @return its identification
+     */
+    private int receive() throws IOException {
+        datagram.clear();
+        receiver.receive(datagram);
+        datagram.flip();
+        assertTrue(view.wrap(datagram));
+        return view.identification();
+    }
+
+    /**
+     * Receives the next packet and offers it to the receive window
+     */
+    private void deliver() throws IOException {
+        window.accept(receive(), 0);
+    }
+
+    /**
+     * Sends the receive window's ack and has the sender read it
+     *
+     * @param nowNanos the sender's clock when the ack arrives
+     */
+    private void ack(long nowNanos) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(ReceiveWindow.MAX_ACK_LENGTH);
+        window.writeAck(frame);
+        frame.flip();
+        receiver.send(frame, window.sender);
+        while (!sender.readAck(nowNanos)) {
+            Thread.onSpinWait(); // loopback delivers it in a moment
+        }
+    }
+
+    @Test
+    void setsTheTimeoutFromTheFirstRoundTrip() throws IOException {
+        assertEquals(WindowedSender.INITIAL_RTO_NANOS, sender.rto);
+
+        sender.transmitNext(0);
+        deliver();
+        ack(100 * MILLIS);
+
+        assertEquals(1, sender.base);
+        assertEquals(100 * MILLIS, sender.smoothedRtt);
+        assertEquals(300 * MILLIS, sender.rto); // SRTT + 4 * RTTVAR, with RTTVAR = R / 2
+    }
+
+    @Test
+    void smoothsLaterRoundTrips() throws IOException {
+        sender.transmitNext(0);
+        deliver();
+        ack(100 * MILLIS);
+
+        sender.transmitNext(1_000 * MILLIS);
+        deliver();
+        ack(1_100 * MILLIS); // the same 100 ms again, so the variance shrinks by a quarter
+
+        assertEquals(100 * MILLIS, sender.smoothedRtt);
+        assertEquals(250 * MILLIS, sender.rto);
+    }
+
+    @Test
+    void keepsTheTimeoutWithinItsBounds() throws IOException {
+        sender.transmitNext(0);
+        deliver();
+        ack(1 * MILLIS);
+        assertEquals(WindowedSender.MIN_RTO_NANOS, sender.rto);
+
+        sender.transmitNext(1_000 * MILLIS);
+        deliver();
+        ack(31_000 * MILLIS);
+        assertEquals(WindowedSender.MAX_RTO_NANOS, sender.rto);
+    }
+
+    @Test
+    void doesNotSampleRetransmittedPackets() throws IOException {
+        sender.transmitNext(0);
+        receive(); // the first copy; which one the ack is for is ambiguous
+        sender.retransmit(0, 50 * MILLIS);
+        deliver();
+        ack(100 * MILLIS);
+
+        assertEquals(1, sender.base);
+        assertEquals(-1, sender.smoothedRtt);
+        assertEquals(WindowedSender.INITIAL_RTO_NANOS, sender.rto);
+    }
+
+    @Test
+    void retransmitsOnTimeoutAndBacksOff() throws IOException {
+        sender.transmitNext(0);
+        receive();
+
+        sender.checkTimeouts(WindowedSender.INITIAL_RTO_NANOS - 1);
+        assertEquals(0, sender.timeouts);
+
+        long now = WindowedSender.INITIAL_RTO_NANOS;
+        sender.checkTimeouts(now);
+        assertEquals(1, sender.timeouts);
+        assertEquals(-1, sender.smoothedRtt);
+        assertEquals(2 * WindowedSender.INITIAL_RTO_NANOS, sender.rto);
+        deliver(); // the retransmitted copy
+
+        now += sender.rto;
+        sender.checkTimeouts(now);
+        assertEquals(WindowedSender.MAX_RTO_NANOS, sender.rto);
+        now += sender.rto;
+        sender.checkTimeouts(now);
+        assertEquals(WindowedSender.MAX_RTO_NANOS, sender.rto);
+        assertEquals(3, sender.timeouts);
+
+        // the ack of a packet that timed out does not count as a round trip either
+        ack(now + MILLIS);
+        assertEquals(-1, sender.smoothedRtt);
+    }
+
+    @Test
+    void retransmitsNackedPacketsOnce() throws IOException {
+        sender.transmitNext(0);
+        deliver();
+        ack(10 * MILLIS);
+
+        long now = 20 * MILLIS;
+        for (int i = 0; i < 4; i++) {
+            sender.transmitNext(now);
+        }
+        deliver();
+        int lost = receive(); // the second of the four never reaches the window
+        deliver();
+        deliver();
+        ack(now + 10 * MILLIS);
+
+        assertEquals(1, sender.fastRetransmissions);
+        assertEquals(lost, receive());
+
+        // a repeated NACK before the copy has had a round trip to arrive is not answered again
+        ack(now + 11 * MILLIS);
+        assertEquals(1, sender.fastRetransmissions);
+        assertEquals(0, sender.timeouts);
+    }
+}
@@ -0,0 +1,55 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * PacketCodec.sumWords() with the Vector API (jdk.incubator.vector), switched
+ * on with --vector-checksum.
+ *
+ * Each step loads as many longs as the CPU's widest vector holds and adds
+ * their 4-byte halves into as many 64-bit lanes at once, the same sum the
+ * scalar loop builds one long at a time. The lanes are added together at
+ * the end and the last bytes that do not fill a vector are left to the scalar
+ * code.
+ *
+ * This lives apart from the other sources because the incubator module has to
+ * be named when compiling and running it:
+ *
+ * javac --add-modules jdk.incubator.vector -d . vector/VectorChecksum.java
+ * java --add-modules jdk.incubator.vector PacketReceiver --vector-checksum
+ */
+public class VectorChecksum implements PacketCodec.WordSum {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int STEP = SPECIES.vectorByteSize();
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder(); // as in the scalar code, swapped once at the end
+
+    @Override
+    public long sum(byte[] bytes, int offset, int length) {
+        LongVector sum = LongVector.zero(SPECIES);
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= STEP; i += STEP) {
+            LongVector words = LongVector.fromByteArray(SPECIES, bytes, i, ORDER);
+            sum = sum.add(words.lanewise(VectorOperators.LSHR, 32)).add(words.and(0xFFFFFFFFL));
+        }
+        return PacketCodec.fromNativeOrder(sum.reduceLanes(VectorOperators.ADD))
+                + PacketCodec.scalarSumWords(bytes, i, end - i);
+    }
+
+    @Override
+    public long sum(ByteBuffer buffer, int offset, int length) {
+        LongVector sum = LongVector.zero(SPECIES);
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= STEP; i += STEP) {
+            LongVector words = LongVector.fromByteBuffer(SPECIES, buffer, i, ORDER);
+            sum = sum.add(words.lanewise(VectorOperators.LSHR, 32)).add(words.and(0xFFFFFFFFL));
+        }
+        return PacketCodec.fromNativeOrder(sum.reduceLanes(VectorOperators.ADD))
+                + PacketCodec.scalarSumWords(buffer, i, end - i);
+    }
+}